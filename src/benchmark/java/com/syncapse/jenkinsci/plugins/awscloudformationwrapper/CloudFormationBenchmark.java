@@ -0,0 +1,91 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import hudson.EnvVars;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+import com.amazonaws.services.cloudformation.model.Stack;
+
+/**
+ * What a build does over and over for a single stack: expanding its name,
+ * which happens on every log line and poll, building its prefixed outputs and
+ * finding it in a DescribeStacks result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CloudFormationBenchmark {
+
+	@Param({ "500" })
+	private int outputs;
+
+	@Param({ "2000" })
+	private int stacks;
+
+	private CloudFormation cloudFormation;
+	private DescribeStacksResult describeStacksResult;
+
+	@Setup
+	public void setup() {
+		EnvVars env = new EnvVars();
+		env.put("JOB_NAME", "deploy-pipeline");
+		env.put("BUILD_NUMBER", "1234");
+		PrintStream logger = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		});
+		cloudFormation = new CloudFormation(logger, "${JOB_NAME}-${BUILD_NUMBER}", false, "{}",
+				new HashMap<String, String>(), -12345, "accessKey", "secretKey", true, env, false);
+
+		// Outputs are normally taken from the deployed stack.
+		Map<String, String> stackOutputs = new HashMap<String, String>();
+		for (int i = 0; i < outputs; i++) {
+			stackOutputs.put("Output" + i, "value-" + i);
+		}
+		cloudFormation.setStackOutputs(stackOutputs);
+
+		// The stack being looked for comes last.
+		describeStacksResult = new DescribeStacksResult();
+		for (int i = 1; i < stacks; i++) {
+			describeStacksResult.withStacks(new Stack().withStackName("deploy-pipeline-" + (i + 10000)));
+		}
+		describeStacksResult.withStacks(new Stack().withStackName("deploy-pipeline-1234"));
+	}
+
+	@Benchmark
+	public String expandStackName() {
+		return cloudFormation.getExpandedStackName();
+	}
+
+	@Benchmark
+	public Map<String, String> prefixOutputs() {
+		return cloudFormation.getOutputs();
+	}
+
+	@Benchmark
+	public Stack findStackInDescribeResult() {
+		return cloudFormation.getStack(describeStacksResult);
+	}
+
+}
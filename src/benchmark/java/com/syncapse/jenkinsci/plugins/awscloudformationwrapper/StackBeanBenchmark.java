@@ -0,0 +1,67 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import hudson.EnvVars;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing a stack's parameters, which is done for every stack of every build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StackBeanBenchmark {
+
+	@Param({ "200" })
+	private int parameters;
+
+	private StackBean semicolonDelimited;
+	private StackBean commaDelimited;
+	private EnvVars env;
+
+	@Setup
+	public void setup() {
+		env = new EnvVars();
+		StringBuilder semicolons = new StringBuilder();
+		StringBuilder commas = new StringBuilder();
+		for (int i = 0; i < parameters; i++) {
+			env.put("VALUE_" + i, "value-" + i);
+			semicolons.append(i > 0 ? ";" : "").append("Key").append(i).append("=${VALUE_").append(i).append('}');
+			commas.append(i > 0 ? "," : "").append("Key").append(i).append("=${VALUE_").append(i).append('}');
+		}
+		semicolonDelimited = bean(semicolons.toString());
+		commaDelimited = bean(commas.toString());
+	}
+
+	@Benchmark
+	public Map<String, String> parseSemicolonDelimitedParameters() {
+		return semicolonDelimited.getParsedParameters(env);
+	}
+
+	@Benchmark
+	public Map<String, String> parseCommaDelimitedParameters() {
+		return commaDelimited.getParsedParameters(env);
+	}
+
+	private static StackBean bean(String parameters) {
+		return new StackBean("app-${BUILD_NUMBER}", "", "template.json", parameters, 0, "accessKey", null, true,
+				Region.getDefault());
+	}
+
+}
@@ -0,0 +1,416 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.EnvVars;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.tasks.BuildWrapper.Environment;
+import hudson.util.Secret;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.codahale.metrics.Counter;
+
+/**
+ * Runs many freestyle builds at once against a {@link CloudFormationSimulator}
+ * and reports what it cost: API calls, throttling, how long stacks took to be
+ * seen finished, how long executors were held, threads and heap.
+ *
+ * Half the builds use the {@link CloudFormationBuildWrapper}, creating a
+ * stack before the build and deleting it after; the other half create a
+ * stack with the {@link CloudFormationBuildStep}. Builds go through the same
+ * rate limiter, retrier, metrics and poller as on a controller; only the AWS
+ * client is simulated.
+ *
+ * Settings are read from system properties, see {@link #main}. The results are
+ * written as JSON, by default to target/load-test-result.json.
+ */
+public final class StackLoadHarness {
+
+	private static final String TEMPLATE = "https://s3.amazonaws.com/load-test/template.json";
+
+	private static final Region REGION = Region.getDefault();
+
+	/**
+	 * Kept so that its level, quieting a line per build, isn't lost.
+	 */
+	private static final Logger BUILD_STEP_LOGGER = Logger.getLogger(CloudFormationBuildStep.class.getName());
+
+	private static final Logger LOGGER = Logger.getLogger(StackLoadHarness.class.getName());
+
+	private final int builds;
+	private final long buildMillis;
+	private final CloudFormationSimulator simulator;
+	private final AmazonCloudFormation client;
+	private final PrintStream discard = new PrintStream(new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+	});
+
+	private final List<Long> executorMillis = Collections.synchronizedList(new ArrayList<Long>());
+	private final AtomicInteger failed = new AtomicInteger();
+
+	/**
+	 * Failed builds by reason, for the report.
+	 */
+	private final Map<String, AtomicInteger> failures = new ConcurrentSkipListMap<String, AtomicInteger>();
+
+	StackLoadHarness(int builds, long buildMillis, CloudFormationSimulator simulator) {
+		this.builds = builds;
+		this.buildMillis = buildMillis;
+		this.simulator = simulator;
+		this.client = CloudFormationClientRegistry.decorate(simulator, "load-test", REGION);
+	}
+
+	/**
+	 * System properties:
+	 * <ul>
+	 * <li>loadTest.builds: builds started at once, default 500.</li>
+	 * <li>loadTest.createSeconds, loadTest.deleteSeconds: how long stacks
+	 * take to create and delete, default 60 and 30.</li>
+	 * <li>loadTest.buildSeconds: how long each build runs between creating
+	 * and deleting its stack, default 10.</li>
+	 * <li>loadTest.latencyMillis: latency of every API call, default 100.</li>
+	 * <li>loadTest.throttleRate, loadTest.errorRate: share of calls failed
+	 * with throttling or a server error, default 0.</li>
+	 * <li>loadTest.seed: seed of the injected failures, default 0.</li>
+	 * </ul>
+	 *
+	 * @param args the file to write the results to.
+	 */
+	public static void main(String[] args) throws Exception {
+		BUILD_STEP_LOGGER.setLevel(Level.WARNING);
+		CloudFormationSimulator simulator = new CloudFormationSimulator(REGION.awsRegion, Long.getLong("loadTest.seed", 0));
+		simulator.setDuration("create", TimeUnit.SECONDS.toMillis(Long.getLong("loadTest.createSeconds", 60)));
+		simulator.setDuration("update", TimeUnit.SECONDS.toMillis(Long.getLong("loadTest.createSeconds", 60)));
+		simulator.setDuration("delete", TimeUnit.SECONDS.toMillis(Long.getLong("loadTest.deleteSeconds", 30)));
+		simulator.setLatency("*", Long.getLong("loadTest.latencyMillis", 100));
+		simulator.setThrottleRate(Double.parseDouble(System.getProperty("loadTest.throttleRate", "0")));
+		simulator.setErrorRate(Double.parseDouble(System.getProperty("loadTest.errorRate", "0")));
+
+		StackLoadHarness test = new StackLoadHarness(Integer.getInteger("loadTest.builds", 500),
+				TimeUnit.SECONDS.toMillis(Long.getLong("loadTest.buildSeconds", 10)), simulator);
+		String report = test.run();
+
+		File output = new File(args.length > 0 ? args[0] : "target/load-test-result.json");
+		if (output.getParentFile() != null) {
+			output.getParentFile().mkdirs();
+		}
+		try (Writer writer = Files.newBufferedWriter(output.toPath(), StandardCharsets.UTF_8)) {
+			writer.write(report);
+		}
+		System.out.println(report);
+		System.out.println("Load test results written to " + output);
+		// The poller's threads are daemons, but the SDK's may not be.
+		System.exit(test.failed.get() == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Runs every build and waits for them to finish.
+	 *
+	 * @return the results as JSON.
+	 */
+	String run() throws InterruptedException {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		System.gc();
+		long heapBefore = memory.getHeapMemoryUsage().getUsed();
+		int threadsBefore = threads.getThreadCount();
+		threads.resetPeakThreadCount();
+
+		Sampler sampler = new Sampler(threads, memory);
+		sampler.start();
+
+		final CountDownLatch go = new CountDownLatch(1);
+		List<Thread> executors = new ArrayList<Thread>(builds);
+		for (int i = 0; i < builds; i++) {
+			final Runnable build = i % 2 == 0 ? wrapperBuild("load-wrapper-" + i) : stepBuild("load-step-" + i);
+			Thread executor = new Thread(new Runnable() {
+				public void run() {
+					try {
+						go.await();
+						build.run();
+					} catch (InterruptedException e) {
+						failed(null, e);
+					}
+				}
+			}, "load-build-" + i);
+			executor.start();
+			executors.add(executor);
+		}
+
+		long start = System.currentTimeMillis();
+		go.countDown();
+		for (Thread executor : executors) {
+			executor.join();
+		}
+		long wall = System.currentTimeMillis() - start;
+		sampler.interrupt();
+		sampler.join();
+
+		System.gc();
+		long heapAfter = memory.getHeapMemoryUsage().getUsed();
+
+		Map<String, Integer> calls = simulator.getCallCounts();
+		int i;
+		StringBuilder json = new StringBuilder("{\n");
+		field(json, "date", "\"" + Instant.now() + "\"");
+		field(json, "builds", builds);
+		field(json, "failedBuilds", failed.get());
+		json.append("  \"failureReasons\": {\n");
+		i = 0;
+		for (Map.Entry<String, AtomicInteger> failure : failures.entrySet()) {
+			json.append("    \"").append(failure.getKey()).append("\": ").append(failure.getValue().get())
+					.append(++i < failures.size() ? ",\n" : "\n");
+		}
+		json.append("  },\n");
+		field(json, "wallSeconds", wall / 1000.0);
+		json.append("  \"apiCalls\": {\n");
+		field(json, "  total", simulator.getTotalCalls());
+		i = 0;
+		for (Map.Entry<String, Integer> call : calls.entrySet()) {
+			json.append("    \"").append(call.getKey()).append("\": ").append(call.getValue())
+					.append(++i < calls.size() ? ",\n" : "\n");
+		}
+		json.append("  },\n");
+		field(json, "throttles", simulator.getThrottles());
+		field(json, "errors", simulator.getErrors());
+		field(json, "retries", count(".retries"));
+		percentiles(json, "detectionMillis", simulator.getDetectionLags());
+		percentiles(json, "executorMillis", executorMillis);
+		json.append("  \"threads\": {\n");
+		field(json, "  before", threadsBefore);
+		field(json, "  peak", threads.getPeakThreadCount());
+		last(json, "  peakExcludingBuilds", sampler.peakOtherThreads);
+		json.append("  },\n");
+		json.append("  \"heapMb\": {\n");
+		field(json, "  before", megabytes(heapBefore));
+		field(json, "  peak", megabytes(sampler.peakHeap));
+		last(json, "  after", megabytes(heapAfter));
+		json.append("  }\n}\n");
+		return json.toString();
+	}
+
+	private Runnable wrapperBuild(final String stackName) {
+		List<StackBean> beans = Collections.singletonList(new StackBean(stackName, "Load test", TEMPLATE, "",
+				0, "load-test", Secret.fromString("secret"), true, REGION));
+		final CloudFormationBuildWrapper wrapper = new CloudFormationBuildWrapper(beans) {
+			@Override
+			protected CloudFormation newCloudFormation(StackBean stackBean, AbstractBuild<?, ?> build, EnvVars env,
+					PrintStream logger) {
+				return new CloudFormation(logger, stackBean.getStackName(), true, TEMPLATE,
+						stackBean.getParsedParameters(env), stackBean.getTimeout(), "load-test", "secret", REGION,
+						stackBean.getAutoDeleteStack(), env, false) {
+					@Override
+					protected AmazonCloudFormation getAWSClient() {
+						return client;
+					}
+				};
+			}
+		};
+		final BuildListener listener = listener();
+		final AbstractBuild<?, ?> build = build(listener);
+		return new Runnable() {
+			public void run() {
+				try {
+					long start = System.currentTimeMillis();
+					Environment environment = wrapper.setUp(build, mock(Launcher.class), listener);
+					long held = System.currentTimeMillis() - start;
+					if (environment == null) {
+						failed("wrapperSetUp", null);
+						executorMillis.add(held);
+						return;
+					}
+					Thread.sleep(buildMillis);
+					start = System.currentTimeMillis();
+					if (!environment.tearDown(build, listener)) {
+						failed("wrapperTearDown", null);
+					}
+					executorMillis.add(held + System.currentTimeMillis() - start);
+				} catch (IOException | InterruptedException | RuntimeException e) {
+					failed(null, e);
+				}
+			}
+		};
+	}
+
+	private Runnable stepBuild(final String stackName) {
+		List<PostBuildStackBean> beans = Collections.singletonList(new PostBuildStackBean(stackName, "Load test",
+				TEMPLATE, "", 0, "load-test", Secret.fromString("secret"), REGION, 0));
+		final CloudFormationBuildStep step = new CloudFormationBuildStep(beans) {
+			@Override
+			protected CloudFormation newCloudFormation(PostBuildStackBean stackBean, AbstractBuild<?, ?> build,
+					EnvVars env, PrintStream logger) {
+				return new CloudFormation(logger, stackBean.getStackName(), true, TEMPLATE,
+						stackBean.getParsedParameters(env), stackBean.getTimeout(), "load-test", "secret", REGION,
+						env, false, stackBean.getSleep()) {
+					@Override
+					protected AmazonCloudFormation getAWSClient() {
+						return client;
+					}
+				};
+			}
+		};
+		final BuildListener listener = listener();
+		final AbstractBuild<?, ?> build = build(listener);
+		return new Runnable() {
+			public void run() {
+				try {
+					long start = System.currentTimeMillis();
+					if (!step.perform(build, mock(Launcher.class), listener)) {
+						failed("stepPerform", null);
+					}
+					executorMillis.add(System.currentTimeMillis() - start);
+					Thread.sleep(buildMillis);
+				} catch (IOException | InterruptedException | RuntimeException e) {
+					failed(null, e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Counts a failed build under the reason, or the class of the exception
+	 * it failed with, which is logged.
+	 */
+	private void failed(String reason, Throwable e) {
+		failed.incrementAndGet();
+		if (e != null) {
+			reason = e.getClass().getSimpleName();
+			LOGGER.log(Level.WARNING, "Load test build failed", e);
+		}
+		failures.computeIfAbsent(reason, r -> new AtomicInteger()).incrementAndGet();
+	}
+
+	private AbstractBuild<?, ?> build(BuildListener listener) {
+		AbstractBuild<?, ?> build = mock(AbstractBuild.class);
+		try {
+			when(build.getEnvironment(listener)).thenReturn(new EnvVars());
+		} catch (IOException | InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+		return build;
+	}
+
+	private BuildListener listener() {
+		BuildListener listener = mock(BuildListener.class);
+		when(listener.getLogger()).thenReturn(discard);
+		return listener;
+	}
+
+	private long count(String suffix) {
+		long total = 0;
+		for (Map.Entry<String, Counter> counter : StackMetrics.get().getRegistry().getCounters().entrySet()) {
+			if (counter.getKey().endsWith(suffix)) {
+				total += counter.getValue().getCount();
+			}
+		}
+		return total;
+	}
+
+	private static void percentiles(StringBuilder json, String name, List<Long> values) {
+		List<Long> sorted = new ArrayList<Long>(values);
+		Collections.sort(sorted);
+		json.append("  \"").append(name).append("\": {\n");
+		field(json, "  count", sorted.size());
+		field(json, "  p50", percentile(sorted, 50));
+		field(json, "  p99", percentile(sorted, 99));
+		last(json, "  max", sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1));
+		json.append("  },\n");
+	}
+
+	/**
+	 * Nearest-rank percentile of sorted values, as in
+	 * {@link StackDurationHistory.Stats}.
+	 */
+	private static long percentile(List<Long> sorted, int percentile) {
+		if (sorted.isEmpty()) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+		return sorted.get(Math.max(0, rank - 1));
+	}
+
+	private static double megabytes(long bytes) {
+		return Math.round(bytes / 1024.0 / 1024.0 * 10) / 10.0;
+	}
+
+	/**
+	 * @param name the field's name, indented by two more spaces for every
+	 * two spaces it starts with.
+	 */
+	private static void field(StringBuilder json, String name, Object value) {
+		last(json, name, value);
+		json.setLength(json.length() - 1);
+		json.append(",\n");
+	}
+
+	private static void last(StringBuilder json, String name, Object value) {
+		String trimmed = name.trim();
+		json.append("  ").append(name.substring(0, name.length() - trimmed.length()))
+				.append('"').append(trimmed).append("\": ").append(value).append('\n');
+	}
+
+	/**
+	 * Samples threads and heap while the builds run.
+	 */
+	private static final class Sampler extends Thread {
+		private final ThreadMXBean threads;
+		private final MemoryMXBean memory;
+		private volatile int peakOtherThreads;
+		private volatile long peakHeap;
+
+		Sampler(ThreadMXBean threads, MemoryMXBean memory) {
+			super("load-test sampler");
+			setDaemon(true);
+			this.threads = threads;
+			this.memory = memory;
+		}
+
+		@Override
+		public void run() {
+			while (!isInterrupted()) {
+				int others = 0;
+				for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+					if (info != null && !info.getThreadName().startsWith("load-build-")) {
+						others++;
+					}
+				}
+				peakOtherThreads = Math.max(peakOtherThreads, others);
+				peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+}
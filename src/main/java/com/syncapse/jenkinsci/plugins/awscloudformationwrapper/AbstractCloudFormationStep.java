@@ -0,0 +1,82 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import hudson.EnvVars;
+import hudson.util.ListBoxModel;
+
+import java.io.Serializable;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * What the Pipeline steps have in common: the stack and how to reach AWS.
+ *
+ * The access and secret keys default to the AWS_ACCESS_KEY_ID and
+ * AWS_SECRET_ACCESS_KEY environment variables, e.g. as bound by
+ * withCredentials.
+ */
+public abstract class AbstractCloudFormationStep extends Step implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String stackName;
+	private String awsAccessKey;
+	private String awsSecretKey;
+	private Region awsRegion = Region.getDefault();
+
+	protected AbstractCloudFormationStep(String stackName) {
+		this.stackName = stackName;
+	}
+
+	public String getStackName() {
+		return stackName;
+	}
+
+	public String getAwsAccessKey() {
+		return awsAccessKey;
+	}
+
+	@DataBoundSetter
+	public void setAwsAccessKey(String awsAccessKey) {
+		this.awsAccessKey = awsAccessKey;
+	}
+
+	public String getAwsSecretKey() {
+		return awsSecretKey;
+	}
+
+	@DataBoundSetter
+	public void setAwsSecretKey(String awsSecretKey) {
+		this.awsSecretKey = awsSecretKey;
+	}
+
+	public Region getAwsRegion() {
+		return awsRegion;
+	}
+
+	@DataBoundSetter
+	public void setAwsRegion(Region awsRegion) {
+		this.awsRegion = awsRegion != null ? awsRegion : Region.getDefault();
+	}
+
+	public String getParsedAwsAccessKey(EnvVars env) {
+		return awsAccessKey != null ? env.expand(awsAccessKey) : env.get("AWS_ACCESS_KEY_ID");
+	}
+
+	public String getParsedAwsSecretKey(EnvVars env) {
+		return awsSecretKey != null ? env.expand(awsSecretKey) : env.get("AWS_SECRET_ACCESS_KEY");
+	}
+
+	public abstract static class AbstractDescriptor extends StepDescriptor {
+
+		public ListBoxModel doFillAwsRegionItems() {
+			ListBoxModel items = new ListBoxModel();
+			for (Region region : Region.values()) {
+				items.add(region.readableName, region.name());
+			}
+			return items;
+		}
+	}
+
+}
@@ -0,0 +1,323 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+
+/**
+ * Token buckets shared by every build calling CloudFormation with the same
+ * account and region, so that together they stay under the account's API
+ * limits instead of each backing off on its own once throttled.
+ *
+ * Calls are split into describes, lists and mutations, each with its own rate
+ * (per second, also the burst size) set by a system property. Calls finding
+ * their bucket empty are queued per job (see {@link #setJob}), and the jobs
+ * take turns, so a build issuing many calls waits behind the others rather
+ * than starving them. Tokens are handed out on the {@link StackStatusPoller}
+ * scheduler as they refill; nothing sleeps.
+ *
+ * A build thread waits for its turn. The scheduler threads never wait: a
+ * call there without a token fails with a {@link RateLimitedException}
+ * saying when to try again, and its job keeps its place in the queue.
+ */
+public final class ApiRateLimiter {
+
+	public enum Operation {
+		DESCRIBE(rate("describePerSecond", 8)),
+		LIST(rate("listPerSecond", 4)),
+		MUTATE(rate("mutatePerSecond", 2));
+
+		private final double perSecond;
+
+		Operation(double perSecond) {
+			this.perSecond = perSecond;
+		}
+
+		/**
+		 * @return the class of a client method, or null for methods that make
+		 * no API call.
+		 */
+		static Operation of(Method method) {
+			String name = method.getName();
+			if (method.getDeclaringClass() == Object.class || name.equals("shutdown")
+					|| name.equals("getCachedResponseMetadata") || name.equals("setEndpoint")
+					|| name.equals("setRegion") || name.equals("waiters")) {
+				return null;
+			}
+			if (name.startsWith("list")) {
+				return LIST;
+			}
+			if (name.startsWith("describe") || name.startsWith("get") || name.startsWith("estimate")
+					|| name.startsWith("validate") || name.startsWith("detect")) {
+				return DESCRIBE;
+			}
+			return MUTATE;
+		}
+	}
+
+	/**
+	 * Time for which a token is kept for a job that could not wait for it,
+	 * once its turn has come.
+	 */
+	private static final long RESERVATION_MS = 60000;
+
+	private static final ConcurrentMap<String, ApiRateLimiter> LIMITERS = new ConcurrentHashMap<String, ApiRateLimiter>();
+
+	private static final ThreadLocal<Object> JOB = new ThreadLocal<Object>();
+
+	private final Bucket[] buckets = new Bucket[Operation.values().length];
+
+	ApiRateLimiter() {
+		for (Operation operation : Operation.values()) {
+			buckets[operation.ordinal()] = new Bucket(operation.perSecond);
+		}
+	}
+
+	/**
+	 * @return the limiter shared by every client of the account and region.
+	 */
+	public static ApiRateLimiter get(String awsAccessKey, Region region) {
+		return LIMITERS.computeIfAbsent(awsAccessKey + "@" + region.awsRegion, k -> new ApiRateLimiter());
+	}
+
+	/**
+	 * Sets the job the calls of the current thread are queued under, e.g. a
+	 * build, until set back.
+	 *
+	 * @return the job set before, to set back.
+	 */
+	static Object setJob(Object job) {
+		Object previous = JOB.get();
+		if (job == null) {
+			JOB.remove();
+		} else {
+			JOB.set(job);
+		}
+		return previous;
+	}
+
+	/**
+	 * @return the job of the calls of the current thread; the thread itself
+	 * unless set.
+	 */
+	static Object getJob() {
+		Object job = JOB.get();
+		return job != null ? job : Thread.currentThread();
+	}
+
+	/**
+	 * @return a client passing every API call through this limiter first.
+	 */
+	public AmazonCloudFormation limit(final AmazonCloudFormation client) {
+		return (AmazonCloudFormation) Proxy.newProxyInstance(AmazonCloudFormation.class.getClassLoader(),
+				new Class<?>[] { AmazonCloudFormation.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						Operation operation = Operation.of(method);
+						if (operation != null && StackStatusPoller.isSchedulerThread()) {
+							long wait = buckets[operation.ordinal()].tryAcquire(getJob());
+							if (wait > 0) {
+								throw new RateLimitedException(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+							}
+						} else if (operation != null) {
+							acquire(operation);
+						}
+						try {
+							return method.invoke(client, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+	}
+
+	/**
+	 * Waits for the current job's turn to make the given kind of call. Must
+	 * not be called on the scheduler threads.
+	 *
+	 * @throws AbortedException if interrupted while waiting; the interrupt
+	 * flag is kept.
+	 */
+	public void acquire(Operation operation) {
+		CompletableFuture<Void> grant = buckets[operation.ordinal()].acquire(getJob());
+		try {
+			grant.get();
+		} catch (InterruptedException e) {
+			grant.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new AbortedException("Interrupted waiting to call CloudFormation", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private static double rate(String property, double defaultValue) {
+		return Double.parseDouble(System.getProperty(ApiRateLimiter.class.getName() + "." + property,
+				String.valueOf(defaultValue)));
+	}
+
+	/**
+	 * A token bucket whose callers wait in per-job queues. The jobs with calls
+	 * queued take turns, one token each, in the order they first queued.
+	 */
+	static final class Bucket {
+		private final double perSecond;
+		private final double capacity;
+		private double tokens;
+		private long refilled = System.nanoTime();
+
+		/**
+		 * Queued calls per job, the job whose turn is next first.
+		 */
+		private final LinkedHashMap<Object, Deque<CompletableFuture<Void>>> queues =
+				new LinkedHashMap<Object, Deque<CompletableFuture<Void>>>();
+
+		/**
+		 * Turns of the jobs that could not wait for them, see
+		 * {@link #tryAcquire}.
+		 */
+		private final Map<Object, CompletableFuture<Void>> reserved = new HashMap<Object, CompletableFuture<Void>>();
+
+		private int queued;
+		private boolean draining;
+
+		Bucket(double perSecond) {
+			this.perSecond = perSecond;
+			this.capacity = Math.max(1, perSecond);
+			this.tokens = capacity;
+		}
+
+		/**
+		 * Takes a token, or queues for one.
+		 *
+		 * @return a future completed once the job has its token; cancel it to
+		 * give up the turn.
+		 */
+		synchronized CompletableFuture<Void> acquire(Object job) {
+			refill();
+			if (queued == 0 && tokens >= 1) {
+				tokens--;
+				return CompletableFuture.completedFuture(null);
+			}
+			CompletableFuture<Void> grant = new CompletableFuture<Void>();
+			enqueue(job, grant);
+			return grant;
+		}
+
+		/**
+		 * Takes a token without waiting for one. A job finding none is queued
+		 * all the same, and the token its turn brings is kept for its next
+		 * try.
+		 *
+		 * @return 0 if a token was taken, or else nanoseconds after which to
+		 * try again.
+		 */
+		synchronized long tryAcquire(Object job) {
+			CompletableFuture<Void> reservation = reserved.get(job);
+			if (reservation != null && reservation.isDone()) {
+				reserved.remove(job);
+				return 0;
+			}
+			refill();
+			if (reservation == null) {
+				if (queued == 0 && tokens >= 1) {
+					tokens--;
+					return 0;
+				}
+				reservation = new CompletableFuture<Void>();
+				reserved.put(job, reservation);
+				enqueue(job, reservation);
+			}
+			return (long) ((queued + 1 - tokens) / perSecond * 1e9);
+		}
+
+		private void refill() {
+			long now = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (now - refilled) / 1e9 * perSecond);
+			refilled = now;
+		}
+
+		private void enqueue(Object job, CompletableFuture<Void> grant) {
+			Deque<CompletableFuture<Void>> queue = queues.get(job);
+			if (queue == null) {
+				queue = new ArrayDeque<CompletableFuture<Void>>();
+				queues.put(job, queue);
+			}
+			queue.add(grant);
+			queued++;
+			if (!draining) {
+				draining = true;
+				scheduleDrain();
+			}
+		}
+
+		private void scheduleDrain() {
+			long wait = tokens >= 1 ? 0 : (long) ((1 - tokens) / perSecond * 1e9);
+			StackStatusPoller.scheduler().schedule(this::drain, wait, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * Hands the tokens refilled so far to the queued jobs in turn.
+		 */
+		private void drain() {
+			List<CompletableFuture<Void>> granted = new ArrayList<CompletableFuture<Void>>();
+			synchronized (this) {
+				refill();
+				while (queued > 0 && tokens >= 1) {
+					Iterator<Map.Entry<Object, Deque<CompletableFuture<Void>>>> it = queues.entrySet().iterator();
+					Map.Entry<Object, Deque<CompletableFuture<Void>>> turn = it.next();
+					it.remove();
+					CompletableFuture<Void> grant = turn.getValue().poll();
+					queued--;
+					if (!turn.getValue().isEmpty()) {
+						// To the back of the line.
+						queues.put(turn.getKey(), turn.getValue());
+					}
+					if (grant.isCancelled()) {
+						continue;
+					}
+					tokens--;
+					granted.add(grant);
+					if (reserved.get(turn.getKey()) == grant) {
+						expire(turn.getKey(), grant);
+					}
+				}
+				draining = queued > 0;
+				if (draining) {
+					scheduleDrain();
+				}
+			}
+			for (CompletableFuture<Void> grant : granted) {
+				grant.complete(null);
+			}
+		}
+
+		/**
+		 * Drops a reserved token if the job doesn't come back for it.
+		 */
+		private void expire(final Object job, final CompletableFuture<Void> reservation) {
+			StackStatusPoller.scheduler().schedule(() -> {
+				synchronized (Bucket.this) {
+					reserved.remove(job, reservation);
+				}
+			}, RESERVATION_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+}
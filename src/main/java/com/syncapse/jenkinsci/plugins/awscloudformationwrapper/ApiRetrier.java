@@ -0,0 +1,230 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.CreateChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.CreateStackRequest;
+import com.amazonaws.services.cloudformation.model.DeleteStackRequest;
+import com.amazonaws.services.cloudformation.model.ExecuteChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.UpdateStackRequest;
+
+/**
+ * Retries every CloudFormation call that was throttled or failed for a
+ * transient reason (a 5xx response or a network error), so that a busy
+ * account slows builds down instead of failing them. The SDK's own retries
+ * are turned off for registry clients in favour of this.
+ *
+ * Delays follow "decorrelated jitter": each is picked at random between
+ * {@link #BASE_MS} and three times the previous one, capped at
+ * {@link #CAP_MS}, which spreads out builds that were throttled together.
+ * Each kind of call has its own number of retries; mutations get fewer, since
+ * a build waiting on one holds up a deploy.
+ *
+ * Creates, updates, deletes and change sets are given an idempotency token
+ * before the first attempt, which all retries reuse, so a retried request
+ * whose first attempt did reach CloudFormation is not carried out twice.
+ *
+ * Calls made on the {@link StackStatusPoller} threads are never retried by
+ * sleeping, since a few threads poll every stack: there, a failed call fails
+ * straight away, and callers either back off themselves (see
+ * {@link StackWaiter}) or go through {@link #callAsync}, which schedules its
+ * retries instead.
+ */
+public final class ApiRetrier {
+
+	private static final Logger LOGGER = Logger.getLogger(ApiRetrier.class.getName());
+
+	/**
+	 * Shortest delay before a retry.
+	 */
+	static final long BASE_MS = Long.getLong(ApiRetrier.class.getName() + ".baseMillis", 500);
+
+	/**
+	 * Longest delay before a retry.
+	 */
+	static final long CAP_MS = Long.getLong(ApiRetrier.class.getName() + ".capMillis", 20000);
+
+	private static final ApiRetrier INSTANCE = new ApiRetrier(BASE_MS, CAP_MS);
+
+	private final long base;
+	private final long cap;
+
+	ApiRetrier(long base, long cap) {
+		this.base = base;
+		this.cap = cap;
+	}
+
+	public static ApiRetrier get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return the number of times a call of the given kind is retried.
+	 */
+	static int getMaxRetries(ApiRateLimiter.Operation operation) {
+		switch (operation) {
+		case MUTATE:
+			return Integer.getInteger(ApiRetrier.class.getName() + ".mutateRetries", 4);
+		case LIST:
+			return Integer.getInteger(ApiRetrier.class.getName() + ".listRetries", 6);
+		default:
+			return Integer.getInteger(ApiRetrier.class.getName() + ".describeRetries", 6);
+		}
+	}
+
+	/**
+	 * @param region the client's region, for {@link StackMetrics}.
+	 * @return a client retrying the calls of the given one.
+	 */
+	public AmazonCloudFormation retry(final AmazonCloudFormation client, final Region region) {
+		return (AmazonCloudFormation) Proxy.newProxyInstance(AmazonCloudFormation.class.getClassLoader(),
+				new Class<?>[] { AmazonCloudFormation.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						ApiRateLimiter.Operation operation = ApiRateLimiter.Operation.of(method);
+						if (operation == null) {
+							return call(client, method, args);
+						}
+						if (args != null && args.length == 1) {
+							withToken(args[0]);
+						}
+						if (StackStatusPoller.isSchedulerThread()) {
+							return call(client, method, args);
+						}
+						int maxRetries = getMaxRetries(operation);
+						long delay = base;
+						for (int retry = 0;; retry++) {
+							try {
+								return call(client, method, args);
+							} catch (AmazonClientException e) {
+								if (retry >= maxRetries || !isRetryable(e)) {
+									throw e;
+								}
+								delay = nextDelay(delay);
+								StackMetrics.get().retried(region, method.getName());
+								LOGGER.fine("Retrying " + method.getName() + " in " + delay + " ms after: " + e.getMessage());
+								sleep(delay);
+							}
+						}
+					}
+				});
+	}
+
+	/**
+	 * Makes a call on the {@link StackStatusPoller} scheduler, retrying it
+	 * the way the clients do but without blocking a thread between attempts.
+	 * A mutating request should be created outside of the call, so that every
+	 * attempt carries the same idempotency token. The attempts are rate
+	 * limited under the job of the calling thread (see
+	 * {@link ApiRateLimiter#setJob}), and one held back by the limiter is made
+	 * again once the job's turn comes, without counting as a retry.
+	 *
+	 * @param name the name of the call, for {@link StackMetrics}.
+	 * @return a future completed with the result of the call, or
+	 * exceptionally with the error of the last attempt.
+	 */
+	public <T> CompletableFuture<T> callAsync(final ApiRateLimiter.Operation operation, final Region region,
+			final String name, final Supplier<T> call) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		final Object job = ApiRateLimiter.getJob();
+		StackStatusPoller.scheduler().execute(() -> attempt(result, job, operation, region, name, call, 0, base));
+		return result;
+	}
+
+	private <T> void attempt(final CompletableFuture<T> result, final Object job, final ApiRateLimiter.Operation operation,
+			final Region region, final String name, final Supplier<T> call, final int retry, final long delay) {
+		if (result.isDone()) {
+			return;
+		}
+		Object previous = ApiRateLimiter.setJob(job);
+		try {
+			result.complete(call.get());
+		} catch (RateLimitedException e) {
+			StackStatusPoller.scheduler().schedule(() -> attempt(result, job, operation, region, name, call, retry, delay),
+					e.getDelayMillis(), TimeUnit.MILLISECONDS);
+		} catch (AmazonClientException e) {
+			if (retry >= getMaxRetries(operation) || !isRetryable(e)) {
+				result.completeExceptionally(e);
+				return;
+			}
+			final long next = nextDelay(delay);
+			StackMetrics.get().retried(region, name);
+			LOGGER.fine("Retrying " + name + " in " + next + " ms after: " + e.getMessage());
+			StackStatusPoller.scheduler().schedule(() -> attempt(result, job, operation, region, name, call, retry + 1, next),
+					next, TimeUnit.MILLISECONDS);
+		} catch (RuntimeException e) {
+			result.completeExceptionally(e);
+		} finally {
+			ApiRateLimiter.setJob(previous);
+		}
+	}
+
+	/**
+	 * @return a random delay between the base and three times the previous
+	 * delay, capped.
+	 */
+	long nextDelay(long previous) {
+		long upper = Math.max(base + 1, previous * 3);
+		return Math.min(cap, ThreadLocalRandom.current().nextLong(base, upper));
+	}
+
+	static boolean isRetryable(AmazonClientException e) {
+		if (e instanceof AbortedException) {
+			return false;
+		}
+		if (e instanceof AmazonServiceException) {
+			return RetryUtils.isThrottlingException(e) || RetryUtils.isRetryableServiceException(e);
+		}
+		return e.getCause() instanceof IOException;
+	}
+
+	/**
+	 * Gives a mutating request an idempotency token unless it already has one.
+	 */
+	static void withToken(Object request) {
+		String token = UUID.randomUUID().toString();
+		if (request instanceof CreateStackRequest && ((CreateStackRequest) request).getClientRequestToken() == null) {
+			((CreateStackRequest) request).setClientRequestToken(token);
+		} else if (request instanceof UpdateStackRequest && ((UpdateStackRequest) request).getClientRequestToken() == null) {
+			((UpdateStackRequest) request).setClientRequestToken(token);
+		} else if (request instanceof DeleteStackRequest && ((DeleteStackRequest) request).getClientRequestToken() == null) {
+			((DeleteStackRequest) request).setClientRequestToken(token);
+		} else if (request instanceof ExecuteChangeSetRequest && ((ExecuteChangeSetRequest) request).getClientRequestToken() == null) {
+			((ExecuteChangeSetRequest) request).setClientRequestToken(token);
+		} else if (request instanceof CreateChangeSetRequest && ((CreateChangeSetRequest) request).getClientToken() == null) {
+			((CreateChangeSetRequest) request).setClientToken(token);
+		}
+	}
+
+	private static Object call(AmazonCloudFormation client, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(client, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static void sleep(long delay) {
+		try {
+			TimeUnit.MILLISECONDS.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AbortedException("Interrupted waiting to retry a CloudFormation call", e);
+		}
+	}
+
+}
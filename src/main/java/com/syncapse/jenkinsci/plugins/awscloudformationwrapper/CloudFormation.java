@@ -4,6 +4,7 @@
 package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
 
 import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -11,37 +12,40 @@ import java.util.Map;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
-import com.amazonaws.ClientConfiguration;
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.retry.RetryUtils;
 import com.amazonaws.services.cloudformation.AmazonCloudFormation;
-import com.amazonaws.services.cloudformation.AmazonCloudFormationAsyncClientBuilder;
+import com.amazonaws.services.cloudformation.model.Change;
+import com.amazonaws.services.cloudformation.model.ChangeSetStatus;
+import com.amazonaws.services.cloudformation.model.ChangeSetType;
+import com.amazonaws.services.cloudformation.model.CreateChangeSetRequest;
 import com.amazonaws.services.cloudformation.model.CreateStackRequest;
+import com.amazonaws.services.cloudformation.model.DeleteChangeSetRequest;
 import com.amazonaws.services.cloudformation.model.DeleteStackRequest;
-import com.amazonaws.services.cloudformation.model.DescribeStackEventsRequest;
-import com.amazonaws.services.cloudformation.model.DescribeStackEventsResult;
+import com.amazonaws.services.cloudformation.model.DeleteStackResult;
+import com.amazonaws.services.cloudformation.model.DescribeChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.DescribeChangeSetResult;
 import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
 import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
-import com.amazonaws.services.cloudformation.model.ListStacksRequest;
-import com.amazonaws.services.cloudformation.model.ListStacksResult;
+import com.amazonaws.services.cloudformation.model.ExecuteChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.ExecuteChangeSetResult;
 import com.amazonaws.services.cloudformation.model.Output;
 import com.amazonaws.services.cloudformation.model.Parameter;
+import com.amazonaws.services.cloudformation.model.ResourceChange;
 import com.amazonaws.services.cloudformation.model.Stack;
-import com.amazonaws.services.cloudformation.model.StackEvent;
 import com.amazonaws.services.cloudformation.model.StackStatus;
 import com.amazonaws.services.cloudformation.model.StackSummary;
 import com.amazonaws.services.cloudformation.model.UpdateStackRequest;
+import com.amazonaws.services.s3.AmazonS3;
 import com.google.common.collect.Lists;
 import hudson.EnvVars;
-import hudson.ProxyConfiguration;
-import hudson.model.Hudson;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Class for interacting with CloudFormation stacks, including creating them,
@@ -50,14 +54,29 @@ import java.util.concurrent.TimeUnit;
  * @author erickdovale
  *
  */
-public class CloudFormation {
+public class CloudFormation implements Cloneable {
 
     private static final int COMPLETE_OPERATION_WAITING_TIME_MS = 10000;
+    private static final int CHANGE_SET_WAITING_TIME_MS = 2000;
     /**
      * Minimum time to wait before considering the creation of the stack a
      * failure. Default value is 5 minutes. (300 seconds)
      */
     public static final long MIN_TIMEOUT = 300;
+
+    /**
+     * Most deletions issued per second when tearing down several stacks with
+     * a prefix. Default value is 2.
+     */
+    static final double DELETES_PER_SECOND = Double.parseDouble(
+            System.getProperty(CloudFormation.class.getName() + ".deletesPerSecond", "2"));
+
+    /**
+     * Statuses of the stacks a prefix can select for deletion.
+     */
+    static final List<String> RUNNING_STATUSES = Collections.unmodifiableList(Arrays.asList(
+            StackStatus.UPDATE_COMPLETE.toString(), StackStatus.CREATE_COMPLETE.toString(),
+            StackStatus.ROLLBACK_COMPLETE.toString()));
     private String stackName;
     private Boolean isRecipeURL;
     private String recipe;
@@ -66,13 +85,25 @@ public class CloudFormation {
     private String awsAccessKey;
     private String awsSecretKey;
     private PrintStream logger;
-    private AmazonCloudFormation amazonClient;
     private boolean autoDeleteStack;
     private EnvVars envVars;
     private Region awsRegion;
     private Boolean isPrefixSelected;
     private Map<String, String> outputs;
     private long sleep=0;
+    private boolean useChangeSet;
+    private String templateBucket;
+    private String stagedTemplateURL;
+    private int maxStacksToDelete;
+    private int olderThanHours;
+    private volatile StackWaiter waiter;
+    private StackOperation inFlight;
+    private int poolMinSize;
+    private int poolMaxSize;
+    private int poolIdleMinutes;
+    private volatile CompletableFuture<StackPool.Lease> leasing;
+    private volatile StackPool.Lease lease;
+    private boolean isPooled;
 
     /**
      * @param logger a logger to write progress information.
@@ -108,7 +139,6 @@ public class CloudFormation {
         } else {
             this.timeout = timeout > MIN_TIMEOUT ? timeout : MIN_TIMEOUT;
         }
-        this.amazonClient = getAWSClient();
         this.autoDeleteStack = autoDeleteStack;
         this.envVars = envVars;
 
@@ -132,7 +162,6 @@ public class CloudFormation {
         } else {
             this.timeout = timeout > MIN_TIMEOUT ? timeout : MIN_TIMEOUT;
         }
-        this.amazonClient = getAWSClient();
         this.autoDeleteStack = false;
         this.envVars = envVars;
         this.sleep=sleep;
@@ -154,24 +183,275 @@ public class CloudFormation {
      * the job, or false if it should not be automatically deleted.
      */
     public boolean getAutoDeleteStack() {
-        return autoDeleteStack;
+        // A leased stack always goes back to the pool.
+        return autoDeleteStack || lease != null;
     }
 
+    /**
+     * @param useChangeSet true to update existing stacks through a change set
+     * instead of calling UpdateStack directly.
+     */
+    public void setUseChangeSet(boolean useChangeSet) {
+        this.useChangeSet = useChangeSet;
+    }
+
+    /**
+     * @param templateBucket the S3 bucket to stage templates in and pass them
+     * to CloudFormation by URL, or null to pass them inline.
+     */
+    public void setTemplateBucket(String templateBucket) {
+        this.templateBucket = templateBucket;
+    }
+
+    /**
+     * Makes a prefix delete every matching stack selected by the given limits,
+     * instead of just the oldest one. Either limit may be 0 for none; with
+     * both 0, only the oldest stack is deleted.
+     *
+     * @param maxStacksToDelete how many of the oldest matching stacks to
+     * delete.
+     * @param olderThanHours only delete stacks created longer ago than this.
+     */
+    public void setPrefixTeardown(int maxStacksToDelete, int olderThanHours) {
+        this.maxStacksToDelete = maxStacksToDelete;
+        this.olderThanHours = olderThanHours;
+    }
+
+    /**
+     * Leases the stack from a {@link StackPool} of identical stacks kept
+     * warm, instead of creating it, and hands it back instead of deleting it.
+     *
+     * @param minSize the number of stacks to keep ready.
+     * @param maxSize the most stacks the pool may have; 0 to not pool the
+     * stack.
+     * @param idleMinutes time after which a ready stack nobody leased is
+     * deleted; 0 to keep it.
+     */
+    public void setPool(int minSize, int maxSize, int idleMinutes) {
+        this.poolMinSize = minSize;
+        this.poolMaxSize = maxSize;
+        this.poolIdleMinutes = idleMinutes;
+    }
+
+    /**
+     * @param inFlight where to keep track of the operation being waited on,
+     * so that the wait can be resumed with {@link #resume}.
+     */
+    public void setInFlight(StackOperation inFlight) {
+        this.inFlight = inFlight;
+    }
+
+    /**
+     * Waits for an operation issued before a restart, picking up the stack's
+     * events after the last one printed.
+     *
+     * @return a future completed like the one of the original operation.
+     */
+    public CompletableFuture<Boolean> resume(StackOperation operation) {
+        this.inFlight = operation;
+        if (StackOperation.DELETE_PREFIX.equals(operation.getOperation())) {
+            logger.println("Can not resume deleting the stacks with prefix: " + getExpandedStackName()
+                    + "; the deletions issued before the restart carry on in AWS.");
+            return CompletableFuture.completedFuture(false);
+        }
+        logger.println("Resuming the wait for " + operation.getOperation() + " of Cloud Formation stack: "
+                + getExpandedStackName() + ", started " + new Date(operation.getStartTime()));
+        StackEventTail events = new StackEventTail(logger, operation.getStackId(), operation.getLastEventId());
+        if ("delete".equals(operation.getOperation())) {
+            waiter = newDeletionWaiter(getExpandedStackName(), operation.getStackId(), events,
+                    StackDurationHistory.key("delete", getExpandedStackName(), null));
+            waiter.setStartTime(operation.getStartTime());
+            return waiter.start().thenApply(deleted(getExpandedStackName()));
+        }
+        return waitForStack(events, StackDurationHistory.key(operation.getOperation(), getExpandedStackName(), recipe));
+    }
+
+    /**
+     * Deletes the stack and waits for the deletion to finish.
+     *
+     * @return true if the stack was deleted, false if the deletion failed or
+     * the calling thread was interrupted while waiting.
+     */
     public boolean delete() {
+        try {
+            return StackWaiter.await(deleteAsync(), waiter);
+        } catch (InterruptedException e) {
+            interrupted();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Issues the deletion and returns straight away; waiting happens in the
+     * background.
+     *
+     * @return a future completed with true once the stack is gone, or false if
+     * the deletion failed.
+     */
+    public CompletableFuture<Boolean> deleteAsync() {
+        if (lease != null) {
+            logger.println("Returning Cloud Formation stack " + lease.getStackName() + " to the pool");
+            lease.release();
+            return CompletableFuture.completedFuture(true);
+        }
+        if (isPrefixSelected && (maxStacksToDelete > 0 || olderThanHours > 0)) {
+            return deleteAllWithPrefix();
+        }
         if (isPrefixSelected) {
-            stackName = getOldestStackNameWithPrefix();
+            String oldest = getOldestStackNameWithPrefix();
+            if (oldest == null) {
+                logger.println("No Cloud Formation stack with prefix: " + getExpandedStackName() + ", nothing to delete.");
+                return CompletableFuture.completedFuture(true);
+            }
+            stackName = oldest;
         }
         logger.println("Deleting Cloud Formation stack: " + getExpandedStackName());
+
+        // Track the stack by its ARN: a deleted stack can still be described
+        // by ARN, and it can't be confused with a new stack of the same name.
+        Stack stack = describeStack(getExpandedStackName());
+        if (stack == null) {
+            StackSummaryCache.get().stackDeleted(getAWSClient(), getExpandedStackName());
+            logger.println("Cloud Formation stack: " + getExpandedStackName() + " does not exist, nothing to delete.");
+            return CompletableFuture.completedFuture(true);
+        }
+        final String stackId = stack.getStackId();
+        StackSummaryCache.get().stackDeleted(getAWSClient(), stackId);
+        StackEventTail events = new StackEventTail(logger, stackId);
+        events.mark(getAWSClient());
+
         DeleteStackRequest deleteStackRequest = new DeleteStackRequest();
-        deleteStackRequest.withStackName(getExpandedStackName());
-        amazonClient.deleteStack(deleteStackRequest);
-        boolean result = waitForStackToBeDeleted();
+        deleteStackRequest.withStackName(stackId);
+        getAWSClient().deleteStack(deleteStackRequest);
+        if (inFlight != null) {
+            inFlight.started(stackId, "delete", System.currentTimeMillis(), events.getLastEventId());
+        }
+
+        StackDurationHistory.Key history = StackDurationHistory.key("delete", getExpandedStackName(), null);
+        printExpectations(history, 0);
+        waiter = newDeletionWaiter(getExpandedStackName(), stackId, events, history);
+        return waiter.start().thenApply(deleted(getExpandedStackName()));
+    }
+
+    /**
+     * Deletes the stacks selected by {@link #setPrefixTeardown}. Deletions
+     * are issued in the background at most {@link #DELETES_PER_SECOND} a
+     * second, and since their waiters share a client the
+     * {@link StackStatusPoller} checks on all of them with one sweep.
+     *
+     * @return a future completed with true once every stack is gone, or false
+     * if any deletion failed.
+     */
+    private CompletableFuture<Boolean> deleteAllWithPrefix() {
+        Date createdBefore = olderThanHours > 0
+                ? new Date(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(olderThanHours)) : null;
+        List<StackSummary> stacks = StackSummaryIterator.oldestWithPrefix(
+                StackSummaryCache.get().getRunningStacks(getAWSClient()).iterator(), getExpandedStackName(),
+                maxStacksToDelete, createdBefore);
+        if (stacks.isEmpty()) {
+            logger.println("No Cloud Formation stack with prefix: " + getExpandedStackName() + ", nothing to delete.");
+            return CompletableFuture.completedFuture(true);
+        }
+        logger.println("Deleting " + stacks.size() + " Cloud Formation stacks with prefix: " + getExpandedStackName());
+        if (inFlight != null) {
+            inFlight.started(null, StackOperation.DELETE_PREFIX, System.currentTimeMillis(), null);
+        }
+
+        final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+        final List<StackWaiter> waiters = Collections.synchronizedList(new ArrayList<StackWaiter>());
+        final List<CompletableFuture<Boolean>> deletions = new ArrayList<CompletableFuture<Boolean>>();
+        long spacing = (long) (1000 / DELETES_PER_SECOND);
+        for (int i = 0; i < stacks.size(); i++) {
+            final StackSummary summary = stacks.get(i);
+            deletions.add(StackWaiter.delay(i * spacing, TimeUnit.MILLISECONDS).thenCompose(
+                    new Function<Void, CompletableFuture<Boolean>>() {
+                        public CompletableFuture<Boolean> apply(Void ignored) {
+                            if (result.isDone()) {
+                                return CompletableFuture.completedFuture(false);
+                            }
+                            return deletePrefixedStack(summary, waiters);
+                        }
+                    }));
+        }
 
-        logger.println("Cloud Formation stack: " + getExpandedStackName()
-                + (result ? " deleted successfully" : " failed deleting."));
+        // Not thenRun: a deletion that threw would leave the result pending.
+        CompletableFuture.allOf(deletions.toArray(new CompletableFuture[0])).whenComplete((ignored, e) -> {
+            int failed = 0;
+            for (int i = 0; i < deletions.size(); i++) {
+                boolean deleted;
+                try {
+                    deleted = deletions.get(i).join();
+                } catch (CompletionException | CancellationException t) {
+                    Throwable cause = t.getCause() != null ? t.getCause() : t;
+                    logger.println("ERROR deleting stack with name " + stacks.get(i).getStackName() + ": " + cause.getMessage());
+                    deleted = false;
+                }
+                if (!deleted) {
+                    failed++;
+                }
+            }
+            logger.println("Deleted " + (deletions.size() - failed) + " of " + deletions.size()
+                    + " Cloud Formation stacks with prefix: " + getExpandedStackName());
+            result.complete(failed == 0);
+        });
+        result.whenComplete((deleted, e) -> {
+            if (result.isCancelled()) {
+                synchronized (waiters) {
+                    for (StackWaiter stackWaiter : waiters) {
+                        stackWaiter.cancel();
+                    }
+                }
+            }
+        });
         return result;
     }
 
+    /**
+     * Issues the deletion of one of the stacks matching a prefix.
+     *
+     * @return a future completed with true once the stack is gone.
+     */
+    private CompletableFuture<Boolean> deletePrefixedStack(StackSummary summary, final List<StackWaiter> waiters) {
+        final String stackId = summary.getStackId();
+        final String name = summary.getStackName();
+        StackSummaryCache.get().stackDeleted(getAWSClient(), stackId);
+        // Called on the scheduler, so the call is retried without blocking it.
+        final DeleteStackRequest request = new DeleteStackRequest().withStackName(stackId);
+        CompletableFuture<DeleteStackResult> issued = callAsync(ApiRateLimiter.Operation.MUTATE, "deleteStack",
+                () -> getAWSClient().deleteStack(request));
+        return issued.handle((ignored, t) -> t).thenCompose(new Function<Throwable, CompletableFuture<Boolean>>() {
+            public CompletableFuture<Boolean> apply(Throwable t) {
+                if (t != null) {
+                    logger.println("ERROR deleting stack with name " + name + ": " + t.getMessage());
+                    return CompletableFuture.completedFuture(false);
+                }
+                StackWaiter stackWaiter = newDeletionWaiter(name, stackId, null,
+                        StackDurationHistory.key("delete", name, null));
+                waiters.add(stackWaiter);
+                return stackWaiter.start().thenApply(deleted(name));
+            }
+        }).exceptionally(new Function<Throwable, Boolean>() {
+            public Boolean apply(Throwable t) {
+                Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                logger.println("Cloud Formation stack: " + name + " failed deleting: " + cause.getMessage());
+                return false;
+            }
+        });
+    }
+
+    private Function<Stack, Boolean> deleted(final String name) {
+        return new Function<Stack, Boolean>() {
+            public Boolean apply(Stack stack) {
+                boolean result = stack == null
+                        || StackStatus.DELETE_COMPLETE == getStackStatus(stack.getStackStatus());
+                logger.println("Cloud Formation stack: " + name
+                        + (result ? " deleted successfully" : " failed deleting."));
+                return result;
+            }
+        };
+    }
+
     /**
      * @return True of the stack was created successfully. False otherwise.
      *
@@ -180,15 +460,37 @@ public class CloudFormation {
      *
      */
     public boolean create() throws TimeoutException, InterruptedException {
+        try {
+            return StackWaiter.await(createAsync(), waiter);
+        } catch (InterruptedException e) {
+            interrupted();
+            throw e;
+        }
+    }
+
+    /**
+     * Issues the creation or update and returns straight away; waiting happens
+     * in the background.
+     *
+     * @return a future completed with true if the stack was created or updated
+     * successfully and false otherwise, or completed exceptionally with a
+     * {@link TimeoutException}.
+     */
+    public CompletableFuture<Boolean> createAsync() {
+        if (poolMaxSize > 0 && lease == null) {
+            return leaseFromPool();
+        }
 
         logger.println("Determining to create or update Cloud Formation stack: " + getExpandedStackName());
 
         Stack stack = null;
+        StackEventTail events;
+        StackDurationHistory.Key history;
 
         try {
             try {
                 DescribeStacksRequest describeStacksRequest = new DescribeStacksRequest().withStackName(getExpandedStackName());
-                stack = getStack(amazonClient.describeStacks(describeStacksRequest));
+                stack = getStack(getAWSClient().describeStacks(describeStacksRequest));
             } catch (AmazonServiceException e) {
                 logger.println("Stack not found: " + getExpandedStackName() + ". Reason: " + detailedError(e));
             } catch (AmazonClientException e) {
@@ -198,42 +500,269 @@ public class CloudFormation {
             if(stack == null) {
                 logger.println("Creating Cloud Formation stack: " + getExpandedStackName());
                 CreateStackRequest request = createStackRequest();
-                amazonClient.createStack(request);
+                events = new StackEventTail(logger, getAWSClient().createStack(request).getStackId());
+                history = StackDurationHistory.key("create", getExpandedStackName(), recipe);
             }
             else {
                 logger.println("Updating Cloud Formation stack: " + getExpandedStackName());
-                UpdateStackRequest updateRequest = updateStackRequest();
-                amazonClient.updateStack(updateRequest);
+                Map<String, String> deployed = getDeployedOutputs(stack);
+                if (deployed != null) {
+                    logger.println("Stack " + getExpandedStackName() + " is already deployed with this template and these parameters, skipping the update.");
+                    this.outputs = deployed;
+                    return CompletableFuture.completedFuture(true);
+                }
+                events = new StackEventTail(logger, stack.getStackId());
+                events.mark(getAWSClient());
+                history = StackDurationHistory.key("update", getExpandedStackName(), recipe);
+                if (useChangeSet) {
+                    return updateWithChangeSet(stack, events, history);
+                }
+                try {
+                    UpdateStackRequest updateRequest = updateStackRequest(stack);
+                    getAWSClient().updateStack(updateRequest);
+                } catch (AmazonServiceException e) {
+                    if (isNoUpdates(e.getErrorMessage())) {
+                        return CompletableFuture.completedFuture(unchanged(stack));
+                    }
+                    throw e;
+                }
             }
+        } catch (AmazonClientException e) {
+            return CompletableFuture.completedFuture(createFailed(e));
+        }
+
+        return waitForStack(events, history);
 
+    }
 
-            stack = waitForStackToBeCreated();
+    private CompletableFuture<Boolean> leaseFromPool() {
+        logger.println("Leasing a Cloud Formation stack from the pool for: " + getExpandedStackName());
+        leasing = StackPool.get().lease(this, poolMinSize, poolMaxSize, TimeUnit.MINUTES.toMillis(poolIdleMinutes));
+        return leasing.thenApply(new Function<StackPool.Lease, Boolean>() {
+            public Boolean apply(StackPool.Lease leased) {
+                lease = leased;
+                outputs = leased.getOutputs();
+                logger.println("Leased Cloud Formation stack " + leased.getStackName() + " for: " + getExpandedStackName());
+                return true;
+            }
+        }).exceptionally(new Function<Throwable, Boolean>() {
+            public Boolean apply(Throwable t) {
+                Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                logger.println("Failed to lease a Cloud Formation stack for: " + getExpandedStackName() + ". Reason: " + cause.getMessage());
+                return false;
+            }
+        });
+    }
 
-            StackStatus status = getStackStatus(stack.getStackStatus());
+    private CompletableFuture<Boolean> waitForStack(StackEventTail events, StackDurationHistory.Key history) {
+        if (inFlight != null && !inFlight.isStarted()) {
+            inFlight.started(events.getStackNameOrId(), history.getOperation(), System.currentTimeMillis(),
+                    events.getLastEventId());
+        }
+        printExpectations(history, timeout);
+        return whenFailed(waitForStackToBeCreated(events, history).thenCompose(new Function<Stack, CompletableFuture<Boolean>>() {
+            public CompletableFuture<Boolean> apply(Stack stack) {
+                return stackCreated(stack);
+            }
+        }));
+    }
 
-            Map<String, String> stackOutput = new HashMap<String, String>();
-            if (isStackCreationSuccessful(status)) {
-                List<Output> outputs = stack.getOutputs();
-                for (Output output : outputs) {
-                    stackOutput.put(output.getOutputKey(), output.getOutputValue());
+    /**
+     * Reports an {@link AmazonClientException} ending the given future as a
+     * failed creation.
+     */
+    private CompletableFuture<Boolean> whenFailed(CompletableFuture<Boolean> future) {
+        return future.exceptionally(new Function<Throwable, Boolean>() {
+            public Boolean apply(Throwable t) {
+                Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                if (cause instanceof AmazonClientException) {
+                    return createFailed((AmazonClientException) cause);
                 }
+                throw t instanceof CompletionException ? (CompletionException) t : new CompletionException(cause);
+            }
+        });
+    }
 
-                logger.println("Successfully created stack: " + getExpandedStackName());
-                this.outputs = stackOutput;
-                Thread.sleep(TimeUnit.SECONDS.toMillis(sleep));
-                return true;
-            } else {
-                logger.println("Failed to create stack: " + getExpandedStackName() + ". Reason: " + stack.getStackStatusReason());
-                return false;
+    /**
+     * Updates the stack through a change set, so that an update with nothing
+     * to change finishes as soon as the change set is found to be empty.
+     */
+    private CompletableFuture<Boolean> updateWithChangeSet(final Stack stack, final StackEventTail events,
+            final StackDurationHistory.Key history) {
+        final String changeSetId = getAWSClient().createChangeSet(createChangeSetRequest(stack)).getId();
+        return whenFailed(waitForChangeSet(changeSetId).thenCompose(new Function<DescribeChangeSetResult, CompletableFuture<Boolean>>() {
+            public CompletableFuture<Boolean> apply(DescribeChangeSetResult changeSet) {
+                // Called on the scheduler, so calls are retried without blocking it.
+                if (isNoUpdates(changeSet.getStatusReason())) {
+                    final DeleteChangeSetRequest request = new DeleteChangeSetRequest().withChangeSetName(changeSetId);
+                    callAsync(ApiRateLimiter.Operation.MUTATE, "deleteChangeSet",
+                            () -> getAWSClient().deleteChangeSet(request)).whenComplete((deleted, t) -> {
+                                if (t != null) {
+                                    logger.println("Failed to delete empty change set " + changeSetId + ": " + t.getMessage());
+                                }
+                            });
+                    return CompletableFuture.completedFuture(unchanged(stack));
+                }
+                if (!ChangeSetStatus.CREATE_COMPLETE.toString().equals(changeSet.getStatus())) {
+                    logger.println("Failed to create change set for stack: " + getExpandedStackName() + ". Reason: " + changeSet.getStatusReason());
+                    return CompletableFuture.completedFuture(false);
+                }
+                for (Change change : changeSet.getChanges()) {
+                    ResourceChange resource = change.getResourceChange();
+                    logger.println(resource.getAction() + " " + resource.getLogicalResourceId() + " - " + resource.getResourceType()
+                            + (resource.getReplacement() != null ? " - replacement: " + resource.getReplacement() : ""));
+                }
+                if (changeSet.getNextToken() != null) {
+                    logger.println("...");
+                }
+                final ExecuteChangeSetRequest request = new ExecuteChangeSetRequest().withChangeSetName(changeSetId);
+                return callAsync(ApiRateLimiter.Operation.MUTATE, "executeChangeSet",
+                        () -> getAWSClient().executeChangeSet(request)).thenCompose(
+                        new Function<ExecuteChangeSetResult, CompletableFuture<Boolean>>() {
+                            public CompletableFuture<Boolean> apply(ExecuteChangeSetResult executed) {
+                                return waitForStack(events, history);
+                            }
+                        });
             }
-        } catch (AmazonServiceException e) {
-            logger.println("Failed to create stack: " + getExpandedStackName() + ". Reason: " + detailedError(e));
-            return false;
-        } catch (AmazonClientException e) {
+        }));
+    }
+
+    /**
+     * Describes the change set on the scheduler until it is created.
+     */
+    private CompletableFuture<DescribeChangeSetResult> waitForChangeSet(final String changeSetId) {
+        final DescribeChangeSetRequest request = new DescribeChangeSetRequest().withChangeSetName(changeSetId);
+        return callAsync(ApiRateLimiter.Operation.DESCRIBE, "describeChangeSet",
+                () -> getAWSClient().describeChangeSet(request)).thenCompose(
+                new Function<DescribeChangeSetResult, CompletableFuture<DescribeChangeSetResult>>() {
+                    public CompletableFuture<DescribeChangeSetResult> apply(DescribeChangeSetResult changeSet) {
+                        String status = changeSet.getStatus();
+                        if (!ChangeSetStatus.CREATE_PENDING.toString().equals(status)
+                                && !ChangeSetStatus.CREATE_IN_PROGRESS.toString().equals(status)) {
+                            return CompletableFuture.completedFuture(changeSet);
+                        }
+                        long wait = timeout == 0 ? 0 : CHANGE_SET_WAITING_TIME_MS;
+                        return StackWaiter.delay(wait, TimeUnit.MILLISECONDS).thenCompose(
+                                new Function<Void, CompletableFuture<DescribeChangeSetResult>>() {
+                                    public CompletableFuture<DescribeChangeSetResult> apply(Void ignored) {
+                                        return waitForChangeSet(changeSetId);
+                                    }
+                                });
+                    }
+                });
+    }
+
+    /**
+     * @return true if the message says the stack already matches the
+     * template and parameters, either from UpdateStack or from an empty
+     * change set.
+     */
+    static boolean isNoUpdates(String message) {
+        return message != null && (message.contains("No updates are to be performed")
+                || message.contains("didn't contain changes"));
+    }
+
+    /**
+     * Finishes an update that had nothing to change, using the stack's
+     * current outputs.
+     */
+    private boolean unchanged(Stack stack) {
+        deployed(stack);
+        logger.println("No changes to stack: " + getExpandedStackName() + ", using its current outputs.");
+        return true;
+    }
+
+    private CompletableFuture<Boolean> stackCreated(Stack stack) {
+        StackStatus status = getStackStatus(stack.getStackStatus());
+
+        if (isStackCreationSuccessful(status)) {
+            deployed(stack);
+            logger.println("Successfully created stack: " + getExpandedStackName());
+            return StackWaiter.delay(sleep, TimeUnit.SECONDS).thenApply(new Function<Void, Boolean>() {
+                public Boolean apply(Void ignored) {
+                    return true;
+                }
+            });
+        } else {
+            logger.println("Failed to create stack: " + getExpandedStackName() + ". Reason: " + stack.getStackStatusReason());
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    /**
+     * Takes the outputs of a successfully deployed stack.
+     */
+    private void deployed(Stack stack) {
+        Map<String, String> stackOutput = new HashMap<String, String>();
+        for (Output output : stack.getOutputs()) {
+            stackOutput.put(output.getOutputKey(), output.getOutputValue());
+        }
+        this.outputs = stackOutput;
+        StackSummaryCache.get().stackDeployed(getAWSClient(), stack);
+    }
+
+    /**
+     * @return the outputs of the stack if it is already deployed with the
+     * current template and parameters, or null if it needs an update. Only the
+     * fingerprint tag of the stack as just described counts, so that an update
+     * made outside of Jenkins is never skipped.
+     */
+    private Map<String, String> getDeployedOutputs(Stack stack) {
+        String fingerprint = getFingerprint();
+        StackStatus status = getStackStatus(stack.getStackStatus());
+        if (fingerprint == null || (status != StackStatus.CREATE_COMPLETE && status != StackStatus.UPDATE_COMPLETE)) {
+            return null;
+        }
+        if (!fingerprint.equals(StackFingerprint.fromTags(stack.getTags()))) {
+            return null;
+        }
+        Map<String, String> deployed = new HashMap<String, String>();
+        for (Output output : stack.getOutputs()) {
+            deployed.put(output.getOutputKey(), output.getOutputValue());
+        }
+        return deployed;
+    }
+
+    /**
+     * @return the fingerprint of the template and parameters, or null when the
+     * template is given by URL, since its content may change behind the same
+     * URL.
+     */
+    private String getFingerprint() {
+        return isRecipeURL ? null : StackFingerprint.of(recipe, parameters);
+    }
+
+    private boolean createFailed(AmazonClientException e) {
+        if (e instanceof AmazonServiceException) {
+            logger.println("Failed to create stack: " + getExpandedStackName() + ". Reason: " + detailedError((AmazonServiceException) e));
+        } else {
             logger.println("Failed to create stack: " + getExpandedStackName() + ". Error was: " + e.getCause());
-            return false;
         }
+        return false;
+    }
 
+    /**
+     * Stops waiting for the current operation. The stack is left as it is.
+     */
+    public void cancel() {
+        StackWaiter current = waiter;
+        if (current != null) {
+            current.cancel();
+        }
+        CompletableFuture<StackPool.Lease> pending = leasing;
+        if (pending != null && !pending.cancel(false)) {
+            // Leased all the same, hand it straight back.
+            pending.thenAccept(StackPool.Lease::release);
+        }
+    }
+
+    private void interrupted() {
+        cancel();
+        Stack stack = waiter != null ? waiter.getLastStack() : null;
+        if (stack != null) {
+            logger.println("Received an interruption signal. There is a stack created or in the proces of creation. Check in your amazon account to ensure you are not charged for this.");
+            logger.println("Stack details: " + stack);
+        }
     }
 
     private String detailedError(AmazonServiceException e) {
@@ -244,63 +773,118 @@ public class CloudFormation {
         return message.toString();
     }
 
+    /**
+     * @return the client to stage templates with.
+     */
+    protected AmazonS3 getS3Client() {
+        return CloudFormationClientRegistry.get().getS3Client(awsAccessKey, awsSecretKey, awsRegion);
+    }
+
+    /**
+     * @return the URL to pass the template by, staging it first if a bucket
+     * is set, or null to pass it inline.
+     */
+    private String getTemplateURL() {
+        if (isRecipeURL) {
+            return recipe;
+        }
+        if (templateBucket == null || templateBucket.isEmpty()) {
+            return null;
+        }
+        if (stagedTemplateURL == null) {
+            stagedTemplateURL = new TemplateStager(getS3Client(), templateBucket, logger).stage(recipe);
+        }
+        return stagedTemplateURL;
+    }
+
+    /**
+     * @return the client to talk to CloudFormation with. Clients are shared
+     * through the {@link CloudFormationClientRegistry}, so look it up on every
+     * call instead of keeping a reference around.
+     */
     protected AmazonCloudFormation getAWSClient() {
-        AWSCredentials credentials = new BasicAWSCredentials(this.awsAccessKey,
-                this.awsSecretKey);
-        AWSCredentialsProvider provider = new AWSStaticCredentialsProvider(credentials);
-        AmazonCloudFormationAsyncClientBuilder builder = AmazonCloudFormationAsyncClientBuilder.standard();
-        builder.withCredentials(provider);
-
-        Hudson hudson = Hudson.getInstance();
-        ProxyConfiguration proxyConfig = hudson != null ? hudson.proxy : null;
-        if (proxyConfig != null && proxyConfig.name != null) {
-           ClientConfiguration config = new ClientConfiguration();
-           config.setProxyHost(proxyConfig.name);
-           config.setProxyPort(proxyConfig.port);
-           config.setProxyUsername(proxyConfig.getUserName());
-           config.setProxyPassword(proxyConfig.getPassword());
-           config.setPreemptiveBasicProxyAuth(true);
-           builder.withClientConfiguration(config);
-        }
-
-        builder.setRegion(this.awsRegion.awsRegion);
-        return builder.build();
-    }
-
-    private boolean waitForStackToBeDeleted() {
-    	long startTime = System.currentTimeMillis();
-    	StackStatus status = StackStatus.DELETE_IN_PROGRESS;
-        int throttled = 0;
-        long subTime = startTime;
-        long lastTime = startTime;
-        Stack stack = null;
-        logger.println("Waiting for stack deletion, " + (getWaitBetweenAttempts(throttled) / 1000) + " seconds between checks");
-        while (isStackDeletionInProgress(status)) {
-        	subTime = System.currentTimeMillis();
-        	if (subTime - lastTime > 60000) {
-         	  logger.println("Stack status " + status + " for " + ((subTime - startTime) / 1000) + " seconds");
-        	  lastTime = subTime;
-        	}
-            try {
-              stack = getStack(amazonClient.describeStacks());
-
-              if (stack == null) {
-            	  status = StackStatus.DELETE_COMPLETE;
-              } else {
-            	  status = getStackStatus(stack.getStackStatus());
-              }
-
-            } catch (AmazonServiceException ase) {
-            	throttled++;
-                if (!RetryUtils.isThrottlingException(ase)) {
-                    throw ase;
+        return CloudFormationClientRegistry.get().getClient(awsAccessKey, awsSecretKey, awsRegion);
+    }
+
+    /**
+     * @param events the events to print while waiting, or null to print none.
+     */
+    private StackWaiter newDeletionWaiter(String name, final String stackId, final StackEventTail events,
+            final StackDurationHistory.Key history) {
+        final long expected = StackDurationHistory.get().getExpectedMillis(history);
+        StackWaiter waiter = new StackWaiter(logger, name, "deletion", StackStatus.DELETE_IN_PROGRESS, 0) {
+            @Override
+            protected AmazonCloudFormation getClient() {
+                return getAWSClient();
+            }
+
+            @Override
+            protected Stack poll() {
+                return describeStack(stackId);
+            }
+
+            @Override
+            protected StackStatus getStatus(Stack stack) {
+                return stack == null ? StackStatus.DELETE_COMPLETE : getStackStatus(stack.getStackStatus());
+            }
+
+            @Override
+            protected boolean isInProgress(StackStatus status) {
+                return isStackDeletionInProgress(status);
+            }
+
+            @Override
+            protected long getWaitBetweenAttempts(int throttled) {
+                return CloudFormation.this.getWaitBetweenAttempts(throttled, getElapsedMillis(), expected);
+            }
+
+            @Override
+            protected void stackPolled(Stack stack, boolean done) {
+                if (events != null) {
+                    events.printNewEvents(getAWSClient(), done);
+                    if (inFlight != null) {
+                        inFlight.eventsRead(events.getLastEventId());
+                    }
+                }
+                if (done) {
+                    StackMetrics.get().stackPolled(awsRegion, getPolls());
                 }
-                logger.println("Stack status request throttled; retrying with " + (getWaitBetweenAttempts(throttled) / 1000) + "seconds between checks");
+                if (done && getStatus(stack) == StackStatus.DELETE_COMPLETE) {
+                    stackSettled(history, getElapsedMillis(), events);
+                }
+            }
+        };
+        waiter.setStackId(stackId);
+        waiter.setJob(getJob());
+        return waiter;
+    }
+
+    /**
+     * Describes a single stack.
+     *
+     * @param stackNameOrId the stack name, or its id (ARN) to also find it
+     * once deleted.
+     * @return the stack, or null if it does not exist.
+     */
+    private Stack describeStack(String stackNameOrId) {
+        try {
+            DescribeStacksResult result = getAWSClient().describeStacks(
+                    new DescribeStacksRequest().withStackName(stackNameOrId));
+            return result.getStacks().isEmpty() ? null : result.getStacks().get(0);
+        } catch (AmazonServiceException e) {
+            if (isStackMissing(e)) {
+                return null;
             }
-            sleep(stack, throttled);
+            throw e;
         }
-        logger.println("Stack status " + status + " in " + ((subTime - startTime) / 1000) + " seconds");
-        return StackStatus.DELETE_COMPLETE == status;
+    }
+
+    /**
+     * @return true if the error says the stack being described doesn't exist.
+     */
+    static boolean isStackMissing(AmazonServiceException e) {
+        return "ValidationError".equals(e.getErrorCode())
+                && e.getErrorMessage() != null && e.getErrorMessage().contains("does not exist");
     }
 
     private List<Parameter> parameters(Map<String, String> parameters) {
@@ -320,69 +904,61 @@ public class CloudFormation {
         return result;
     }
 
-    private Stack waitForStackToBeCreated() throws TimeoutException {
-
-        DescribeStacksRequest describeStacksRequest = new DescribeStacksRequest().withStackName(getExpandedStackName());
-        StackStatus status = StackStatus.CREATE_IN_PROGRESS;
-        Stack stack = null;
-        long startTime = System.currentTimeMillis();
-        int throttled = 0;
-        long subTime = startTime;
-        long lastTime = startTime;
-        logger.println("Waiting for stack creation, " + (getWaitBetweenAttempts(throttled) / 1000) + " seconds between checks");
-        while (isStackCreationInProgress(status)) {
-        	subTime = System.currentTimeMillis();
-        	if (subTime - lastTime > 60000) {
-        		logger.println("Stack status " + status + " for " + ((subTime - startTime) / 1000) + " seconds");
-        		lastTime = subTime;
-        	}
-            try {
-                stack = getStack(amazonClient.describeStacks(describeStacksRequest));
-                status = getStackStatus(stack.getStackStatus());
-                if (isStackCreationInProgress(status)) {
-                    if (isTimeout(startTime)) {
-                        throw new TimeoutException("Timed out waiting for stack to be created. (timeout=" + timeout + ")");
-                    }
-                    sleep(stack, throttled);
-                }
-            } catch (AmazonServiceException ase) {
-            	throttled++;
-                if (!RetryUtils.isThrottlingException(ase)) {
-                    throw ase;
-                }
-                if (isTimeout(startTime)) {
-                    throw new TimeoutException("Timed out waiting for stack to be created. (timeout=" + timeout + ")");
-                }
-                logger.println("Stack status request throttled; retrying with " + (getWaitBetweenAttempts(throttled) / 1000) + "seconds between checks");
-                sleep(stack, throttled);
+    private CompletableFuture<Stack> waitForStackToBeCreated(final StackEventTail events, final StackDurationHistory.Key history) {
+        final DescribeStacksRequest describeStacksRequest = new DescribeStacksRequest().withStackName(getExpandedStackName());
+        final long expected = StackDurationHistory.get().getExpectedMillis(history);
+        waiter = new StackWaiter(logger, getExpandedStackName(), "creation", StackStatus.CREATE_IN_PROGRESS, timeout) {
+            @Override
+            protected AmazonCloudFormation getClient() {
+                return getAWSClient();
             }
-        }
-        logger.println("Stack status " + status + " in " + ((subTime - startTime) / 1000) + " seconds");
 
-        printStackEvents();
+            @Override
+            protected Stack poll() {
+                return getStack(getAWSClient().describeStacks(describeStacksRequest));
+            }
 
-        return stack;
-    }
+            @Override
+            protected StackStatus getStatus(Stack stack) {
+                return getStackStatus(stack.getStackStatus());
+            }
 
-    private void printStackEvents() {
-        DescribeStackEventsRequest r = new DescribeStackEventsRequest();
-        r.withStackName(getExpandedStackName());
-        DescribeStackEventsResult describeStackEvents = amazonClient.describeStackEvents(r);
+            @Override
+            protected boolean isInProgress(StackStatus status) {
+                return isStackCreationInProgress(status);
+            }
 
-        List<StackEvent> stackEvents = describeStackEvents.getStackEvents();
-        Collections.reverse(stackEvents);
+            @Override
+            protected long getWaitBetweenAttempts(int throttled) {
+                return CloudFormation.this.getWaitBetweenAttempts(throttled, getElapsedMillis(), expected);
+            }
 
-        for (StackEvent event : stackEvents) {
-            logger.println(event.getEventId() + " - " + event.getResourceType() + " - " + event.getResourceStatus() + " - " + event.getResourceStatusReason());
+            @Override
+            protected void stackPolled(Stack stack, boolean done) {
+                events.printNewEvents(getAWSClient(), done);
+                if (inFlight != null) {
+                    inFlight.eventsRead(events.getLastEventId());
+                }
+                if (done) {
+                    StackMetrics.get().stackPolled(awsRegion, getPolls());
+                }
+                if (done && isStackCreationSuccessful(getStatus(stack))) {
+                    stackSettled(history, getElapsedMillis(), events);
+                }
+            }
+        };
+        if (inFlight != null && inFlight.isStarted()) {
+            waiter.setStartTime(inFlight.getStartTime());
         }
-
+        waiter.setJob(getJob());
+        return waiter.start();
     }
 
-    private boolean isTimeout(long startTime) {
-        return timeout == 0 ? false : (System.currentTimeMillis() - startTime) > (timeout * 1000);
-    }
-
-    private Stack getStack(DescribeStacksResult result) {
+    /**
+     * @return the stack named like this one in the result, or null.
+     * Package-private for the benchmarks, as is {@link #getExpandedStackName()}.
+     */
+    Stack getStack(DescribeStacksResult result) {
         for (Stack aStack : result.getStacks()) {
             if (getExpandedStackName().equals(aStack.getStackName())) {
                 return aStack;
@@ -393,26 +969,53 @@ public class CloudFormation {
 
     }
 
+    /**
+     * Tells how long the operation usually takes, and warns if the timeout
+     * would cut it short.
+     */
+    private void printExpectations(StackDurationHistory.Key history, long timeout) {
+        StackDurationHistory.Stats stats = StackDurationHistory.get().getStats(history);
+        if (stats == null) {
+            return;
+        }
+        logger.println("Stack " + history.getOperation() + " usually takes " + (stats.getP50() / 1000)
+                + " seconds (p95 " + (stats.getP95() / 1000) + " seconds over " + stats.getCount()
+                + " runs), expected to finish around " + new Date(System.currentTimeMillis() + stats.getP50()));
+        if (timeout > 0 && timeout * 1000 < stats.getP95()) {
+            logger.println("WARNING: the timeout of " + timeout + " seconds is below the p95 of "
+                    + (stats.getP95() / 1000) + " seconds for this stack; consider raising it.");
+        }
+    }
+
+    private void stackSettled(StackDurationHistory.Key history, long elapsed, StackEventTail events) {
+        Map<String, Long> resources = events != null ? events.getResourceDurations() : new HashMap<String, Long>();
+        StackDurationHistory.get().record(history, elapsed, resources);
+        StackMetrics.get().stackSettled(awsRegion, history.getOperation(), elapsed);
+        List<Map.Entry<String, Long>> slowest = new ArrayList<Map.Entry<String, Long>>(resources.entrySet());
+        slowest.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        StringBuilder message = new StringBuilder();
+        for (Map.Entry<String, Long> resource : slowest.subList(0, Math.min(3, slowest.size()))) {
+            message.append(message.length() == 0 ? "Slowest resources: " : ", ")
+                    .append(resource.getKey()).append(" (").append(resource.getValue() / 1000).append(" seconds)");
+        }
+        if (message.length() > 0) {
+            logger.println(message);
+        }
+    }
+
     private boolean isStackCreationSuccessful(StackStatus status) {
         return status == StackStatus.CREATE_COMPLETE || status == StackStatus.UPDATE_COMPLETE || status == StackStatus.UPDATE_COMPLETE_CLEANUP_IN_PROGRESS;
     }
 
-    private long getWaitBetweenAttempts (int throttled) {
+    /**
+     * @param expected the expected duration, looked up once when the wait
+     * starts rather than on every poll.
+     */
+    private long getWaitBetweenAttempts(int throttled, long elapsed, long expected) {
         if (timeout == 0) {
             return 0;
         } else {
-            return (long) Math.min(Math.pow(2, throttled) * 5000L, 60000);
-        }
-    }
-
-    private void sleep(Stack stack, int throttled) {
-        try {
-            Thread.sleep(getWaitBetweenAttempts(throttled));
-        } catch (InterruptedException e) {
-            if (stack != null) {
-                logger.println("Received an interruption signal. There is a stack created or in the proces of creation. Check in your amazon account to ensure you are not charged for this.");
-                logger.println("Stack details: " + stack);
-            }
+            return PollInterval.next(elapsed, expected, throttled);
         }
     }
 
@@ -434,82 +1037,191 @@ public class CloudFormation {
         CreateStackRequest r = new CreateStackRequest();
         r.withStackName(getExpandedStackName());
         r.withParameters(parameters);
-        if (isRecipeURL) {
-            r.withTemplateURL(recipe);
+        String templateURL = getTemplateURL();
+        if (templateURL != null) {
+            r.withTemplateURL(templateURL);
+        } else {
+            r.withTemplateBody(recipe);
+        }
+        r.withCapabilities("CAPABILITY_IAM");
+        // Pooled stacks are tagged even with a template URL, for a restarted
+        // pool to tell its stacks.
+        String fingerprint = isPooled ? getPoolFingerprint() : getFingerprint();
+        if (fingerprint != null) {
+            r.withTags(StackFingerprint.withTag(null, fingerprint));
+        }
+
+        return r;
+    }
+
+    private CreateChangeSetRequest createChangeSetRequest(Stack stack) {
+        CreateChangeSetRequest r = new CreateChangeSetRequest();
+        r.withStackName(getExpandedStackName());
+        r.withChangeSetName("jenkins-" + System.currentTimeMillis());
+        r.withChangeSetType(ChangeSetType.UPDATE);
+        r.withParameters(parameters);
+        String templateURL = getTemplateURL();
+        if (templateURL != null) {
+            r.withTemplateURL(templateURL);
         } else {
             r.withTemplateBody(recipe);
         }
         r.withCapabilities("CAPABILITY_IAM");
+        if (getFingerprint() != null) {
+            r.withTags(StackFingerprint.withTag(stack.getTags(), getFingerprint()));
+        }
 
         return r;
     }
 
-    private UpdateStackRequest updateStackRequest() {
+    private UpdateStackRequest updateStackRequest(Stack stack) {
 		UpdateStackRequest r = new UpdateStackRequest();
         r.withStackName(getExpandedStackName());
         r.withParameters(parameters);
-        r.withTemplateBody(recipe);
+        String templateURL = getTemplateURL();
+        if (templateURL != null) {
+            r.withTemplateURL(templateURL);
+        } else {
+            r.withTemplateBody(recipe);
+        }
         r.withCapabilities("CAPABILITY_IAM");
+        if (getFingerprint() != null) {
+            // Tags given on update replace all of the stack's tags.
+            r.withTags(StackFingerprint.withTag(stack.getTags(), getFingerprint()));
+        }
 
         return r;
 	}
 
+    /**
+     * @return the outputs of the deployed stack by output key, without the
+     * stack name prefix of {@link #getOutputs()}.
+     */
+    public Map<String, String> getStackOutputs() {
+        return Collections.unmodifiableMap(outputs);
+    }
+
+    /**
+     * Sets the outputs as if the stack had been deployed. Package-private for
+     * the benchmarks.
+     */
+    void setStackOutputs(Map<String, String> outputs) {
+        this.outputs = outputs;
+    }
+
+    /**
+     * Reads the outputs of the existing stack, without deploying it.
+     *
+     * @return the outputs by output key, or null if the stack does not exist.
+     */
+    public Map<String, String> describeOutputs() {
+        Stack stack = describeStack(getExpandedStackName());
+        if (stack == null) {
+            return null;
+        }
+        Map<String, String> stackOutput = new HashMap<String, String>();
+        for (Output output : stack.getOutputs()) {
+            stackOutput.put(output.getOutputKey(), output.getOutputValue());
+        }
+        return stackOutput;
+    }
+
     public Map<String, String> getOutputs() {
         // Prefix outputs with stack name to prevent collisions with other stacks created in the same build.
         HashMap<String, String> map = new HashMap<String, String>();
+        if (outputs == null) {
+            // Not deployed.
+            return map;
+        }
         for (Map.Entry<String, String> entry : outputs.entrySet()) {
             map.put(getExpandedStackName() + "_" + entry.getKey(), entry.getValue());
         }
         return map;
     }
 
-    private String getExpandedStackName() {
-        return envVars.expand(stackName);
+    /**
+     * @return a copy of this stack under another name, without its state nor
+     * the build's environment, for the {@link StackPool} to create and delete
+     * its stacks with.
+     */
+    CloudFormation pooled(String stackName, PrintStream logger) {
+        CloudFormation copy;
+        try {
+            copy = (CloudFormation) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+        copy.stackName = stackName;
+        copy.logger = logger;
+        copy.envVars = new EnvVars();
+        copy.isPooled = true;
+        copy.isPrefixSelected = false;
+        copy.autoDeleteStack = true;
+        copy.outputs = null;
+        copy.stagedTemplateURL = null;
+        copy.waiter = null;
+        copy.inFlight = null;
+        copy.poolMaxSize = 0;
+        copy.leasing = null;
+        copy.lease = null;
+        return copy;
     }
 
-    private String getOldestStackNameWithPrefix() {
-        List<StackSummary> stackSummaries = getAllRunningStacks();
-        ArrayList<StackSummary> filteredStackSummries = new ArrayList<StackSummary>();
-        for (StackSummary summary : stackSummaries) {
-            if (summary.getStackName().startsWith(stackName)) {
-                filteredStackSummries.add(summary);
-            }
-        }
-        if (filteredStackSummries.isEmpty() || filteredStackSummries.size() == 1) {
-            return stackName;
-        }
-        return returnOldestStackName(filteredStackSummries);
+    /**
+     * @return the fingerprint of the template, or of its URL, and parameters;
+     * stacks with the same one are interchangeable.
+     */
+    String getPoolFingerprint() {
+        return StackFingerprint.of(recipe, parameters);
+    }
 
+    String getAwsAccessKey() {
+        return awsAccessKey;
     }
 
-    private String returnOldestStackName(ArrayList<StackSummary> filteredStackSummries) {
-        Date date = filteredStackSummries.get(0).getCreationTime();
-        String stackToDelete = "";
-        for (StackSummary summary : filteredStackSummries) {
-            if (summary.getCreationTime().before(date)) {
-                date = summary.getCreationTime();
-                stackToDelete = summary.getStackName();
-            }
-        }
+    Region getAwsRegion() {
+        return awsRegion;
+    }
+
+    String getExpandedStackName() {
+        return envVars.expand(stackName);
+    }
+
+    /**
+     * @return the build the API calls for this stack are rate limited under,
+     * see {@link ApiRateLimiter#setJob}.
+     */
+    private Object getJob() {
+        String buildTag = envVars.get("BUILD_TAG");
+        return buildTag != null ? buildTag : getExpandedStackName();
+    }
 
-        return stackToDelete;
+    /**
+     * Makes a call on the scheduler, see {@link ApiRetrier#callAsync}.
+     */
+    private <T> CompletableFuture<T> callAsync(ApiRateLimiter.Operation operation, String name, Supplier<T> call) {
+        Object job = ApiRateLimiter.setJob(getJob());
+        try {
+            return ApiRetrier.get().callAsync(operation, awsRegion, name, call);
+        } finally {
+            ApiRateLimiter.setJob(job);
+        }
     }
 
-    private List<StackSummary> getAllRunningStacks() {
-        List<String> stackStatusFilters = new ArrayList<String>();
-        stackStatusFilters.add("UPDATE_COMPLETE");
-        stackStatusFilters.add("CREATE_COMPLETE");
-        stackStatusFilters.add("ROLLBACK_COMPLETE");
-        ListStacksRequest listStacksRequest = new ListStacksRequest();
-        listStacksRequest.setStackStatusFilters(stackStatusFilters);
-        ListStacksResult result = amazonClient.listStacks(listStacksRequest);
-        return result.getStackSummaries();
+    /**
+     * @return the name of the oldest running stack whose name starts with the
+     * stack name, or null if there is none.
+     */
+    private String getOldestStackNameWithPrefix() {
+        StackSummary oldest = StackSummaryIterator.oldestWithPrefix(
+                StackSummaryCache.get().getRunningStacks(getAWSClient()).iterator(), getExpandedStackName());
+        return oldest != null ? oldest.getStackName() : null;
     }
 
     public Map<String, String> getStackParameters(String stackName) {
         DescribeStacksRequest describeStacksRequest = new DescribeStacksRequest();
         describeStacksRequest.setStackName(stackName);
-        DescribeStacksResult describeStacksResult = amazonClient.describeStacks(describeStacksRequest);
+        DescribeStacksResult describeStacksResult = getAWSClient().describeStacks(describeStacksRequest);
         List<Stack> stacks = describeStacksResult.getStacks();
         Stack stack = stacks.get(0);
         List<Parameter> parameters = stack.getParameters();
@@ -9,19 +9,35 @@ import hudson.Extension;
 import hudson.Launcher;
 import hudson.model.BuildListener;
 import hudson.model.Result;
+import hudson.model.TaskListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
+import hudson.util.LogTaskListener;
 
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 /**
  * @author erickdovale
@@ -29,21 +45,64 @@ import org.kohsuke.stapler.DataBoundConstructor;
  */
 public class CloudFormationBuildWrapper extends BuildWrapper {
 
+	private static final Logger LOGGER = Logger.getLogger(CloudFormationBuildWrapper.class.getName());
+
 	protected List<StackBean> stacks;
 
-	private transient List<CloudFormation> cloudFormations = new ArrayList<CloudFormation>();
+	/**
+	 * Whether stacks that don't use each other's outputs are created at the
+	 * same time.
+	 */
+	private boolean parallel;
+
+	/**
+	 * Maximum number of stacks created at the same time in parallel mode. 0
+	 * means no limit.
+	 */
+	private int maxConcurrency;
+
+	/**
+	 * The environments of the builds whose stacks are not torn down yet, for
+	 * {@link #doTearDown()}.
+	 */
+	private transient Set<StackEnvironment> environments = newEnvironments();
 
 	@DataBoundConstructor
 	public CloudFormationBuildWrapper(List<StackBean> stacks) {
 		this.stacks = stacks;
 	}
 
+	public boolean getParallel() {
+		return parallel;
+	}
+
+	@DataBoundSetter
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	@DataBoundSetter
+	public void setMaxConcurrency(int maxConcurrency) {
+		this.maxConcurrency = maxConcurrency;
+	}
+
 	@Override
 	public void makeBuildVariables(AbstractBuild build,
 			Map<String, String> variables) {
 
-		for (CloudFormation cf : cloudFormations) {
-			variables.putAll(cf.getOutputs());
+		if (build.getEnvironments() == null) {
+			return;
+		}
+		for (hudson.model.Environment environment : build.getEnvironments()) {
+			if (environment instanceof StackEnvironment && ((StackEnvironment) environment).getWrapper() == this) {
+				for (CloudFormation cf : ((StackEnvironment) environment).cloudFormations) {
+					variables.putAll(cf.getOutputs());
+				}
+			}
 		}
 
 	}
@@ -55,21 +114,88 @@ public class CloudFormationBuildWrapper extends BuildWrapper {
         EnvVars env = build.getEnvironment(listener);
         env.overrideAll(build.getBuildVariables());
 
-        boolean success = true;
+        // Also drives the teardown, so it is needed in sequential mode too.
+        StackEnvironment environment = new StackEnvironment(parallel
+        		? StackDependencyGraph.fromOutputReferences(stacks, env)
+        		: StackDependencyGraph.fromEarlierOutputReferences(stacks, env));
+
+        boolean success = parallel
+        		? createInParallel(build, env, listener, environment)
+        		: createSequentially(build, env, listener, environment);
 
-		for (StackBean stackBean : stacks) {
+		// If any stack fails to create then destroy them all
+		if (!success) {
+			doTearDown(environment, listener);
+			return null;
+		}
+
+		return environment;
+	}
+
+	/**
+	 * The stacks created by a build, kept with the build rather than the
+	 * wrapper, which the builds of the job share.
+	 */
+	protected class StackEnvironment extends Environment {
+
+		private final List<CloudFormation> cloudFormations = new ArrayList<CloudFormation>();
+
+		/**
+		 * Position in {@link #stacks} of each created stack.
+		 */
+		private final Map<CloudFormation, Integer> indexes = new IdentityHashMap<CloudFormation, Integer>();
+
+		/**
+		 * Dependencies between the stacks, used to tear them down in the right
+		 * order.
+		 */
+		private final StackDependencyGraph graph;
+
+		StackEnvironment(StackDependencyGraph graph) {
+			this.graph = graph;
+			environments.add(this);
+		}
+
+		void add(CloudFormation cloudFormation, int index) {
+			cloudFormations.add(cloudFormation);
+			indexes.put(cloudFormation, index);
+		}
+
+		CloudFormationBuildWrapper getWrapper() {
+			return CloudFormationBuildWrapper.this;
+		}
+
+		@Override
+		public boolean tearDown(AbstractBuild build, BuildListener listener)
+				throws IOException, InterruptedException {
+
+			return doTearDown(this, listener);
+
+		}
+
+	}
+
+	/**
+	 * Creates the stacks one after the other, in the configured order.
+	 *
+	 * @return true if every stack was created.
+	 */
+	private boolean createSequentially(AbstractBuild build, EnvVars env,
+			BuildListener listener, StackEnvironment environment) throws IOException, InterruptedException {
+
+		for (int i = 0; i < stacks.size(); i++) {
+			StackBean stackBean = stacks.get(i);
 
 			final CloudFormation cloudFormation = newCloudFormation(stackBean,
 					build, env, listener.getLogger());
 
 			try {
 				if (cloudFormation.create()) {
-					cloudFormations.add(cloudFormation);
+					environment.add(cloudFormation, i);
 					env.putAll(cloudFormation.getOutputs());
 				} else {
 					build.setResult(Result.FAILURE);
-					success = false;
-					break;
+					return false;
 				}
 			} catch (TimeoutException e) {
 				listener.getLogger()
@@ -77,47 +203,224 @@ public class CloudFormationBuildWrapper extends BuildWrapper {
 								+ stackBean.getStackName()
 								+ ". Operation timedout. Try increasing the timeout period in your stack configuration.");
 				build.setResult(Result.FAILURE);
-				success = false;
-				break;
+				return false;
 			}
 
 		}
+		return true;
+	}
 
-		// If any stack fails to create then destroy them all
-		if (!success) {
-			doTearDown();
-			return null;
-		}
-
-		return new Environment() {
-			@Override
-			public boolean tearDown(AbstractBuild build, BuildListener listener)
-					throws IOException, InterruptedException {
-
-				return doTearDown();
+	/**
+	 * Creates the stacks in dependency order, starting each one as soon as the
+	 * stacks whose outputs it uses are up, with at most
+	 * {@link #maxConcurrency} in flight.
+	 *
+	 * @return true if every stack was created.
+	 */
+	private boolean createInParallel(AbstractBuild build, EnvVars env,
+			BuildListener listener, StackEnvironment environment) throws IOException, InterruptedException {
+
+		int limit = maxConcurrency > 0 ? maxConcurrency : stacks.size();
+
+		Map<Integer, CloudFormation> running = new HashMap<Integer, CloudFormation>();
+		Map<Integer, CompletableFuture<Boolean>> results = new HashMap<Integer, CompletableFuture<Boolean>>();
+		Set<Integer> created = new HashSet<Integer>();
+		final BlockingQueue<Integer> finished = new LinkedBlockingQueue<Integer>();
+		boolean success = true;
+
+		try {
+			while (true) {
+				if (success) {
+					for (int i = 0; i < stacks.size() && running.size() < limit; i++) {
+						if (!results.containsKey(i) && created.containsAll(environment.graph.getDependencies(i))) {
+							CompletableFuture<Boolean> result;
+							try {
+								// Each stack sees the outputs of everything created so far.
+								CloudFormation cloudFormation = newCloudFormation(stacks.get(i),
+										build, new EnvVars(env), listener.getLogger());
+								try {
+									result = cloudFormation.createAsync();
+								} catch (RuntimeException e) {
+									result = new CompletableFuture<Boolean>();
+									result.completeExceptionally(e);
+								}
+								running.put(i, cloudFormation);
+							} catch (IOException e) {
+								listener.getLogger().println("ERROR creating stack with name "
+										+ stacks.get(i).getStackName() + ": " + e.getMessage());
+								success = false;
+								break;
+							}
+							final int index = i;
+							results.put(i, result);
+							result.whenComplete((ok, error) -> finished.add(index));
+						}
+					}
+				}
+				if (running.isEmpty()) {
+					break;
+				}
+				if (!success) {
+					// Stop waiting for the stacks still in flight; they are torn
+					// down with the rest.
+					for (CloudFormation cloudFormation : running.values()) {
+						cloudFormation.cancel();
+					}
+				}
 
+				int i = finished.take();
+				CloudFormation cloudFormation = running.remove(i);
+				// Every stack started is torn down, whether it came up or not.
+				environment.add(cloudFormation, i);
+				if (createdStack(stacks.get(i), results.get(i), listener)) {
+					created.add(i);
+					env.putAll(cloudFormation.getOutputs());
+				} else {
+					success = false;
+				}
+			}
+		} catch (InterruptedException e) {
+			for (CloudFormation cloudFormation : running.values()) {
+				cloudFormation.cancel();
 			}
+			throw e;
+		}
 
-		};
+		if (success && created.size() < stacks.size()) {
+			listener.getLogger().println("ERROR not all stacks could be created.");
+			success = false;
+		}
+		if (!success) {
+			build.setResult(Result.FAILURE);
+		}
+		return success;
 	}
 
-	protected boolean doTearDown() throws IOException, InterruptedException{
-		boolean result = true;
-
-		List<CloudFormation> reverseOrder = new ArrayList<CloudFormation>(cloudFormations);
-		Collections.reverse(reverseOrder);
+	private boolean createdStack(StackBean stackBean, CompletableFuture<Boolean> result,
+			BuildListener listener) throws InterruptedException {
+		try {
+			return StackWaiter.await(result, null);
+		} catch (TimeoutException e) {
+			listener.getLogger()
+					.append("ERROR creating stack with name "
+							+ stackBean.getStackName()
+							+ ". Operation timedout. Try increasing the timeout period in your stack configuration.");
+			return false;
+		} catch (CancellationException e) {
+			listener.getLogger().println("Stopped waiting for stack with name " + stackBean.getStackName());
+			return false;
+		} catch (RuntimeException e) {
+			listener.getLogger().println("ERROR creating stack with name "
+					+ stackBean.getStackName() + ": " + e.getMessage());
+			return false;
+		}
+	}
 
-		for (CloudFormation cf : reverseOrder) {
+	/**
+	 * Deletes the stacks created by a build that are set to be deleted
+	 * automatically. Stacks are deleted concurrently, however they were
+	 * created; a stack is only held back until the stacks using its outputs
+	 * have been dealt with. Deletions are issued in reverse configured order,
+	 * and every stack is attempted even if another one fails to delete.
+	 *
+	 * @return true if every stack was deleted.
+	 */
+	protected boolean doTearDown(StackEnvironment environment, TaskListener listener)
+			throws IOException, InterruptedException{
+		environments.remove(environment);
+		StackDependencyGraph dependencies = environment.graph;
+		int limit = maxConcurrency > 0 ? maxConcurrency : stacks.size();
+
+		Map<Integer, CloudFormation> toDelete = new TreeMap<Integer, CloudFormation>();
+		for (CloudFormation cf : environment.cloudFormations) {
             // automatically delete the stack?
             if (cf.getAutoDeleteStack()) {
-                // delete the stack
-                result = result && cf.delete();
+                toDelete.put(environment.indexes.get(cf), cf);
             }
 		}
 
+		Set<Integer> pending = new TreeSet<Integer>(Collections.reverseOrder());
+		pending.addAll(toDelete.keySet());
+		Map<Integer, CompletableFuture<Boolean>> running = new HashMap<Integer, CompletableFuture<Boolean>>();
+		Map<Integer, Boolean> deleted = new TreeMap<Integer, Boolean>();
+		final BlockingQueue<Integer> finished = new LinkedBlockingQueue<Integer>();
+
+		try {
+			while (true) {
+				for (Iterator<Integer> it = pending.iterator(); it.hasNext() && running.size() < limit;) {
+					int i = it.next();
+					if (!Collections.disjoint(dependencies.getDependents(i), pending)
+							|| !Collections.disjoint(dependencies.getDependents(i), running.keySet())) {
+						// Something still uses this stack's outputs.
+						continue;
+					}
+					CompletableFuture<Boolean> result;
+					try {
+						result = toDelete.get(i).deleteAsync();
+					} catch (RuntimeException e) {
+						result = new CompletableFuture<Boolean>();
+						result.completeExceptionally(e);
+					}
+					it.remove();
+					running.put(i, result);
+					final int index = i;
+					result.whenComplete((ok, error) -> finished.add(index));
+				}
+				if (running.isEmpty()) {
+					break;
+				}
+
+				int i = finished.take();
+				deleted.put(i, deletedStack(stacks.get(i), running.remove(i), listener));
+			}
+		} catch (InterruptedException e) {
+			for (Integer i : running.keySet()) {
+				toDelete.get(i).cancel();
+			}
+			throw e;
+		}
+
+		boolean result = true;
+		for (Map.Entry<Integer, Boolean> entry : deleted.entrySet()) {
+			listener.getLogger().println("Stack " + stacks.get(entry.getKey()).getStackName() + ": "
+					+ (entry.getValue() ? "deleted" : "NOT deleted"));
+			result &= entry.getValue();
+		}
+		return result;
+	}
+
+	/**
+	 * Deletes the stacks of every build not torn down yet.
+	 *
+	 * @return true if every stack was deleted.
+	 * @deprecated builds of the same job may run at the same time; use
+	 * {@link #doTearDown(StackEnvironment, TaskListener)} with the
+	 * environment of the build.
+	 */
+	@Deprecated
+	protected boolean doTearDown() throws IOException, InterruptedException {
+		List<StackEnvironment> pending;
+		synchronized (environments) {
+			pending = new ArrayList<StackEnvironment>(environments);
+		}
+		boolean result = true;
+		for (StackEnvironment environment : pending) {
+			result &= doTearDown(environment, new LogTaskListener(LOGGER, Level.INFO));
+		}
 		return result;
 	}
 
+	private boolean deletedStack(StackBean stackBean, CompletableFuture<Boolean> result,
+			TaskListener listener) throws InterruptedException {
+		try {
+			return StackWaiter.await(result, null);
+		} catch (RuntimeException e) {
+			listener.getLogger().println("ERROR deleting stack with name "
+					+ stackBean.getStackName() + ": " + e.getMessage());
+			return false;
+		}
+	}
+
 	@SuppressFBWarnings(value="NP_NULL_ON_SOME_PATH_FROM_RETURN_VALUE")
 	protected CloudFormation newCloudFormation(StackBean stackBean,
 			AbstractBuild<?, ?> build, EnvVars env, PrintStream logger)
@@ -130,16 +433,25 @@ public class CloudFormationBuildWrapper extends BuildWrapper {
 			isURL = true;
 			recipe = stackBean.getCloudFormationRecipe();
 		} else if (build.getWorkspace() != null) {
-			recipe = build.getWorkspace().child(stackBean.getCloudFormationRecipe()).readToString();
+			recipe = TemplateCache.get().read(build.getWorkspace().child(stackBean.getCloudFormationRecipe()));
 		} else {
 			throw new InterruptedException("Failed to load recipe");
 		}
 
-		return new CloudFormation(logger, stackBean.getStackName(), isURL,
+		CloudFormation cloudFormation = new CloudFormation(logger, stackBean.getStackName(), isURL,
 				recipe, stackBean.getParsedParameters(env),
 				stackBean.getTimeout(), stackBean.getParsedAwsAccessKey(env),
 				stackBean.getParsedAwsSecretKey(env),
 				stackBean.getAwsRegion(), stackBean.getAutoDeleteStack(), env,false);
+		cloudFormation.setUseChangeSet(stackBean.getUseChangeSet());
+		if (stackBean.getTemplateBucket() != null) {
+			cloudFormation.setTemplateBucket(env.expand(stackBean.getTemplateBucket()));
+		}
+		if (stackBean.getPoolMaxSize() > 0) {
+			cloudFormation.setPool(stackBean.getPoolMinSize(), stackBean.getPoolMaxSize(),
+					stackBean.getPoolIdleMinutes());
+		}
+		return cloudFormation;
 
 	}
 
@@ -162,12 +474,16 @@ public class CloudFormationBuildWrapper extends BuildWrapper {
 		return stacks;
 	}
 
+	private static Set<StackEnvironment> newEnvironments() {
+		return Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<StackEnvironment, Boolean>()));
+	}
+
 	/**
 	 * @return
 	 */
 	private Object readResolve() {
-		// Initialize the cloud formation collection during deserialization to avoid NPEs.
-		cloudFormations = new ArrayList<CloudFormation>();
+		// Initialize the environments during deserialization to avoid NPEs.
+		environments = newEnvironments();
 		return this;
 	}
 
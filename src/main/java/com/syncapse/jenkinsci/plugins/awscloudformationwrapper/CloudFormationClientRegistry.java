@@ -0,0 +1,282 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import hudson.Extension;
+import hudson.ProxyConfiguration;
+import hudson.init.Terminator;
+import hudson.model.PeriodicWork;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.AmazonCloudFormationAsyncClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+
+/**
+ * Controller-wide cache of CloudFormation (and S3) clients, so that builds using the
+ * same credentials, region and proxy share one connection pool and executor
+ * instead of building a new client for every stack.
+ *
+ * Clients that have not been handed out for {@link #IDLE_TIMEOUT_MS} are shut
+ * down and dropped. Callers should therefore look the client up when they need
+ * it rather than holding on to it for the length of a build.
+ */
+public final class CloudFormationClientRegistry {
+
+	private static final Logger LOGGER = Logger.getLogger(CloudFormationClientRegistry.class.getName());
+
+	/**
+	 * Time after which an unused client is shut down. Default value is 30
+	 * minutes.
+	 */
+	static final long IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(
+			Long.getLong(CloudFormationClientRegistry.class.getName() + ".idleTimeoutMinutes", 30));
+
+	private static final CloudFormationClientRegistry INSTANCE = new CloudFormationClientRegistry(IDLE_TIMEOUT_MS);
+
+	private final ConcurrentMap<ClientKey, Entry<AmazonCloudFormation>> clients = new ConcurrentHashMap<ClientKey, Entry<AmazonCloudFormation>>();
+
+	private final ConcurrentMap<ClientKey, Entry<AmazonS3>> s3Clients = new ConcurrentHashMap<ClientKey, Entry<AmazonS3>>();
+
+	private final long idleTimeout;
+
+	CloudFormationClientRegistry(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public static CloudFormationClientRegistry get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return the shared client for the given credentials and region, creating
+	 * it if this is the first request for them.
+	 */
+	public AmazonCloudFormation getClient(String awsAccessKey, String awsSecretKey, Region region) {
+		return getClient(clients, new ClientKey(awsAccessKey, awsSecretKey, region, proxy()),
+				CloudFormationClientRegistry::newClient);
+	}
+
+	/**
+	 * @return the shared S3 client for the given credentials and region, e.g.
+	 * to stage templates with.
+	 */
+	public AmazonS3 getS3Client(String awsAccessKey, String awsSecretKey, Region region) {
+		return getClient(s3Clients, new ClientKey(awsAccessKey, awsSecretKey, region, proxy()),
+				CloudFormationClientRegistry::newS3Client);
+	}
+
+	private static <C> C getClient(ConcurrentMap<ClientKey, Entry<C>> clients, ClientKey key,
+			Function<ClientKey, C> factory) {
+		// compute() holds the entry lock, so a client handed out here can not be
+		// evicted by a concurrent evictIdle() before it is touched.
+		Entry<C> entry = clients.compute(key, (k, existing) -> {
+			Entry<C> e = existing != null ? existing : new Entry<C>(factory.apply(k));
+			e.lastUsed = System.currentTimeMillis();
+			return e;
+		});
+		return entry.client;
+	}
+
+	/**
+	 * Shuts down and removes every client that has not been used within the
+	 * idle timeout.
+	 */
+	public void evictIdle() {
+		evictIdle(clients, AmazonCloudFormation::shutdown);
+		evictIdle(s3Clients, AmazonS3::shutdown);
+	}
+
+	private <C> void evictIdle(ConcurrentMap<ClientKey, Entry<C>> clients, Consumer<C> shutdown) {
+		final long now = System.currentTimeMillis();
+		for (ClientKey key : clients.keySet()) {
+			final List<Entry<C>> evicted = new ArrayList<Entry<C>>(1);
+			clients.computeIfPresent(key, (k, e) -> {
+				if (now - e.lastUsed < idleTimeout) {
+					return e;
+				}
+				evicted.add(e);
+				return null;
+			});
+			for (Entry<C> e : evicted) {
+				LOGGER.fine("Shutting down idle client for " + key);
+				shutdown.accept(e.client);
+			}
+		}
+	}
+
+	/**
+	 * Shuts down every client held by the registry.
+	 */
+	public void shutdown() {
+		shutdown(clients, AmazonCloudFormation::shutdown);
+		shutdown(s3Clients, AmazonS3::shutdown);
+	}
+
+	private static <C> void shutdown(ConcurrentMap<ClientKey, Entry<C>> clients, Consumer<C> shutdown) {
+		for (Map.Entry<ClientKey, Entry<C>> entry : clients.entrySet()) {
+			if (clients.remove(entry.getKey(), entry.getValue())) {
+				shutdown.accept(entry.getValue().client);
+			}
+		}
+	}
+
+	int size() {
+		return clients.size();
+	}
+
+	@Terminator
+	public static void shutdownClients() {
+		INSTANCE.shutdown();
+	}
+
+	private static ProxyConfiguration proxy() {
+		Jenkins jenkins = Jenkins.getInstanceOrNull();
+		return jenkins != null ? jenkins.proxy : null;
+	}
+
+	private static AmazonCloudFormation newClient(ClientKey key) {
+		AmazonCloudFormationAsyncClientBuilder builder = AmazonCloudFormationAsyncClientBuilder.standard();
+		configure(builder, key);
+		builder.getClientConfiguration().setRetryPolicy(PredefinedRetryPolicies.NO_RETRY_POLICY);
+		return decorate(builder.build(), key.awsAccessKey, key.region);
+	}
+
+	/**
+	 * Calls made through the returned client are retried by the
+	 * {@link ApiRetrier} rather than the SDK, and every attempt counts towards
+	 * the account's {@link ApiRateLimiter} and is timed by {@link StackMetrics}.
+	 */
+	static AmazonCloudFormation decorate(AmazonCloudFormation client, String awsAccessKey, Region region) {
+		AmazonCloudFormation instrumented = StackMetrics.get().instrument(client, region);
+		return ApiRetrier.get().retry(ApiRateLimiter.get(awsAccessKey, region).limit(instrumented), region);
+	}
+
+	private static AmazonS3 newS3Client(ClientKey key) {
+		AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard();
+		configure(builder, key);
+		return builder.build();
+	}
+
+	private static void configure(AwsClientBuilder<?, ?> builder, ClientKey key) {
+		builder.withCredentials(new AWSStaticCredentialsProvider(
+				new BasicAWSCredentials(key.awsAccessKey, key.awsSecretKey)));
+
+		ClientConfiguration config = new ClientConfiguration();
+		if (key.proxyHost != null) {
+			config.setProxyHost(key.proxyHost);
+			config.setProxyPort(key.proxyPort);
+			config.setProxyUsername(key.proxyUserName);
+			config.setProxyPassword(key.proxyPassword);
+			config.setPreemptiveBasicProxyAuth(true);
+		}
+		builder.withClientConfiguration(config);
+
+		builder.setRegion(key.region.awsRegion);
+	}
+
+	private static final class Entry<C> {
+		private final C client;
+		private volatile long lastUsed;
+
+		Entry(C client) {
+			this.client = client;
+		}
+	}
+
+	/**
+	 * Everything a client is configured with. Two builds get the same client
+	 * only when all of it matches.
+	 */
+	static final class ClientKey {
+		private final String awsAccessKey;
+		private final String awsSecretKey;
+		private final Region region;
+		private final String proxyHost;
+		private final int proxyPort;
+		private final String proxyUserName;
+		private final String proxyPassword;
+
+		ClientKey(String awsAccessKey, String awsSecretKey, Region region, ProxyConfiguration proxy) {
+			this.awsAccessKey = awsAccessKey;
+			this.awsSecretKey = awsSecretKey;
+			this.region = region;
+			if (proxy != null && proxy.name != null) {
+				this.proxyHost = proxy.name;
+				this.proxyPort = proxy.port;
+				this.proxyUserName = proxy.getUserName();
+				this.proxyPassword = proxy.getPassword();
+			} else {
+				this.proxyHost = null;
+				this.proxyPort = 0;
+				this.proxyUserName = null;
+				this.proxyPassword = null;
+			}
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof ClientKey)) {
+				return false;
+			}
+			ClientKey other = (ClientKey) o;
+			return proxyPort == other.proxyPort
+					&& Objects.equals(awsAccessKey, other.awsAccessKey)
+					&& Objects.equals(awsSecretKey, other.awsSecretKey)
+					&& region == other.region
+					&& Objects.equals(proxyHost, other.proxyHost)
+					&& Objects.equals(proxyUserName, other.proxyUserName)
+					&& Objects.equals(proxyPassword, other.proxyPassword);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(awsAccessKey, awsSecretKey, region, proxyHost, proxyPort, proxyUserName, proxyPassword);
+		}
+
+		/**
+		 * Deliberately leaves out the secret key and proxy password.
+		 */
+		@Override
+		public String toString() {
+			return awsAccessKey + "@" + region.awsRegion + (proxyHost != null ? " via " + proxyHost + ":" + proxyPort : "");
+		}
+	}
+
+	/**
+	 * Periodically shuts down clients nobody has asked for recently.
+	 */
+	@Extension
+	public static class IdleClientReaper extends PeriodicWork {
+
+		@Override
+		public long getRecurrencePeriod() {
+			return 5 * MIN;
+		}
+
+		@Override
+		protected void doRun() {
+			get().evictIdle();
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.TaskListener;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Pipeline step deleting a stack, or with {@code prefix: true} the oldest
+ * stacks whose name starts with the stack name:
+ *
+ * <pre>
+ * cloudFormationDelete stackName: 'app-', prefix: true, olderThanHours: 24
+ * </pre>
+ */
+public class CloudFormationDeleteStep extends AbstractCloudFormationStep {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean prefix;
+	private int maxStacksToDelete;
+	private int olderThanHours;
+
+	@DataBoundConstructor
+	public CloudFormationDeleteStep(String stackName) {
+		super(stackName);
+	}
+
+	public boolean getPrefix() {
+		return prefix;
+	}
+
+	@DataBoundSetter
+	public void setPrefix(boolean prefix) {
+		this.prefix = prefix;
+	}
+
+	public int getMaxStacksToDelete() {
+		return maxStacksToDelete;
+	}
+
+	@DataBoundSetter
+	public void setMaxStacksToDelete(int maxStacksToDelete) {
+		this.maxStacksToDelete = maxStacksToDelete;
+	}
+
+	public int getOlderThanHours() {
+		return olderThanHours;
+	}
+
+	@DataBoundSetter
+	public void setOlderThanHours(int olderThanHours) {
+		this.olderThanHours = olderThanHours;
+	}
+
+	@Override
+	public StepExecution start(StepContext context) throws Exception {
+		return new Execution(this, context);
+	}
+
+	private static final class Execution extends CloudFormationStepExecution<Void> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final CloudFormationDeleteStep step;
+
+		Execution(CloudFormationDeleteStep step, StepContext context) {
+			super(context);
+			this.step = step;
+		}
+
+		@Override
+		protected CloudFormation newCloudFormation(TaskListener listener, EnvVars env) {
+			CloudFormation cloudFormation = new CloudFormation(listener.getLogger(), step.getStackName(), false,
+					"", null, 0, step.getParsedAwsAccessKey(env), step.getParsedAwsSecretKey(env),
+					step.getAwsRegion(), false, env, step.prefix);
+			cloudFormation.setPrefixTeardown(step.maxStacksToDelete, step.olderThanHours);
+			return cloudFormation;
+		}
+
+		@Override
+		protected CompletableFuture<Void> run(CloudFormation cloudFormation) {
+			return succeeded(cloudFormation.deleteAsync(), "Failed to delete stack " + step.getStackName())
+					.thenApply(deleted -> null);
+		}
+
+		@Override
+		protected CompletableFuture<Void> resume(CloudFormation cloudFormation, StackOperation operation) {
+			return succeeded(cloudFormation.resume(operation), "Failed to delete stack " + step.getStackName())
+					.thenApply(deleted -> null);
+		}
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends AbstractDescriptor {
+
+		@Override
+		public String getFunctionName() {
+			return "cloudFormationDelete";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Delete CloudFormation stacks";
+		}
+
+		@Override
+		public Set<? extends Class<?>> getRequiredContext() {
+			return ImmutableSet.of(TaskListener.class, EnvVars.class);
+		}
+	}
+
+}
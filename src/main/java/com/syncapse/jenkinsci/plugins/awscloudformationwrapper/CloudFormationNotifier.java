@@ -78,6 +78,7 @@ public class CloudFormationNotifier extends Notifier {
 					envVars,
                                 stack.getIsPrefixSelected()
 			);
+			cloudFormation.setPrefixTeardown(stack.getMaxStacksToDelete(), stack.getOlderThanHours());
 			if(cloudFormation.delete()) {
 				LOGGER.info("Success");
 			} else {
@@ -0,0 +1,86 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.TaskListener;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Pipeline step returning the outputs of an existing stack:
+ *
+ * <pre>
+ * def vpcId = cloudFormationOutputs(stackName: 'network').VpcId
+ * </pre>
+ */
+public class CloudFormationOutputsStep extends AbstractCloudFormationStep {
+
+	private static final long serialVersionUID = 1L;
+
+	@DataBoundConstructor
+	public CloudFormationOutputsStep(String stackName) {
+		super(stackName);
+	}
+
+	@Override
+	public StepExecution start(StepContext context) throws Exception {
+		return new Execution(this, context);
+	}
+
+	private static final class Execution extends CloudFormationStepExecution<Map<String, String>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final CloudFormationOutputsStep step;
+
+		Execution(CloudFormationOutputsStep step, StepContext context) {
+			super(context);
+			this.step = step;
+		}
+
+		@Override
+		protected CloudFormation newCloudFormation(TaskListener listener, EnvVars env) {
+			return new CloudFormation(listener.getLogger(), step.getStackName(), false, "", null, 0,
+					step.getParsedAwsAccessKey(env), step.getParsedAwsSecretKey(env), step.getAwsRegion(),
+					false, env, false);
+		}
+
+		@Override
+		protected CompletableFuture<Map<String, String>> run(CloudFormation cloudFormation) throws AbortException {
+			Map<String, String> outputs = cloudFormation.describeOutputs();
+			if (outputs == null) {
+				throw new AbortException("Stack " + step.getStackName() + " does not exist");
+			}
+			return CompletableFuture.completedFuture(outputs);
+		}
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends AbstractDescriptor {
+
+		@Override
+		public String getFunctionName() {
+			return "cloudFormationOutputs";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Read the outputs of a CloudFormation stack";
+		}
+
+		@Override
+		public Set<? extends Class<?>> getRequiredContext() {
+			return ImmutableSet.of(TaskListener.class, EnvVars.class);
+		}
+	}
+
+}
@@ -108,16 +108,21 @@ public class CloudFormationPostBuildNotifier extends Notifier{
 			isURL = true;
 			recipe = postBuildStackBean.getCloudFormationRecipe();
 		} else if (build.getWorkspace() != null) {
-			recipe = build.getWorkspace().child(postBuildStackBean.getCloudFormationRecipe()).readToString();
+			recipe = TemplateCache.get().read(build.getWorkspace().child(postBuildStackBean.getCloudFormationRecipe()));
 		} else {
 			throw new InterruptedException("Failed to load recipe");
 		}
 
-		return new CloudFormation(logger, postBuildStackBean.getStackName(), isURL,
+		CloudFormation cloudFormation = new CloudFormation(logger, postBuildStackBean.getStackName(), isURL,
 				recipe, postBuildStackBean.getParsedParameters(env),
 				postBuildStackBean.getTimeout(), postBuildStackBean.getParsedAwsAccessKey(env),
 				postBuildStackBean.getParsedAwsSecretKey(env),
 				postBuildStackBean.getAwsRegion(), env,false,postBuildStackBean.getSleep());
+		cloudFormation.setUseChangeSet(postBuildStackBean.getUseChangeSet());
+		if (postBuildStackBean.getTemplateBucket() != null) {
+			cloudFormation.setTemplateBucket(env.expand(postBuildStackBean.getTemplateBucket()));
+		}
+		return cloudFormation;
 
 	}
 	@Override
@@ -0,0 +1,170 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Pipeline step creating a stack, or updating it if it exists, and returning
+ * its outputs:
+ *
+ * <pre>
+ * def outputs = cloudFormationStack stackName: 'app-${BUILD_NUMBER}', recipe: 'stack.json',
+ *         parameters: [Env: 'test'], awsRegion: 'EU_Ireland'
+ * echo outputs.Url
+ * </pre>
+ */
+public class CloudFormationStackStep extends AbstractCloudFormationStep {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String recipe;
+	private Map<String, String> parameters = new HashMap<String, String>();
+	private long timeout;
+	private boolean useChangeSet;
+	private String templateBucket;
+
+	/**
+	 * @param recipe the template's path in the workspace, or its URL.
+	 */
+	@DataBoundConstructor
+	public CloudFormationStackStep(String stackName, String recipe) {
+		super(stackName);
+		this.recipe = recipe;
+	}
+
+	public String getRecipe() {
+		return recipe;
+	}
+
+	public Map<String, String> getParameters() {
+		return parameters;
+	}
+
+	@DataBoundSetter
+	public void setParameters(Map<String, String> parameters) {
+		this.parameters = parameters != null ? new HashMap<String, String>(parameters) : new HashMap<String, String>();
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	@DataBoundSetter
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public boolean getUseChangeSet() {
+		return useChangeSet;
+	}
+
+	@DataBoundSetter
+	public void setUseChangeSet(boolean useChangeSet) {
+		this.useChangeSet = useChangeSet;
+	}
+
+	public String getTemplateBucket() {
+		return templateBucket;
+	}
+
+	@DataBoundSetter
+	public void setTemplateBucket(String templateBucket) {
+		this.templateBucket = templateBucket;
+	}
+
+	@Override
+	public StepExecution start(StepContext context) throws Exception {
+		return new Execution(this, context);
+	}
+
+	private static final class Execution extends CloudFormationStepExecution<Map<String, String>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final CloudFormationStackStep step;
+
+		Execution(CloudFormationStackStep step, StepContext context) {
+			super(context);
+			this.step = step;
+		}
+
+		@Override
+		protected CloudFormation newCloudFormation(TaskListener listener, EnvVars env) throws Exception {
+			boolean isURL = CloudFormation.isRecipeURL(step.recipe);
+			String recipe;
+			if (isURL) {
+				recipe = step.recipe;
+			} else {
+				// Only needed for a template in the workspace, so that the step
+				// runs outside of a node block with a template URL.
+				FilePath workspace = getContext().get(FilePath.class);
+				if (workspace == null) {
+					throw new AbortException("Template " + step.recipe
+							+ " is read from the workspace; run the step inside a node block or give the template's URL");
+				}
+				recipe = TemplateCache.get().read(workspace.child(env.expand(step.recipe)));
+			}
+			Map<String, String> parameters = new HashMap<String, String>();
+			for (Map.Entry<String, String> parameter : step.parameters.entrySet()) {
+				parameters.put(parameter.getKey(), env.expand(parameter.getValue()));
+			}
+
+			CloudFormation cloudFormation = new CloudFormation(listener.getLogger(), step.getStackName(), isURL,
+					recipe, parameters, step.timeout, step.getParsedAwsAccessKey(env),
+					step.getParsedAwsSecretKey(env), step.getAwsRegion(), false, env, false);
+			cloudFormation.setUseChangeSet(step.useChangeSet);
+			if (step.templateBucket != null) {
+				cloudFormation.setTemplateBucket(env.expand(step.templateBucket));
+			}
+			return cloudFormation;
+		}
+
+		@Override
+		protected CompletableFuture<Map<String, String>> run(final CloudFormation cloudFormation) {
+			return succeeded(cloudFormation.createAsync(), "Failed to create or update stack " + step.getStackName())
+					.thenApply(created -> new HashMap<String, String>(cloudFormation.getStackOutputs()));
+		}
+
+		@Override
+		protected CompletableFuture<Map<String, String>> resume(final CloudFormation cloudFormation,
+				StackOperation operation) {
+			return succeeded(cloudFormation.resume(operation), "Failed to create or update stack " + step.getStackName())
+					.thenApply(created -> new HashMap<String, String>(cloudFormation.getStackOutputs()));
+		}
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends AbstractDescriptor {
+
+		@Override
+		public String getFunctionName() {
+			return "cloudFormationStack";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Create or update a CloudFormation stack";
+		}
+
+		@Override
+		public Set<? extends Class<?>> getRequiredContext() {
+			return ImmutableSet.of(TaskListener.class, EnvVars.class);
+		}
+	}
+
+}
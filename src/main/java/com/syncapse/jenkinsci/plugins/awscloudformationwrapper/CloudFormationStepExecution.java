@@ -0,0 +1,176 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+
+/**
+ * Runs a CloudFormation operation for a Pipeline step without holding a
+ * thread while it waits.
+ *
+ * {@link #start()} returns straight away. The operation is issued on a
+ * background thread, since reading the template and the first API calls may
+ * block, and the waiting is left to the {@link StackStatusPoller}; the step
+ * completes when the operation's future does. Neither an executor nor the CPS
+ * thread is tied up in between.
+ *
+ * Once issued, the operation is kept with the build as a
+ * {@link StackOperation}, so that after a restart the step waits for it to
+ * finish rather than failing or issuing it again.
+ *
+ * @param <T> the step's return value.
+ */
+public abstract class CloudFormationStepExecution<T> extends StepExecution {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Number of threads issuing operations. Steps beyond it queue, so a burst
+	 * of steps can't start a thread each.
+	 */
+	private static final int THREADS = Integer.getInteger(CloudFormationStepExecution.class.getName() + ".threads", 10);
+
+	private static final ThreadPoolExecutor STARTER = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new NamingThreadFactory(new DaemonThreadFactory(), "CloudFormation step"));
+
+	static {
+		STARTER.allowCoreThreadTimeOut(true);
+	}
+
+	private final StackOperation inFlight = new StackOperation();
+
+	private transient volatile CloudFormation cloudFormation;
+	private transient volatile CompletableFuture<T> operation;
+	private transient volatile boolean stopped;
+
+	protected CloudFormationStepExecution(StepContext context) {
+		super(context);
+	}
+
+	/**
+	 * Called on a background thread.
+	 */
+	protected abstract CloudFormation newCloudFormation(TaskListener listener, EnvVars env) throws Exception;
+
+	/**
+	 * Issues the operation. Called on a background thread; may block on the
+	 * first API calls but should leave the waiting to the returned future.
+	 */
+	protected abstract CompletableFuture<T> run(CloudFormation cloudFormation) throws Exception;
+
+	/**
+	 * Waits for an operation issued before a restart. Runs the step again by
+	 * default, for steps that don't change anything.
+	 */
+	protected CompletableFuture<T> resume(CloudFormation cloudFormation, StackOperation operation) throws Exception {
+		return run(cloudFormation);
+	}
+
+	@Override
+	public boolean start() throws Exception {
+		submit();
+		return false;
+	}
+
+	private void submit() throws Exception {
+		final TaskListener listener = getContext().get(TaskListener.class);
+		final EnvVars env = getContext().get(EnvVars.class);
+		STARTER.submit(new Runnable() {
+			public void run() {
+				begin(listener, env);
+			}
+		});
+	}
+
+	private void begin(TaskListener listener, EnvVars env) {
+		try {
+			cloudFormation = newCloudFormation(listener, env);
+			cloudFormation.setInFlight(inFlight);
+			operation = inFlight.isStarted() ? resume(cloudFormation, inFlight) : run(cloudFormation);
+		} catch (Exception e) {
+			getContext().onFailure(e);
+			return;
+		}
+		if (stopped) {
+			cancel();
+			return;
+		}
+		operation.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T result, Throwable t) {
+				if (stopped) {
+					// stop() has already failed the step.
+					return;
+				}
+				if (t == null) {
+					getContext().onSuccess(result);
+				} else {
+					getContext().onFailure(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops waiting; the stack is left as it is in AWS.
+	 */
+	@Override
+	public void stop(Throwable cause) throws Exception {
+		stopped = true;
+		cancel();
+		getContext().onFailure(cause);
+	}
+
+	/**
+	 * Picks the wait up again after a restart, or issues the operation if the
+	 * restart came before it was.
+	 */
+	@Override
+	public void onResume() {
+		try {
+			submit();
+		} catch (Exception e) {
+			getContext().onFailure(e);
+		}
+	}
+
+	StackOperation getInFlight() {
+		return inFlight;
+	}
+
+	private void cancel() {
+		CompletableFuture<T> current = operation;
+		if (current != null) {
+			current.cancel(false);
+		}
+		CloudFormation currentCloudFormation = cloudFormation;
+		if (currentCloudFormation != null) {
+			currentCloudFormation.cancel();
+		}
+	}
+
+	/**
+	 * @return a future failing the step with the given message unless the
+	 * operation succeeded.
+	 */
+	static CompletableFuture<Boolean> succeeded(CompletableFuture<Boolean> operation, final String failure) {
+		return operation.thenApply(succeeded -> {
+			if (!succeeded) {
+				throw new CompletionException(new AbortException(failure));
+			}
+			return true;
+		});
+	}
+
+}
@@ -0,0 +1,48 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+/**
+ * Picks the time between two status checks of a stack operation.
+ *
+ * When the operation's usual duration is known, checks are sparse while it
+ * is far from done and get closer together as the expected completion time
+ * approaches. Without history, checks start frequent and slowly spread out
+ * as the operation drags on.
+ */
+public final class PollInterval {
+
+	static final long MIN_MS = 5000;
+	static final long MAX_MS = 60000;
+
+	/**
+	 * Longest wait once past the expected duration, or when it is unknown.
+	 */
+	static final long OVERDUE_MAX_MS = 30000;
+
+	private PollInterval() {
+	}
+
+	/**
+	 * @param elapsed milliseconds since the operation started.
+	 * @param expected usual duration of the operation in milliseconds, or a
+	 * negative value if unknown.
+	 * @param throttled number of throttled status requests so far.
+	 * @return milliseconds to wait before the next check.
+	 */
+	public static long next(long elapsed, long expected, int throttled) {
+		long interval;
+		if (expected < 0) {
+			interval = clamp(elapsed / 10, OVERDUE_MAX_MS);
+		} else if (elapsed < expected) {
+			interval = clamp((expected - elapsed) / 4, MAX_MS);
+		} else {
+			interval = clamp((elapsed - expected) / 4, OVERDUE_MAX_MS);
+		}
+		long backoff = (long) Math.min(Math.pow(2, throttled) * MIN_MS, MAX_MS);
+		return Math.max(interval, backoff);
+	}
+
+	private static long clamp(long interval, long max) {
+		return Math.max(MIN_MS, Math.min(interval, max));
+	}
+
+}
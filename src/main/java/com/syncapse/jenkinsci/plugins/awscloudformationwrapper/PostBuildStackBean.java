@@ -15,6 +15,7 @@ import java.util.Map;
 import hudson.util.Secret;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 /**
@@ -65,6 +66,16 @@ public class PostBuildStackBean extends AbstractDescribableImpl<PostBuildStackBe
 
     
     private Region awsRegion;
+
+    /**
+     * Whether to update an existing stack through a change set.
+     */
+    private boolean useChangeSet;
+
+    /**
+     * S3 bucket to stage templates in, if any.
+     */
+    private String templateBucket;
 	
 	@DataBoundConstructor
 	public PostBuildStackBean(String stackName, String description,
@@ -118,6 +129,24 @@ public class PostBuildStackBean extends AbstractDescribableImpl<PostBuildStackBe
     	return awsRegion;
     }
 
+    public boolean getUseChangeSet() {
+        return useChangeSet;
+    }
+
+    @DataBoundSetter
+    public void setUseChangeSet(boolean useChangeSet) {
+        this.useChangeSet = useChangeSet;
+    }
+
+    public String getTemplateBucket() {
+        return templateBucket;
+    }
+
+    @DataBoundSetter
+    public void setTemplateBucket(String templateBucket) {
+        this.templateBucket = templateBucket;
+    }
+
 	public Map<String, String> getParsedParameters(EnvVars env) {
 		
 		if (parameters == null || parameters.isEmpty())
@@ -0,0 +1,28 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import com.amazonaws.AmazonClientException;
+
+/**
+ * Thrown instead of waiting for a token of the {@link ApiRateLimiter} on the
+ * {@link StackStatusPoller} threads. The call was not made; the caller should
+ * try again after {@link #getDelayMillis()}, when its turn has come.
+ */
+public class RateLimitedException extends AmazonClientException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long delayMillis;
+
+	public RateLimitedException(long delayMillis) {
+		super("Waiting " + delayMillis + " ms for a turn to call CloudFormation");
+		this.delayMillis = delayMillis;
+	}
+
+	/**
+	 * @return milliseconds after which to try the call again.
+	 */
+	public long getDelayMillis() {
+		return delayMillis;
+	}
+
+}
@@ -14,6 +14,7 @@ import java.io.IOException;
 import hudson.util.Secret;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 /**
@@ -45,6 +46,18 @@ public class SimpleStackBean extends AbstractDescribableImpl<SimpleStackBean> {
 	private Region awsRegion;
         
         private Boolean isPrefixSelected;
+
+	/**
+	 * With a prefix, how many of the oldest matching stacks to delete; 0 for
+	 * no limit.
+	 */
+	private int maxStacksToDelete;
+
+	/**
+	 * With a prefix, only delete stacks older than this many hours; 0 for any
+	 * age.
+	 */
+	private int olderThanHours;
         
        
  
@@ -87,6 +100,24 @@ public class SimpleStackBean extends AbstractDescribableImpl<SimpleStackBean> {
 		return awsRegion;
 	}
 
+	public int getMaxStacksToDelete() {
+		return maxStacksToDelete;
+	}
+
+	@DataBoundSetter
+	public void setMaxStacksToDelete(int maxStacksToDelete) {
+		this.maxStacksToDelete = maxStacksToDelete;
+	}
+
+	public int getOlderThanHours() {
+		return olderThanHours;
+	}
+
+	@DataBoundSetter
+	public void setOlderThanHours(int olderThanHours) {
+		this.olderThanHours = olderThanHours;
+	}
+
 
 	@Extension
 	public static final class DescriptorImpl extends
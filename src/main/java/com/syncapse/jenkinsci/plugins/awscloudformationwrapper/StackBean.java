@@ -15,6 +15,7 @@ import java.util.Map;
 import hudson.util.Secret;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 /**
@@ -66,6 +67,31 @@ public class StackBean extends AbstractDescribableImpl<StackBean> {
     private boolean autoDeleteStack = true;
     
     private Region awsRegion;
+
+    /**
+     * Whether to update an existing stack through a change set.
+     */
+    private boolean useChangeSet;
+
+    /**
+     * S3 bucket to stage templates in, if any.
+     */
+    private String templateBucket;
+
+    /**
+     * Number of stacks to keep warm in the pool; only with a pool size.
+     */
+    private int poolMinSize;
+
+    /**
+     * Most stacks in the pool; 0 to create and delete the stack in each build.
+     */
+    private int poolMaxSize;
+
+    /**
+     * Minutes after which a warm stack nobody leased is deleted; 0 to keep it.
+     */
+    private int poolIdleMinutes = 60;
 	
 	@DataBoundConstructor
 	public StackBean(String stackName, String description,
@@ -119,6 +145,51 @@ public class StackBean extends AbstractDescribableImpl<StackBean> {
     	return awsRegion;
     }
 
+    public boolean getUseChangeSet() {
+        return useChangeSet;
+    }
+
+    @DataBoundSetter
+    public void setUseChangeSet(boolean useChangeSet) {
+        this.useChangeSet = useChangeSet;
+    }
+
+    public String getTemplateBucket() {
+        return templateBucket;
+    }
+
+    @DataBoundSetter
+    public void setTemplateBucket(String templateBucket) {
+        this.templateBucket = templateBucket;
+    }
+
+    public int getPoolMinSize() {
+        return poolMinSize;
+    }
+
+    @DataBoundSetter
+    public void setPoolMinSize(int poolMinSize) {
+        this.poolMinSize = poolMinSize;
+    }
+
+    public int getPoolMaxSize() {
+        return poolMaxSize;
+    }
+
+    @DataBoundSetter
+    public void setPoolMaxSize(int poolMaxSize) {
+        this.poolMaxSize = poolMaxSize;
+    }
+
+    public int getPoolIdleMinutes() {
+        return poolIdleMinutes;
+    }
+
+    @DataBoundSetter
+    public void setPoolIdleMinutes(int poolIdleMinutes) {
+        this.poolIdleMinutes = poolIdleMinutes;
+    }
+
 	public Map<String, String> getParsedParameters(EnvVars env) {
 		
 		if (parameters == null || parameters.isEmpty())
@@ -0,0 +1,173 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Which of a build's stacks need which others to exist first. Stacks are
+ * identified by their position in the configured list.
+ *
+ * A stack depends on another when its parameters reference one of the other
+ * stack's outputs, i.e. a variable named <code>[stack name]_[output]</code>.
+ */
+public final class StackDependencyGraph {
+
+	/**
+	 * Variable references as understood by {@link EnvVars#expand(String)}.
+	 */
+	private static final Pattern VARIABLE = Pattern.compile("\\$\\{([^}]+)\\}|\\$([A-Za-z0-9_]+)");
+
+	private final List<Set<Integer>> dependencies;
+	private final List<Set<Integer>> dependents;
+
+	private StackDependencyGraph(int size) {
+		dependencies = new ArrayList<Set<Integer>>(size);
+		dependents = new ArrayList<Set<Integer>>(size);
+		for (int i = 0; i < size; i++) {
+			dependencies.add(new TreeSet<Integer>());
+			dependents.add(new TreeSet<Integer>());
+		}
+	}
+
+	/**
+	 * @return a graph where every stack depends on the one configured before
+	 * it, i.e. the plain one-after-the-other order.
+	 */
+	public static StackDependencyGraph sequential(int size) {
+		StackDependencyGraph graph = new StackDependencyGraph(size);
+		for (int i = 1; i < size; i++) {
+			graph.add(i, i - 1);
+		}
+		return graph;
+	}
+
+	/**
+	 * Builds the graph from the output references in each stack's parameters.
+	 *
+	 * @throws AbortException if stacks depend on each other in a cycle.
+	 */
+	public static StackDependencyGraph fromOutputReferences(List<StackBean> stacks, EnvVars env) throws AbortException {
+		StackDependencyGraph graph = fromOutputReferences(stacks, env, false);
+		graph.checkForCycles(names(stacks, env));
+		return graph;
+	}
+
+	/**
+	 * Like {@link #fromOutputReferences(List, EnvVars)}, but only counts
+	 * references to stacks configured earlier: stacks created one after the
+	 * other can only use those. Such a graph has no cycles.
+	 */
+	public static StackDependencyGraph fromEarlierOutputReferences(List<StackBean> stacks, EnvVars env) {
+		return fromOutputReferences(stacks, env, true);
+	}
+
+	private static StackDependencyGraph fromOutputReferences(List<StackBean> stacks, EnvVars env, boolean earlierOnly) {
+		StackDependencyGraph graph = new StackDependencyGraph(stacks.size());
+		List<String> names = names(stacks, env);
+
+		for (int i = 0; i < stacks.size(); i++) {
+			String parameters = stacks.get(i).getParameters();
+			if (parameters == null) {
+				continue;
+			}
+			Matcher matcher = VARIABLE.matcher(parameters);
+			while (matcher.find()) {
+				String variable = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+				int producer = producerOf(variable, names);
+				if (producer >= 0 && producer != i && (!earlierOnly || producer < i)) {
+					graph.add(i, producer);
+				}
+			}
+		}
+		return graph;
+	}
+
+	private static List<String> names(List<StackBean> stacks, EnvVars env) {
+		List<String> names = new ArrayList<String>(stacks.size());
+		for (StackBean stack : stacks) {
+			names.add(env.expand(stack.getStackName()));
+		}
+		return names;
+	}
+
+	/**
+	 * @return the stack whose outputs the variable refers to, or -1. When
+	 * several stack names match, e.g. "app" and "app_db" for "app_db_Url", the
+	 * longest wins.
+	 */
+	private static int producerOf(String variable, List<String> names) {
+		int producer = -1;
+		for (int i = 0; i < names.size(); i++) {
+			String name = names.get(i);
+			if (variable.startsWith(name + "_")
+					&& (producer < 0 || name.length() > names.get(producer).length())) {
+				producer = i;
+			}
+		}
+		return producer;
+	}
+
+	private void add(int stack, int dependsOn) {
+		dependencies.get(stack).add(dependsOn);
+		dependents.get(dependsOn).add(stack);
+	}
+
+	private void checkForCycles(List<String> names) throws AbortException {
+		int[] remaining = new int[size()];
+		Deque<Integer> ready = new ArrayDeque<Integer>();
+		for (int i = 0; i < size(); i++) {
+			remaining[i] = dependencies.get(i).size();
+			if (remaining[i] == 0) {
+				ready.add(i);
+			}
+		}
+		int visited = 0;
+		while (!ready.isEmpty()) {
+			int stack = ready.poll();
+			visited++;
+			for (int dependent : dependents.get(stack)) {
+				if (--remaining[dependent] == 0) {
+					ready.add(dependent);
+				}
+			}
+		}
+		if (visited < size()) {
+			List<String> cyclic = new ArrayList<String>();
+			for (int i = 0; i < size(); i++) {
+				if (remaining[i] > 0) {
+					cyclic.add(names.get(i));
+				}
+			}
+			throw new AbortException("Stacks reference each other's outputs in a cycle: " + cyclic);
+		}
+	}
+
+	public int size() {
+		return dependencies.size();
+	}
+
+	/**
+	 * @return the stacks that must be created before the given one.
+	 */
+	public Set<Integer> getDependencies(int stack) {
+		return Collections.unmodifiableSet(dependencies.get(stack));
+	}
+
+	/**
+	 * @return the stacks that use the given stack's outputs.
+	 */
+	public Set<Integer> getDependents(int stack) {
+		return Collections.unmodifiableSet(dependents.get(stack));
+	}
+
+}
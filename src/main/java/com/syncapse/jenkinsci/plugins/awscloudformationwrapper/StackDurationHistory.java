@@ -0,0 +1,414 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * How long stack operations took, kept under JENKINS_HOME so that expected
+ * durations survive restarts.
+ *
+ * Operations are told apart by kind, stack name and template, so a template
+ * change that adds a database isn't judged by the runs before it; when a
+ * template has no history yet, every run of the operation on the stack is used
+ * instead.
+ *
+ * Samples are appended to a single log file, one line per successful run.
+ * Only the latest {@link #SAMPLES} runs of each operation and the most
+ * recently recorded {@link #KEYS} operations are kept, and the file is rewritten
+ * with just those once it has grown to twice their size. Runs are recorded on
+ * the poller threads, so the file is written by a thread of its own.
+ */
+public final class StackDurationHistory {
+
+	private static final Logger LOGGER = Logger.getLogger(StackDurationHistory.class.getName());
+
+	static final String FILE_NAME = "cloudformation-durations.log";
+
+	/**
+	 * Number of runs kept per operation.
+	 */
+	static final int SAMPLES = Integer.getInteger(StackDurationHistory.class.getName() + ".samples", 50);
+
+	/**
+	 * Number of operations kept, e.g. to drop stacks named after a build
+	 * number.
+	 */
+	static final int KEYS = Integer.getInteger(StackDurationHistory.class.getName() + ".keys", 1000);
+
+	private static StackDurationHistory instance;
+
+	private final File file;
+
+	/**
+	 * Samples per exact key, in least recently recorded order: a key is moved
+	 * to the end when recorded, not when read.
+	 */
+	private final LinkedHashMap<Key, Deque<Sample>> samples = new LinkedHashMap<Key, Deque<Sample>>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Deque<Sample>> eldest) {
+			return size() > KEYS;
+		}
+	};
+
+	private int linesOnDisk;
+
+	/**
+	 * Writes the file, one record after the other.
+	 */
+	private final ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(),
+			new NamingThreadFactory(new DaemonThreadFactory(), "CloudFormation stack durations"));
+
+	/**
+	 * @param file where to keep the history, or null to keep it in memory.
+	 */
+	StackDurationHistory(File file) {
+		this.file = file;
+		writer.allowCoreThreadTimeOut(true);
+		load();
+	}
+
+	public static synchronized StackDurationHistory get() {
+		if (instance == null) {
+			Jenkins jenkins = Jenkins.getInstanceOrNull();
+			instance = new StackDurationHistory(jenkins != null ? new File(jenkins.getRootDir(), FILE_NAME) : null);
+		}
+		return instance;
+	}
+
+	/**
+	 * @param operation e.g. "create", "update" or "delete".
+	 * @param template the template body or URL, or null if it doesn't matter
+	 * for the operation.
+	 */
+	public static Key key(String operation, String stackName, String template) {
+		return new Key(operation, stackName, template == null ? "" : StackFingerprint.sha256(template).substring(0, 16));
+	}
+
+	/**
+	 * @return the expected duration in milliseconds, or -1 if unknown.
+	 */
+	public long getExpectedMillis(Key key) {
+		Stats stats = getStats(key);
+		return stats == null ? -1 : stats.getP50();
+	}
+
+	/**
+	 * @return statistics for the key, falling back to every template of the
+	 * operation on the stack, or null if there are no runs.
+	 */
+	public synchronized Stats getStats(Key key) {
+		List<Sample> matching = new ArrayList<Sample>();
+		Deque<Sample> exact = samples.get(key);
+		if (exact != null) {
+			matching.addAll(exact);
+		} else {
+			for (Map.Entry<Key, Deque<Sample>> entry : samples.entrySet()) {
+				if (entry.getKey().sameOperation(key)) {
+					matching.addAll(entry.getValue());
+				}
+			}
+		}
+		return matching.isEmpty() ? null : new Stats(matching);
+	}
+
+	/**
+	 * Records a successful run. The run counts right away; it is saved in the
+	 * background.
+	 *
+	 * @param resources how long each resource took, by logical id.
+	 */
+	public void record(Key key, long millis, Map<String, Long> resources) {
+		Sample sample = new Sample(millis, resources);
+		final List<String> lines;
+		final boolean rewrite;
+		synchronized (this) {
+			add(key, sample);
+			if (file == null) {
+				return;
+			}
+			rewrite = linesOnDisk >= 2 * retained() + KEYS;
+			if (rewrite) {
+				lines = retainedLines();
+				linesOnDisk = lines.size();
+			} else {
+				lines = Collections.singletonList(key.format() + "\t" + sample.format());
+				linesOnDisk++;
+			}
+		}
+		writer.execute(() -> {
+			try {
+				if (rewrite) {
+					compact(lines);
+				} else {
+					append(lines.get(0));
+				}
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to save stack durations to " + file, e);
+			}
+		});
+	}
+
+	/**
+	 * Waits for the runs recorded so far to be saved.
+	 */
+	void flush() throws InterruptedException {
+		try {
+			writer.submit(() -> { }).get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void add(Key key, Sample sample) {
+		Deque<Sample> runs = samples.remove(key);
+		if (runs == null) {
+			runs = new ArrayDeque<Sample>();
+		}
+		samples.put(key, runs);
+		runs.add(sample);
+		if (runs.size() > SAMPLES) {
+			runs.poll();
+		}
+	}
+
+	private int retained() {
+		int retained = 0;
+		for (Deque<Sample> runs : samples.values()) {
+			retained += runs.size();
+		}
+		return retained;
+	}
+
+	private void load() {
+		if (file == null || !file.exists()) {
+			return;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields.length < 5) {
+					continue;
+				}
+				try {
+					add(new Key(fields[0], fields[1], fields[2]), Sample.parse(fields[3], fields[4]));
+				} catch (NumberFormatException e) {
+					LOGGER.log(Level.FINE, "Skipping corrupt stack duration: " + line, e);
+				}
+				linesOnDisk++;
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to load stack durations from " + file, e);
+		}
+	}
+
+	/**
+	 * @return a line per retained sample. Called holding the lock.
+	 */
+	private List<String> retainedLines() {
+		List<String> lines = new ArrayList<String>();
+		for (Map.Entry<Key, Deque<Sample>> entry : samples.entrySet()) {
+			for (Sample sample : entry.getValue()) {
+				lines.add(entry.getKey().format() + "\t" + sample.format());
+			}
+		}
+		return lines;
+	}
+
+	private void append(String line) throws IOException {
+		try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			writer.write(line + "\n");
+		}
+	}
+
+	/**
+	 * Rewrites the file with only the retained samples.
+	 */
+	private void compact(List<String> lines) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+			for (String line : lines) {
+				writer.write(line + "\n");
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * An operation on a stack with a given template.
+	 */
+	public static final class Key {
+		private final String operation;
+		private final String stackName;
+		private final String template;
+
+		Key(String operation, String stackName, String template) {
+			this.operation = operation;
+			this.stackName = stackName;
+			this.template = template;
+		}
+
+		public String getOperation() {
+			return operation;
+		}
+
+		boolean sameOperation(Key other) {
+			return operation.equals(other.operation) && stackName.equals(other.stackName);
+		}
+
+		String format() {
+			return operation + "\t" + stackName + "\t" + template;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return sameOperation(other) && template.equals(other.template);
+		}
+
+		@Override
+		public int hashCode() {
+			return format().hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return operation + " of " + stackName;
+		}
+	}
+
+	private static final class Sample {
+		private final long millis;
+		private final Map<String, Long> resources;
+
+		Sample(long millis, Map<String, Long> resources) {
+			this.millis = millis;
+			this.resources = resources;
+		}
+
+		static Sample parse(String millis, String resources) {
+			Map<String, Long> parsed = new HashMap<String, Long>();
+			if (!resources.isEmpty()) {
+				for (String resource : resources.split(",")) {
+					int separator = resource.lastIndexOf('=');
+					parsed.put(resource.substring(0, separator), Long.parseLong(resource.substring(separator + 1)));
+				}
+			}
+			return new Sample(Long.parseLong(millis), parsed);
+		}
+
+		String format() {
+			StringBuilder result = new StringBuilder().append(millis).append('\t');
+			for (Iterator<Map.Entry<String, Long>> it = resources.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, Long> resource = it.next();
+				result.append(resource.getKey()).append('=').append(resource.getValue());
+				if (it.hasNext()) {
+					result.append(',');
+				}
+			}
+			return result.toString();
+		}
+	}
+
+	/**
+	 * Statistics over the kept runs of an operation. Durations are in
+	 * milliseconds.
+	 */
+	public static final class Stats {
+		private final int count;
+		private final long mean;
+		private final long p50;
+		private final long p95;
+		private final Map<String, Long> resourceMeans = new LinkedHashMap<String, Long>();
+
+		Stats(List<Sample> samples) {
+			List<Long> durations = new ArrayList<Long>(samples.size());
+			long total = 0;
+			Map<String, long[]> resources = new HashMap<String, long[]>();
+			for (Sample sample : samples) {
+				durations.add(sample.millis);
+				total += sample.millis;
+				for (Map.Entry<String, Long> resource : sample.resources.entrySet()) {
+					long[] sum = resources.computeIfAbsent(resource.getKey(), k -> new long[2]);
+					sum[0] += resource.getValue();
+					sum[1]++;
+				}
+			}
+			Collections.sort(durations);
+			count = durations.size();
+			mean = total / count;
+			p50 = percentile(durations, 50);
+			p95 = percentile(durations, 95);
+
+			// Slowest resources first.
+			List<Map.Entry<String, long[]>> sorted = new ArrayList<Map.Entry<String, long[]>>(resources.entrySet());
+			sorted.sort((a, b) -> Long.compare(b.getValue()[0] / b.getValue()[1], a.getValue()[0] / a.getValue()[1]));
+			for (Map.Entry<String, long[]> resource : sorted) {
+				resourceMeans.put(resource.getKey(), resource.getValue()[0] / resource.getValue()[1]);
+			}
+		}
+
+		/**
+		 * Nearest-rank percentile of sorted values.
+		 */
+		private static long percentile(List<Long> sorted, int percentile) {
+			int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+			return sorted.get(Math.max(0, rank - 1));
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public long getMean() {
+			return mean;
+		}
+
+		public long getP50() {
+			return p50;
+		}
+
+		public long getP95() {
+			return p95;
+		}
+
+		/**
+		 * @return the mean duration of each resource, slowest first.
+		 */
+		public Map<String, Long> getResourceMeans() {
+			return Collections.unmodifiableMap(resourceMeans);
+		}
+	}
+
+}
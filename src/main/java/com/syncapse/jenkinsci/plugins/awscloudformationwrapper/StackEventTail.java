@@ -0,0 +1,156 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.DescribeStackEventsRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStackEventsResult;
+import com.amazonaws.services.cloudformation.model.StackEvent;
+
+/**
+ * Prints a stack's events to the console while an operation is running.
+ *
+ * DescribeStackEvents returns the newest events first, so each read pages back
+ * only as far as the last event printed. A read therefore costs, and holds in
+ * memory, just the events that are new since the previous one, however long
+ * the stack's history is.
+ */
+public final class StackEventTail {
+
+	private static final Logger LOGGER = Logger.getLogger(StackEventTail.class.getName());
+
+	/**
+	 * Minimum time between two reads of the events while waiting.
+	 */
+	static final long INTERVAL_MS = Long.getLong(StackEventTail.class.getName() + ".intervalSeconds", 15) * 1000;
+
+	private final PrintStream logger;
+	private final String stackNameOrId;
+	private String lastEventId;
+	private long lastRead;
+	private final Map<String, Long> started = new HashMap<String, Long>();
+	private final Map<String, Long> resourceDurations = new LinkedHashMap<String, Long>();
+
+	/**
+	 * @param stackNameOrId the stack to follow; prefer its id (ARN), which
+	 * still works once the stack is deleted.
+	 */
+	public StackEventTail(PrintStream logger, String stackNameOrId) {
+		this(logger, stackNameOrId, null);
+	}
+
+	/**
+	 * @param lastEventId the last event already printed, e.g. before a
+	 * restart; only later events are printed.
+	 */
+	public StackEventTail(PrintStream logger, String stackNameOrId, String lastEventId) {
+		this.logger = logger;
+		this.stackNameOrId = stackNameOrId;
+		this.lastEventId = lastEventId;
+	}
+
+	public String getStackNameOrId() {
+		return stackNameOrId;
+	}
+
+	/**
+	 * @return the id of the last event printed or marked, or null.
+	 */
+	public synchronized String getLastEventId() {
+		return lastEventId;
+	}
+
+	/**
+	 * Remembers the stack's latest event, so that only events after it are
+	 * printed. Call it before starting an operation on an existing stack.
+	 */
+	public synchronized void mark(AmazonCloudFormation client) {
+		try {
+			DescribeStackEventsResult page = client.describeStackEvents(
+					new DescribeStackEventsRequest().withStackName(stackNameOrId));
+			if (!page.getStackEvents().isEmpty()) {
+				lastEventId = page.getStackEvents().get(0).getEventId();
+			}
+		} catch (AmazonClientException e) {
+			LOGGER.log(Level.FINE, "Failed to read the events of stack " + stackNameOrId, e);
+		}
+	}
+
+	/**
+	 * Prints the events since the last call, oldest first.
+	 *
+	 * @param force false to skip the read if the previous one was less than
+	 * {@link #INTERVAL_MS} ago.
+	 */
+	public synchronized void printNewEvents(AmazonCloudFormation client, boolean force) {
+		long now = System.currentTimeMillis();
+		if (!force && now - lastRead < INTERVAL_MS) {
+			return;
+		}
+		lastRead = now;
+
+		Deque<StackEvent> newEvents = new ArrayDeque<StackEvent>();
+		try {
+			DescribeStackEventsRequest request = new DescribeStackEventsRequest().withStackName(stackNameOrId);
+			pages: do {
+				DescribeStackEventsResult page = client.describeStackEvents(request);
+				for (StackEvent event : page.getStackEvents()) {
+					if (event.getEventId().equals(lastEventId)) {
+						break pages;
+					}
+					newEvents.push(event);
+				}
+				request.setNextToken(page.getNextToken());
+			} while (request.getNextToken() != null);
+		} catch (AmazonClientException e) {
+			// Events are informational only; try again on the next read.
+			LOGGER.log(Level.FINE, "Failed to read the events of stack " + stackNameOrId, e);
+			return;
+		}
+
+		if (!newEvents.isEmpty()) {
+			lastEventId = newEvents.peekLast().getEventId();
+		}
+		for (StackEvent event : newEvents) {
+			timeResource(event);
+			logger.println(event.getEventId() + " - " + event.getResourceType() + " - " + event.getResourceStatus() + " - " + event.getResourceStatusReason());
+		}
+	}
+
+	/**
+	 * @return how long each resource took to reach a complete status in the
+	 * events printed so far, by logical id.
+	 */
+	public synchronized Map<String, Long> getResourceDurations() {
+		return new LinkedHashMap<String, Long>(resourceDurations);
+	}
+
+	private void timeResource(StackEvent event) {
+		String status = event.getResourceStatus();
+		if (event.getTimestamp() == null || status == null || event.getLogicalResourceId() == null
+				|| stackNameOrId.equals(event.getPhysicalResourceId())) {
+			// The stack itself is timed by the waiter.
+			return;
+		}
+		long time = event.getTimestamp().getTime();
+		if (status.endsWith("_IN_PROGRESS")) {
+			if (!started.containsKey(event.getLogicalResourceId())) {
+				started.put(event.getLogicalResourceId(), time);
+			}
+		} else if (status.endsWith("_COMPLETE")) {
+			Long start = started.remove(event.getLogicalResourceId());
+			if (start != null) {
+				resourceDurations.put(event.getLogicalResourceId(), time - start);
+			}
+		}
+	}
+
+}
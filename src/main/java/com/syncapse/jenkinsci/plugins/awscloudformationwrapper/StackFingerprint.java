@@ -0,0 +1,93 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import com.amazonaws.services.cloudformation.model.Parameter;
+import com.amazonaws.services.cloudformation.model.Tag;
+
+/**
+ * A hash of what a stack was deployed with: its template and parameters.
+ *
+ * The fingerprint of each deploy is stored as a tag on the stack. A deploy
+ * whose fingerprint matches the tag can then skip the update altogether.
+ */
+public final class StackFingerprint {
+
+	/**
+	 * The stack tag holding the fingerprint.
+	 */
+	public static final String TAG = "jenkins-cloudformation-fingerprint";
+
+	private StackFingerprint() {
+	}
+
+	/**
+	 * @param template the template body.
+	 * @param parameters the stack parameters, in any order; may be null.
+	 * @return the fingerprint of the template and parameters.
+	 */
+	public static String of(String template, List<Parameter> parameters) {
+		StringBuilder content = new StringBuilder(template);
+		if (parameters != null) {
+			List<Parameter> sorted = new ArrayList<Parameter>(parameters);
+			sorted.sort(Comparator.comparing(Parameter::getParameterKey));
+			for (Parameter parameter : sorted) {
+				content.append('\0').append(parameter.getParameterKey())
+						.append('=').append(parameter.getParameterValue());
+			}
+		}
+		return sha256(content.toString());
+	}
+
+	/**
+	 * @return the fingerprint tag of a stack, or null.
+	 */
+	public static String fromTags(List<Tag> tags) {
+		if (tags != null) {
+			for (Tag tag : tags) {
+				if (TAG.equals(tag.getKey())) {
+					return tag.getValue();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the given tags with the fingerprint tag set to the fingerprint.
+	 */
+	public static List<Tag> withTag(List<Tag> tags, String fingerprint) {
+		List<Tag> result = new ArrayList<Tag>();
+		if (tags != null) {
+			for (Tag tag : tags) {
+				if (!TAG.equals(tag.getKey())) {
+					result.add(tag);
+				}
+			}
+		}
+		result.add(new Tag().withKey(TAG).withValue(fingerprint));
+		return result;
+	}
+
+	/**
+	 * @return the hex SHA-256 of the text.
+	 */
+	static String sha256(String text) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : hash) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
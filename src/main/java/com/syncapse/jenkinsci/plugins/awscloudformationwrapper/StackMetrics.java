@@ -0,0 +1,155 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.metrics.api.Metrics;
+import jenkins.model.Jenkins;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Publishes how the plugin uses CloudFormation to the Metrics plugin's
+ * registry, per region:
+ *
+ * <ul>
+ * <li>{@code cloudformation.api.<region>.<call>}: a timer of every attempt,
+ * with {@code .throttles}, {@code .errors} and {@code .retries} counters
+ * alongside.</li>
+ * <li>{@code cloudformation.stack.<region>.polls}: how many polls waiting for
+ * a stack took.</li>
+ * <li>{@code cloudformation.stack.<region>.<operation>}: a timer of
+ * successful creates, updates and deletes.</li>
+ * </ul>
+ *
+ * Outside of Jenkins, e.g. in tests, a private registry is used instead.
+ * The Metrics plugin's registry is looked up on use until the plugin has
+ * started, so that clients instrumented before then still publish to it.
+ */
+public final class StackMetrics {
+
+	private static final Logger LOGGER = Logger.getLogger(StackMetrics.class.getName());
+
+	private static StackMetrics instance;
+
+	/**
+	 * Takes what is recorded before the Metrics plugin has started.
+	 */
+	private static final MetricRegistry UNAVAILABLE = new MetricRegistry();
+
+	private final Supplier<MetricRegistry> lookup;
+
+	private volatile MetricRegistry registry;
+
+	StackMetrics(MetricRegistry registry) {
+		this.lookup = null;
+		this.registry = registry;
+	}
+
+	/**
+	 * @param lookup returns the registry, or throws until it is available.
+	 */
+	StackMetrics(Supplier<MetricRegistry> lookup) {
+		this.lookup = lookup;
+	}
+
+	public static synchronized StackMetrics get() {
+		if (instance == null) {
+			instance = Jenkins.getInstanceOrNull() == null
+					? new StackMetrics(new MetricRegistry())
+					: new StackMetrics(Metrics::metricRegistry);
+		}
+		return instance;
+	}
+
+	MetricRegistry getRegistry() {
+		MetricRegistry result = registry;
+		if (result != null) {
+			return result;
+		}
+		try {
+			result = lookup.get();
+			registry = result;
+			return result;
+		} catch (RuntimeException | AssertionError e) {
+			// The Metrics plugin isn't started yet; try again next time.
+			LOGGER.log(Level.FINE, "Metrics registry not available", e);
+			return UNAVAILABLE;
+		}
+	}
+
+	/**
+	 * @return a client timing every call of the given one.
+	 */
+	public AmazonCloudFormation instrument(final AmazonCloudFormation client, final Region region) {
+		return (AmazonCloudFormation) Proxy.newProxyInstance(AmazonCloudFormation.class.getClassLoader(),
+				new Class<?>[] { AmazonCloudFormation.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (ApiRateLimiter.Operation.of(method) == null) {
+							return call(client, method, args);
+						}
+						String name = apiName(region, method.getName());
+						MetricRegistry registry = getRegistry();
+						Timer.Context timer = registry.timer(name).time();
+						try {
+							return call(client, method, args);
+						} catch (AmazonServiceException e) {
+							registry.counter(name + (RetryUtils.isThrottlingException(e) ? ".throttles" : ".errors")).inc();
+							throw e;
+						} catch (RuntimeException e) {
+							registry.counter(name + ".errors").inc();
+							throw e;
+						} finally {
+							timer.stop();
+						}
+					}
+				});
+	}
+
+	/**
+	 * Counts a retried call.
+	 */
+	public void retried(Region region, String call) {
+		getRegistry().counter(apiName(region, call) + ".retries").inc();
+	}
+
+	/**
+	 * Records how many polls waiting for a stack took.
+	 */
+	public void stackPolled(Region region, int polls) {
+		getRegistry().histogram(MetricRegistry.name("cloudformation.stack", region.awsRegion, "polls")).update(polls);
+	}
+
+	/**
+	 * Records the duration of a successful operation.
+	 *
+	 * @param operation e.g. "create", "update" or "delete".
+	 */
+	public void stackSettled(Region region, String operation, long millis) {
+		getRegistry().timer(MetricRegistry.name("cloudformation.stack", region.awsRegion, operation))
+				.update(millis, TimeUnit.MILLISECONDS);
+	}
+
+	private static String apiName(Region region, String call) {
+		return MetricRegistry.name("cloudformation.api", region.awsRegion, call);
+	}
+
+	private static Object call(AmazonCloudFormation client, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(client, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import java.io.Serializable;
+
+/**
+ * The stack operation a build is waiting on, kept with the build so that the
+ * wait can pick up where it left off after a restart instead of issuing the
+ * operation again.
+ *
+ * {@link CloudFormation} fills it in once the operation has been issued and
+ * keeps the last event read up to date while waiting.
+ */
+public final class StackOperation implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Operation deleting several stacks with a prefix, which is not resumed.
+	 */
+	static final String DELETE_PREFIX = "delete-prefix";
+
+	private volatile String stackId;
+	private volatile String operation;
+	private volatile long startTime;
+	private volatile String lastEventId;
+
+	/**
+	 * @param operation e.g. "create", "update" or "delete".
+	 */
+	void started(String stackId, String operation, long startTime, String lastEventId) {
+		this.stackId = stackId;
+		this.startTime = startTime;
+		this.lastEventId = lastEventId;
+		this.operation = operation;
+	}
+
+	void eventsRead(String lastEventId) {
+		this.lastEventId = lastEventId;
+	}
+
+	/**
+	 * @return true once the operation has been issued.
+	 */
+	public boolean isStarted() {
+		return operation != null;
+	}
+
+	public String getStackId() {
+		return stackId;
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * @return the id of the last event printed, or null.
+	 */
+	public String getLastEventId() {
+		return lastEventId;
+	}
+
+	@Override
+	public String toString() {
+		return operation + " of " + stackId;
+	}
+
+}
@@ -0,0 +1,662 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+import hudson.util.NamingThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.Output;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.StackStatus;
+import com.amazonaws.services.cloudformation.model.StackSummary;
+
+/**
+ * Controller-wide pools of warm stacks, one per account, region and
+ * template/parameter fingerprint, so that builds needing a throwaway copy of
+ * the same stack lease one that is already up instead of creating and
+ * deleting their own.
+ *
+ * A pool keeps at least its minimum number of stacks ready, and never has
+ * more than its maximum ready, being created or leased; a build asking for a
+ * stack when none is ready waits for one. A stack handed back is deleted and
+ * a fresh one created in its place in the background, so no build sees what
+ * another one left behind. Ready stacks nobody leased within the idle expiry
+ * are deleted, and the pool isn't filled up again until the next lease.
+ *
+ * Pools are not saved, but their stacks outlive a restart: the first time a
+ * pool is used it lists the stacks named under {@link #NAME_PREFIX} that no
+ * pool knows of. It adopts its own warm stacks, telling them by their
+ * fingerprint tag, and deletes the stacks left half created, or leased to
+ * builds the restart cut short; the stacks leased are kept under
+ * JENKINS_HOME for that. Warm stacks of other pools are left for their pool,
+ * unless they are older than {@link #ORPHAN_MS}.
+ */
+public final class StackPool {
+
+	private static final Logger LOGGER = Logger.getLogger(StackPool.class.getName());
+
+	/**
+	 * What the names of pooled stacks start with. Default value is
+	 * "jenkins-pool".
+	 */
+	static final String NAME_PREFIX = System.getProperty(StackPool.class.getName() + ".namePrefix", "jenkins-pool");
+
+	/**
+	 * Age from which a warm stack no pool has adopted is deleted by the other
+	 * pools. Default value is 24 hours.
+	 */
+	static final long ORPHAN_MS = TimeUnit.HOURS.toMillis(Long.getLong(StackPool.class.getName() + ".orphanHours", 24));
+
+	static final String FILE_NAME = "cloudformation-pool-leases.txt";
+
+	/**
+	 * Every status but the deleted ones, to list the stacks left by a restart.
+	 */
+	private static final List<String> LIVE_STATUSES = new ArrayList<String>();
+
+	static {
+		for (StackStatus status : StackStatus.values()) {
+			if (status != StackStatus.DELETE_COMPLETE && status != StackStatus.DELETE_IN_PROGRESS) {
+				LIVE_STATUSES.add(status.toString());
+			}
+		}
+	}
+
+	private static StackPool instance;
+
+	/**
+	 * Creates and deletes pooled stacks, which may take a few API calls, off
+	 * the build and poller threads.
+	 */
+	private final ExecutorService executor = Executors.newCachedThreadPool(
+			new NamingThreadFactory(new DaemonThreadFactory(), "CloudFormation stack pool"));
+
+	private final PrintStream logger = new LogTaskListener(LOGGER, Level.FINE).getLogger();
+
+	private final ConcurrentMap<Key, Pool> pools = new ConcurrentHashMap<Key, Pool>();
+
+	private final File file;
+
+	/**
+	 * Names of the stacks leased to builds, saved to the file as they change.
+	 */
+	private final Set<String> leased = new LinkedHashSet<String>();
+
+	/**
+	 * @param file where to keep the names of the leased stacks, or null to
+	 * keep them in memory.
+	 */
+	StackPool(File file) {
+		this.file = file;
+		load();
+	}
+
+	public static synchronized StackPool get() {
+		if (instance == null) {
+			Jenkins jenkins = Jenkins.getInstanceOrNull();
+			instance = new StackPool(jenkins != null ? new File(jenkins.getRootDir(), FILE_NAME) : null);
+		}
+		return instance;
+	}
+
+	/**
+	 * Leases a stack deployed like the given one, from its pool.
+	 *
+	 * @param stack the stack the build asked for; the pool creates its stacks
+	 * with its template, parameters and credentials.
+	 * @param minSize the number of stacks to keep ready.
+	 * @param maxSize the most stacks the pool may have.
+	 * @param idleMillis time after which an unleased stack is deleted, or 0
+	 * to keep it.
+	 * @return a future completed with the lease once a stack is ready, or
+	 * exceptionally if the stack created for it failed. Cancelling the future
+	 * gives up the place in the queue.
+	 */
+	public CompletableFuture<Lease> lease(CloudFormation stack, int minSize, int maxSize, long idleMillis) {
+		Key key = new Key(stack.getAwsAccessKey(), stack.getAwsRegion(), stack.getPoolFingerprint());
+		CompletableFuture<Lease> result = new CompletableFuture<Lease>();
+		while (true) {
+			Pool pool = pools.computeIfAbsent(key, Pool::new);
+			List<String> toCreate;
+			boolean reconcile;
+			synchronized (pool) {
+				if (pool.removed) {
+					// Dropped by expireIdle() in the meantime.
+					continue;
+				}
+				reconcile = !pool.reconciled;
+				pool.reconciled = true;
+				pool.reconciling |= reconcile;
+				if (pool.prototype == null) {
+					// Kept rather than the build's stack, whose console and
+					// environment go with the build.
+					pool.prototype = stack.pooled(pool.namePrefix(), logger);
+				}
+				pool.minSize = Math.min(minSize, maxSize);
+				pool.maxSize = maxSize;
+				pool.idleMillis = idleMillis;
+				pool.failing = false;
+				Ready ready = pool.ready.pollLast();
+				if (ready != null) {
+					result.complete(lease(pool, ready));
+				} else {
+					pool.waiting.add(result);
+				}
+				toCreate = pool.replenish();
+			}
+			if (reconcile) {
+				final Pool reconciled = pool;
+				executor.execute(() -> reconcile(reconciled));
+			}
+			create(pool, toCreate);
+			return result;
+		}
+	}
+
+	/**
+	 * Hands a stack back to its pool, which deletes it and creates a fresh one
+	 * if the pool is short.
+	 */
+	void release(Lease lease) {
+		final Pool pool = lease.pool;
+		List<String> toCreate;
+		synchronized (pool) {
+			pool.leased--;
+			toCreate = pool.replenish();
+		}
+		setLeased(lease.stackName, false);
+		delete(pool, lease.stackName);
+		create(pool, toCreate);
+	}
+
+	/**
+	 * Deletes the ready stacks that have not been leased within their pool's
+	 * idle expiry, and drops the pools left with nothing in them.
+	 */
+	public void expireIdle() {
+		long now = System.currentTimeMillis();
+		for (Pool pool : pools.values()) {
+			List<String> expired = new ArrayList<String>();
+			synchronized (pool) {
+				for (Iterator<Ready> it = pool.ready.iterator(); it.hasNext();) {
+					Ready ready = it.next();
+					if (pool.idleMillis > 0 && now - ready.since >= pool.idleMillis) {
+						expired.add(ready.stackName);
+						it.remove();
+					}
+				}
+				if (pool.ready.isEmpty() && pool.creating == 0 && pool.leased == 0 && pool.waiting.isEmpty()
+						&& !pool.reconciling) {
+					pool.removed = true;
+					pools.remove(pool.key, pool);
+				}
+			}
+			for (String stackName : expired) {
+				LOGGER.fine("Deleting idle pooled stack " + stackName);
+				delete(pool, stackName);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of stacks ready in the pool of the given stack.
+	 */
+	int getReady(CloudFormation stack) {
+		Pool pool = pools.get(new Key(stack.getAwsAccessKey(), stack.getAwsRegion(), stack.getPoolFingerprint()));
+		if (pool == null) {
+			return 0;
+		}
+		synchronized (pool) {
+			return pool.ready.size();
+		}
+	}
+
+	/**
+	 * Adopts the warm stacks of the pool left by a restart, and deletes the
+	 * stacks no pool knows of that nobody can use.
+	 */
+	private void reconcile(Pool pool) {
+		CloudFormation prototype;
+		synchronized (pool) {
+			prototype = pool.prototype;
+		}
+		List<Ready> adopted = new ArrayList<Ready>();
+		List<String> orphans = new ArrayList<String>();
+		try {
+			AmazonCloudFormation client = prototype.getAWSClient();
+			long now = System.currentTimeMillis();
+			for (Iterator<StackSummary> it = new StackSummaryIterator(client, LIVE_STATUSES); it.hasNext();) {
+				StackSummary summary = it.next();
+				String stackName = summary.getStackName();
+				if (!stackName.startsWith(NAME_PREFIX + "-") || isTracked(stackName)) {
+					continue;
+				}
+				boolean warm = StackStatus.CREATE_COMPLETE.toString().equals(summary.getStackStatus())
+						&& !isLeased(stackName);
+				if (warm && stackName.startsWith(pool.namePrefix() + "-")) {
+					Ready ready = adoptable(client, pool, stackName);
+					if (ready != null) {
+						adopted.add(ready);
+						continue;
+					}
+				} else if (warm && now - summary.getCreationTime().getTime() < ORPHAN_MS) {
+					// Left for the pool it belongs to.
+					continue;
+				}
+				orphans.add(stackName);
+			}
+		} catch (AmazonClientException e) {
+			LOGGER.log(Level.WARNING, "Failed to look for pooled stacks left by a restart", e);
+		}
+
+		List<String> toCreate;
+		synchronized (pool) {
+			pool.reconciling = false;
+			for (Ready ready : adopted) {
+				if (pool.ready.size() + pool.creating + pool.leased < pool.maxSize) {
+					LOGGER.fine("Adopting pooled stack " + ready.stackName);
+					pool.stackNames.add(ready.stackName);
+					handOut(pool, ready);
+				} else {
+					orphans.add(ready.stackName);
+				}
+			}
+			toCreate = pool.replenish();
+		}
+		for (String stackName : orphans) {
+			LOGGER.fine("Deleting pooled stack " + stackName + " left by a restart");
+			setLeased(stackName, false);
+			delete(pool, stackName);
+		}
+		create(pool, toCreate);
+	}
+
+	/**
+	 * @return the stack as a ready one if it was created with the template
+	 * and parameters of the pool, or null.
+	 */
+	private Ready adoptable(AmazonCloudFormation client, Pool pool, String stackName) {
+		List<Stack> stacks = client.describeStacks(new DescribeStacksRequest().withStackName(stackName)).getStacks();
+		if (stacks.isEmpty() || !pool.key.fingerprint.equals(StackFingerprint.fromTags(stacks.get(0).getTags()))) {
+			return null;
+		}
+		Map<String, String> outputs = new HashMap<String, String>();
+		for (Output output : stacks.get(0).getOutputs()) {
+			outputs.put(output.getOutputKey(), output.getOutputValue());
+		}
+		return new Ready(stackName, outputs);
+	}
+
+	/**
+	 * @return true if one of the pools has the stack.
+	 */
+	private boolean isTracked(String stackName) {
+		for (Pool pool : pools.values()) {
+			synchronized (pool) {
+				if (pool.stackNames.contains(stackName)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private boolean isLeased(String stackName) {
+		synchronized (leased) {
+			return leased.contains(stackName);
+		}
+	}
+
+	private void setLeased(String stackName, boolean isLeased) {
+		synchronized (leased) {
+			if (isLeased ? leased.add(stackName) : leased.remove(stackName)) {
+				save();
+			}
+		}
+	}
+
+	private void load() {
+		if (file == null || !file.exists()) {
+			return;
+		}
+		try {
+			for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+				if (!line.isEmpty()) {
+					leased.add(line);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to load the leased pooled stacks from " + file, e);
+		}
+	}
+
+	/**
+	 * Rewrites the file with the leased stacks. Called holding their lock.
+	 */
+	private void save() {
+		if (file == null) {
+			return;
+		}
+		try {
+			File tmp = new File(file.getPath() + ".tmp");
+			Files.write(tmp.toPath(), leased, StandardCharsets.UTF_8);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to save the leased pooled stacks to " + file, e);
+		}
+	}
+
+	/**
+	 * Leases a ready stack. Called holding the pool's lock.
+	 */
+	private Lease lease(Pool pool, Ready ready) {
+		pool.leased++;
+		setLeased(ready.stackName, true);
+		return new Lease(this, pool, ready.stackName, ready.outputs);
+	}
+
+	private void create(final Pool pool, List<String> stackNames) {
+		for (final String stackName : stackNames) {
+			executor.execute(() -> {
+				final CloudFormation cf;
+				synchronized (pool) {
+					cf = pool.prototype.pooled(stackName, logger);
+				}
+				CompletableFuture<Boolean> result;
+				try {
+					result = cf.createAsync();
+				} catch (RuntimeException e) {
+					result = new CompletableFuture<Boolean>();
+					result.completeExceptionally(e);
+				}
+				result.whenComplete((ok, error) -> created(pool, cf, Boolean.TRUE.equals(ok)));
+			});
+		}
+	}
+
+	private void created(Pool pool, CloudFormation cf, boolean ok) {
+		String stackName = cf.getExpandedStackName();
+		if (ok) {
+			LOGGER.fine("Pooled stack " + stackName + " is ready");
+			synchronized (pool) {
+				pool.creating--;
+				pool.failing = false;
+				handOut(pool, new Ready(stackName, cf.getStackOutputs()));
+			}
+			return;
+		}
+
+		LOGGER.warning("Failed to create pooled stack " + stackName);
+		List<String> toCreate;
+		synchronized (pool) {
+			pool.creating--;
+			// Stop filling the pool up to its minimum until a stack can be
+			// created again, or somebody asks for one.
+			pool.failing = true;
+			CompletableFuture<Lease> waiter = pool.waiting.poll();
+			if (waiter != null) {
+				waiter.completeExceptionally(new IllegalStateException("Failed to create pooled stack " + stackName));
+			}
+			toCreate = pool.replenish();
+		}
+		delete(pool, stackName);
+		create(pool, toCreate);
+	}
+
+	/**
+	 * Leases the stack to the first build still waiting for one, or keeps it
+	 * ready. Called holding the pool's lock.
+	 */
+	private void handOut(Pool pool, Ready ready) {
+		for (CompletableFuture<Lease> waiter; (waiter = pool.waiting.poll()) != null;) {
+			if (waiter.isDone()) {
+				continue;
+			}
+			Lease lease = lease(pool, ready);
+			if (waiter.complete(lease)) {
+				return;
+			}
+			// Cancelled in the meantime.
+			pool.leased--;
+			setLeased(ready.stackName, false);
+		}
+		pool.ready.addLast(ready);
+	}
+
+	private void delete(final Pool pool, final String stackName) {
+		executor.execute(() -> {
+			CloudFormation cf;
+			synchronized (pool) {
+				cf = pool.prototype.pooled(stackName, logger);
+			}
+			try {
+				cf.deleteAsync().whenComplete((ok, error) -> {
+					if (!Boolean.TRUE.equals(ok)) {
+						LOGGER.warning("Failed to delete pooled stack " + stackName);
+					}
+					forget(pool, stackName);
+				});
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Failed to delete pooled stack " + stackName, e);
+				forget(pool, stackName);
+			}
+		});
+	}
+
+	/**
+	 * Stops tracking a stack once it is deleted, and not before, so that a
+	 * stack being deleted isn't taken for one left by a restart.
+	 */
+	private void forget(Pool pool, String stackName) {
+		synchronized (pool) {
+			pool.stackNames.remove(stackName);
+		}
+	}
+
+	/**
+	 * A stack leased to a build, until the build hands it back.
+	 */
+	public static final class Lease {
+		private final StackPool owner;
+		private final Pool pool;
+		private final String stackName;
+		private final Map<String, String> outputs;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		Lease(StackPool owner, Pool pool, String stackName, Map<String, String> outputs) {
+			this.owner = owner;
+			this.pool = pool;
+			this.stackName = stackName;
+			this.outputs = outputs;
+		}
+
+		/**
+		 * @return the name of the pooled stack.
+		 */
+		public String getStackName() {
+			return stackName;
+		}
+
+		/**
+		 * @return the outputs of the pooled stack by output key.
+		 */
+		public Map<String, String> getOutputs() {
+			return outputs;
+		}
+
+		/**
+		 * Hands the stack back to the pool. Only the first call has any
+		 * effect.
+		 */
+		public void release() {
+			if (released.compareAndSet(false, true)) {
+				owner.release(this);
+			}
+		}
+	}
+
+	private static final class Ready {
+		private final String stackName;
+		private final Map<String, String> outputs;
+		private final long since = System.currentTimeMillis();
+
+		Ready(String stackName, Map<String, String> outputs) {
+			this.stackName = stackName;
+			this.outputs = outputs;
+		}
+	}
+
+	/**
+	 * The stacks of one fingerprint. Guarded by its own lock; AWS is never
+	 * called while holding it.
+	 */
+	private static final class Pool {
+		private final Key key;
+		/**
+		 * Oldest first, so that the stacks idling longest are the ones left
+		 * to expire.
+		 */
+		private final Deque<Ready> ready = new ArrayDeque<Ready>();
+		private final Deque<CompletableFuture<Lease>> waiting = new ArrayDeque<CompletableFuture<Lease>>();
+		/**
+		 * Every stack of the pool until deleted: ready, being created, leased
+		 * or being deleted.
+		 */
+		private final Set<String> stackNames = new HashSet<String>();
+		private int creating;
+		private int leased;
+		private int minSize;
+		private int maxSize;
+		private long idleMillis;
+		private boolean failing;
+		private boolean removed;
+		private boolean reconciled;
+		/**
+		 * Set while looking for stacks left by a restart; no stacks are
+		 * created meanwhile.
+		 */
+		private boolean reconciling;
+		/**
+		 * A copy of the first stack leased for, logging to the plugin's log,
+		 * which new stacks are created like.
+		 */
+		private CloudFormation prototype;
+
+		Pool(Key key) {
+			this.key = key;
+		}
+
+		/**
+		 * Counts in the stacks to create so that there are enough for the
+		 * builds waiting, plus the minimum, within the maximum.
+		 *
+		 * @return the names of the stacks to create.
+		 */
+		List<String> replenish() {
+			List<String> stackNames = new ArrayList<String>();
+			if (reconciling) {
+				return stackNames;
+			}
+			for (Iterator<CompletableFuture<Lease>> it = waiting.iterator(); it.hasNext();) {
+				if (it.next().isDone()) {
+					it.remove();
+				}
+			}
+			int wanted = (failing ? 0 : minSize) + waiting.size() - ready.size() - creating;
+			int room = maxSize - ready.size() - creating - leased;
+			for (int i = 0; i < Math.min(wanted, room); i++) {
+				String stackName = namePrefix() + "-" + UUID.randomUUID().toString().substring(0, 8);
+				stackNames.add(stackName);
+				this.stackNames.add(stackName);
+				creating++;
+			}
+			return stackNames;
+		}
+
+		String namePrefix() {
+			return NAME_PREFIX + "-" + key.fingerprint.substring(0, 12);
+		}
+	}
+
+	private static final class Key {
+		private final String awsAccessKey;
+		private final Region region;
+		private final String fingerprint;
+
+		Key(String awsAccessKey, Region region, String fingerprint) {
+			this.awsAccessKey = awsAccessKey;
+			this.region = region;
+			this.fingerprint = fingerprint;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return Objects.equals(awsAccessKey, other.awsAccessKey) && region == other.region
+					&& fingerprint.equals(other.fingerprint);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(awsAccessKey, region, fingerprint);
+		}
+	}
+
+	/**
+	 * Periodically deletes pooled stacks nobody has leased recently.
+	 */
+	@Extension
+	public static class IdleStackReaper extends PeriodicWork {
+
+		@Override
+		public long getRecurrencePeriod() {
+			return MIN;
+		}
+
+		@Override
+		protected void doRun() {
+			get().expireIdle();
+		}
+	}
+
+}
@@ -0,0 +1,318 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.ListStacksRequest;
+import com.amazonaws.services.cloudformation.model.ListStacksResult;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.StackStatus;
+import com.amazonaws.services.cloudformation.model.StackSummary;
+
+/**
+ * Central poller for every stack the plugin is waiting on.
+ *
+ * Waiters are grouped by client, and since clients are shared per
+ * credentials and region (see {@link CloudFormationClientRegistry}) a group
+ * covers one account and region. When only a few stacks in a group are due,
+ * each is described on its own. When more are due, the group does a single
+ * paginated ListStacks sweep over stacks that are still in progress and only
+ * describes the ones that have settled, so 80 concurrent deploys cost a page
+ * or two per interval instead of 80 DescribeStacks calls.
+ */
+public final class StackStatusPoller {
+
+	private static final Logger LOGGER = Logger.getLogger(StackStatusPoller.class.getName());
+
+	/**
+	 * Number of due stacks in one group from which a ListStacks sweep is used
+	 * instead of individual DescribeStacks calls.
+	 */
+	static final int SWEEP_THRESHOLD = Integer.getInteger(StackStatusPoller.class.getName() + ".sweepThreshold", 3);
+
+	/**
+	 * Subscriptions falling due this close to a tick are refreshed with it, so
+	 * that stacks polled at slightly different times end up in the same sweep.
+	 */
+	private static final long COALESCE_MS = 1000;
+
+	/**
+	 * Number of threads shared by all groups. Each tick is a handful of short
+	 * API calls, so a few threads can keep track of hundreds of stacks.
+	 */
+	private static final int THREADS = Integer.getInteger(StackStatusPoller.class.getName() + ".threads", 4);
+
+	/**
+	 * Set on the scheduler threads, which must never block on a call.
+	 */
+	private static final ThreadLocal<Boolean> SCHEDULER_THREAD = new ThreadLocal<Boolean>();
+
+	private static final ThreadFactory THREAD_FACTORY = new NamingThreadFactory(new DaemonThreadFactory(),
+			"CloudFormation stack poller");
+
+	private static final ScheduledExecutorService SCHEDULER = Executors.newScheduledThreadPool(THREADS,
+			r -> THREAD_FACTORY.newThread(() -> {
+				SCHEDULER_THREAD.set(Boolean.TRUE);
+				r.run();
+			}));
+
+	/**
+	 * Statuses a stack can be in while CloudFormation is still working on it.
+	 */
+	private static final List<String> IN_PROGRESS_STATUSES = new ArrayList<String>();
+
+	static {
+		for (StackStatus status : StackStatus.values()) {
+			if (status.name().endsWith("_IN_PROGRESS")) {
+				IN_PROGRESS_STATUSES.add(status.toString());
+			}
+		}
+	}
+
+	private static final StackStatusPoller INSTANCE = new StackStatusPoller();
+
+	private final ConcurrentMap<AmazonCloudFormation, Group> groups = new ConcurrentHashMap<AmazonCloudFormation, Group>();
+
+	public static StackStatusPoller get() {
+		return INSTANCE;
+	}
+
+	static ScheduledExecutorService scheduler() {
+		return SCHEDULER;
+	}
+
+	/**
+	 * @return true if called on one of the {@link #scheduler()} threads,
+	 * where a call must fail rather than wait to be retried.
+	 */
+	static boolean isSchedulerThread() {
+		return SCHEDULER_THREAD.get() != null;
+	}
+
+	/**
+	 * Starts polling for the given waiter, using the given client for sweeps
+	 * that cover several stacks.
+	 */
+	void watch(AmazonCloudFormation client, StackWaiter waiter) {
+		Group group = groups.computeIfAbsent(client, c -> new Group(c));
+		group.add(new Subscription(waiter));
+	}
+
+	/**
+	 * @return number of stacks currently being polled.
+	 */
+	int size() {
+		int size = 0;
+		for (Group group : groups.values()) {
+			size += group.size();
+		}
+		return size;
+	}
+
+	@Terminator
+	public static void shutdownScheduler() {
+		SCHEDULER.shutdownNow();
+	}
+
+	private static final class Subscription {
+		private final StackWaiter waiter;
+		private long nextDue = System.currentTimeMillis();
+
+		Subscription(StackWaiter waiter) {
+			this.waiter = waiter;
+		}
+	}
+
+	/**
+	 * All waiters sharing a client. Ticks run one at a time; each tick
+	 * refreshes whichever subscriptions are due and schedules the next tick for
+	 * the earliest of the rest.
+	 */
+	private final class Group implements Runnable {
+		private final AmazonCloudFormation client;
+		private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+		private final Object tickLock = new Object();
+		private ScheduledFuture<?> next;
+		private long nextTick = Long.MAX_VALUE;
+
+		Group(AmazonCloudFormation client) {
+			this.client = client;
+		}
+
+		synchronized int size() {
+			return subscriptions.size();
+		}
+
+		synchronized void add(Subscription subscription) {
+			subscriptions.add(subscription);
+			schedule(subscription.nextDue);
+		}
+
+		private synchronized void schedule(long due) {
+			if (due >= nextTick) {
+				return;
+			}
+			if (next != null) {
+				next.cancel(false);
+			}
+			nextTick = due;
+			next = SCHEDULER.schedule(this, Math.max(0, due - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}
+
+		public void run() {
+			synchronized (tickLock) {
+				try {
+					tick();
+				} catch (RuntimeException e) {
+					LOGGER.log(Level.WARNING, "Failed to refresh CloudFormation stacks", e);
+				}
+			}
+		}
+
+		private void tick() {
+			List<Subscription> due = new ArrayList<Subscription>();
+			long now = System.currentTimeMillis();
+			synchronized (this) {
+				nextTick = Long.MAX_VALUE;
+				next = null;
+				for (Iterator<Subscription> it = subscriptions.iterator(); it.hasNext();) {
+					Subscription subscription = it.next();
+					if (subscription.waiter.isDone()) {
+						it.remove();
+					} else if (subscription.nextDue <= now + COALESCE_MS) {
+						due.add(subscription);
+					}
+				}
+			}
+
+			if (due.size() >= SWEEP_THRESHOLD) {
+				sweep(due);
+			} else {
+				for (Subscription subscription : due) {
+					refresh(subscription);
+				}
+			}
+
+			synchronized (this) {
+				long earliest = Long.MAX_VALUE;
+				for (Iterator<Subscription> it = subscriptions.iterator(); it.hasNext();) {
+					Subscription subscription = it.next();
+					if (subscription.waiter.isDone()) {
+						it.remove();
+					} else {
+						earliest = Math.min(earliest, subscription.nextDue);
+					}
+				}
+				if (subscriptions.isEmpty()) {
+					groups.remove(client, this);
+				} else {
+					schedule(earliest);
+				}
+			}
+		}
+
+		/**
+		 * Describes a single stack through its waiter.
+		 */
+		private void refresh(Subscription subscription) {
+			StackWaiter waiter = subscription.waiter;
+			Object job = ApiRateLimiter.setJob(waiter.getJob());
+			try {
+				waiter.update(waiter.poll());
+			} catch (RuntimeException e) {
+				waiter.failed(e);
+			} finally {
+				ApiRateLimiter.setJob(job);
+			}
+			subscription.nextDue = System.currentTimeMillis() + waiter.getWaitBetweenAttempts();
+		}
+
+		/**
+		 * Lists every in-progress stack in the account once and hands each due
+		 * waiter its stack. Waiters whose stack is no longer in progress are
+		 * described individually, since they need the full stack.
+		 */
+		private void sweep(List<Subscription> due) {
+			Map<String, StackSummary> inProgress;
+			// The sweep is on behalf of every waiter in the group.
+			Object job = ApiRateLimiter.setJob(this);
+			try {
+				inProgress = listInProgressStacks();
+			} catch (RateLimitedException e) {
+				for (Subscription subscription : due) {
+					subscription.waiter.failed(e);
+					subscription.nextDue = System.currentTimeMillis() + subscription.waiter.getWaitBetweenAttempts();
+				}
+				return;
+			} catch (AmazonServiceException e) {
+				if (RetryUtils.isThrottlingException(e)) {
+					for (Subscription subscription : due) {
+						subscription.waiter.failed(e);
+						subscription.nextDue = System.currentTimeMillis() + subscription.waiter.getWaitBetweenAttempts();
+					}
+					return;
+				}
+				LOGGER.log(Level.FINE, "Stack sweep failed, describing stacks individually", e);
+				inProgress = new HashMap<String, StackSummary>();
+			} finally {
+				ApiRateLimiter.setJob(job);
+			}
+
+			for (Subscription subscription : due) {
+				StackWaiter waiter = subscription.waiter;
+				StackSummary summary = waiter.getStackId() != null
+						? inProgress.get(waiter.getStackId())
+						: inProgress.get(waiter.getStackName());
+				if (summary != null && waiter.isInProgress(StackStatus.fromValue(summary.getStackStatus()))) {
+					waiter.update(new Stack()
+							.withStackId(summary.getStackId())
+							.withStackName(summary.getStackName())
+							.withStackStatus(summary.getStackStatus())
+							.withStackStatusReason(summary.getStackStatusReason())
+							.withCreationTime(summary.getCreationTime())
+							.withLastUpdatedTime(summary.getLastUpdatedTime()));
+					subscription.nextDue = System.currentTimeMillis() + waiter.getWaitBetweenAttempts();
+				} else {
+					refresh(subscription);
+				}
+			}
+		}
+
+		/**
+		 * @return every in-progress stack, keyed by both name and id.
+		 */
+		private Map<String, StackSummary> listInProgressStacks() {
+			Map<String, StackSummary> result = new HashMap<String, StackSummary>();
+			ListStacksRequest request = new ListStacksRequest().withStackStatusFilters(IN_PROGRESS_STATUSES);
+			do {
+				ListStacksResult page = client.listStacks(request);
+				for (StackSummary summary : page.getStackSummaries()) {
+					result.put(summary.getStackName(), summary);
+					result.put(summary.getStackId(), summary);
+				}
+				request.setNextToken(page.getNextToken());
+			} while (request.getNextToken() != null);
+			return result;
+		}
+	}
+
+}
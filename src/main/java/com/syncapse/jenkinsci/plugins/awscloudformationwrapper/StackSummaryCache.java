@@ -0,0 +1,190 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.StackSummary;
+
+/**
+ * Controller-wide cache of the running stacks of each account and region,
+ * for prefix lookups.
+ *
+ * Stacks are cached per client, i.e. per account and region (see
+ * {@link CloudFormationClientRegistry}). Stacks the plugin deploys or deletes
+ * itself are added or removed as it happens, so the cache stays accurate for
+ * them without listing the account again; the account is only listed again
+ * once older than {@link #TTL_MS}, to pick up stacks changed outside of
+ * Jenkins.
+ *
+ * The cached list is never modified, only replaced, so lookups share it
+ * rather than copying it. The stacks are listed without holding the cache,
+ * so recording a deploy or delete never waits for a listing.
+ */
+public final class StackSummaryCache {
+
+	/**
+	 * Time after which the stacks are listed again. Default value is 10
+	 * minutes.
+	 */
+	static final long TTL_MS = TimeUnit.SECONDS.toMillis(
+			Long.getLong(StackSummaryCache.class.getName() + ".ttlSeconds", 600));
+
+	private static final StackSummaryCache INSTANCE = new StackSummaryCache(TTL_MS);
+
+	private final long ttl;
+
+	/**
+	 * Weak keys, so that the stacks go along with a client the registry has
+	 * dropped.
+	 */
+	private final Map<AmazonCloudFormation, Entry> entries = new WeakHashMap<AmazonCloudFormation, Entry>();
+
+	StackSummaryCache(long ttl) {
+		this.ttl = ttl;
+	}
+
+	public static StackSummaryCache get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return the stacks in {@link CloudFormation#RUNNING_STATUSES}, listing
+	 * them if the cached ones are too old; unmodifiable. Only one caller lists
+	 * the stacks of a client at a time, the others wait for its listing.
+	 */
+	public List<StackSummary> getRunningStacks(AmazonCloudFormation client) {
+		Entry entry = entry(client);
+		CompletableFuture<List<StackSummary>> loading;
+		boolean load = false;
+		synchronized (entry) {
+			if (entry.stacks != null && System.currentTimeMillis() - entry.loaded <= ttl) {
+				return entry.stacks;
+			}
+			if (entry.loading == null) {
+				entry.loading = new CompletableFuture<List<StackSummary>>();
+				entry.changes = new ArrayList<UnaryOperator<List<StackSummary>>>();
+				load = true;
+			}
+			loading = entry.loading;
+		}
+		if (!load) {
+			try {
+				return loading.join();
+			} catch (CompletionException e) {
+				throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+			}
+		}
+
+		// Listed without holding the entry, so that the stacks deployed or
+		// deleted meanwhile are recorded without waiting, then replayed.
+		List<StackSummary> stacks = new ArrayList<StackSummary>();
+		try {
+			for (Iterator<StackSummary> it = new StackSummaryIterator(client, CloudFormation.RUNNING_STATUSES); it.hasNext();) {
+				stacks.add(it.next());
+			}
+		} catch (RuntimeException e) {
+			synchronized (entry) {
+				entry.loading = null;
+				entry.changes = null;
+			}
+			loading.completeExceptionally(e);
+			throw e;
+		}
+		synchronized (entry) {
+			for (UnaryOperator<List<StackSummary>> change : entry.changes) {
+				stacks = change.apply(stacks);
+			}
+			stacks = Collections.unmodifiableList(stacks);
+			entry.stacks = stacks;
+			entry.loaded = System.currentTimeMillis();
+			entry.loading = null;
+			entry.changes = null;
+		}
+		loading.complete(stacks);
+		return stacks;
+	}
+
+	/**
+	 * Records a stack the plugin has successfully created or updated.
+	 */
+	public void stackDeployed(AmazonCloudFormation client, final Stack stack) {
+		entry(client).change(stacks -> {
+			List<StackSummary> result = without(stacks, stack.getStackId());
+			if (CloudFormation.RUNNING_STATUSES.contains(stack.getStackStatus())) {
+				result.add(new StackSummary()
+						.withStackId(stack.getStackId())
+						.withStackName(stack.getStackName())
+						.withStackStatus(stack.getStackStatus())
+						.withCreationTime(stack.getCreationTime())
+						.withLastUpdatedTime(stack.getLastUpdatedTime()));
+			}
+			return result;
+		});
+	}
+
+	/**
+	 * Forgets a stack the plugin is deleting, or found to be gone.
+	 *
+	 * @param stackNameOrId the stack name, or preferably its id.
+	 */
+	public void stackDeleted(AmazonCloudFormation client, final String stackNameOrId) {
+		entry(client).change(stacks -> without(stacks, stackNameOrId));
+	}
+
+	/**
+	 * @return a copy of the stacks, leaving out the given one.
+	 */
+	private static List<StackSummary> without(List<StackSummary> stacks, String stackNameOrId) {
+		List<StackSummary> result = new ArrayList<StackSummary>(stacks.size() + 1);
+		for (StackSummary summary : stacks) {
+			if (!stackNameOrId.equals(summary.getStackId()) && !stackNameOrId.equals(summary.getStackName())) {
+				result.add(summary);
+			}
+		}
+		return result;
+	}
+
+	private synchronized Entry entry(AmazonCloudFormation client) {
+		Entry entry = entries.get(client);
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(client, entry);
+		}
+		return entry;
+	}
+
+	private static final class Entry {
+		private List<StackSummary> stacks;
+		private long loaded;
+		/**
+		 * Set while the stacks are listed, along with the changes to replay
+		 * on them.
+		 */
+		private CompletableFuture<List<StackSummary>> loading;
+		private List<UnaryOperator<List<StackSummary>>> changes;
+
+		/**
+		 * Applies a change to the cached stacks, if any, and to the ones being
+		 * listed. Never waits for a listing.
+		 */
+		synchronized void change(UnaryOperator<List<StackSummary>> change) {
+			if (stacks != null) {
+				stacks = Collections.unmodifiableList(change.apply(stacks));
+			}
+			if (changes != null) {
+				changes.add(change);
+			}
+		}
+	}
+
+}
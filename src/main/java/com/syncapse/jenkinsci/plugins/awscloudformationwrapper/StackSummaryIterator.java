@@ -0,0 +1,100 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.ListStacksRequest;
+import com.amazonaws.services.cloudformation.model.ListStacksResult;
+import com.amazonaws.services.cloudformation.model.StackSummary;
+
+/**
+ * Iterates over the stacks of an account, fetching one ListStacks page at a
+ * time as the caller goes. Only the current page is held in memory, and a
+ * caller that stops early never fetches the remaining pages.
+ */
+public final class StackSummaryIterator implements Iterator<StackSummary> {
+
+	private final AmazonCloudFormation client;
+	private final ListStacksRequest request;
+	private Iterator<StackSummary> page;
+	private boolean lastPage;
+
+	/**
+	 * @param statuses the stack statuses to list, filtered by CloudFormation.
+	 */
+	public StackSummaryIterator(AmazonCloudFormation client, List<String> statuses) {
+		this.client = client;
+		this.request = new ListStacksRequest().withStackStatusFilters(statuses);
+	}
+
+	public boolean hasNext() {
+		while ((page == null || !page.hasNext()) && !lastPage) {
+			ListStacksResult result = client.listStacks(request);
+			page = result.getStackSummaries().iterator();
+			request.setNextToken(result.getNextToken());
+			lastPage = result.getNextToken() == null;
+		}
+		return page != null && page.hasNext();
+	}
+
+	public StackSummary next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return page.next();
+	}
+
+	/**
+	 * @return the oldest stack whose name starts with the prefix, or null.
+	 * Only the oldest match so far is kept while going through the stacks.
+	 */
+	public static StackSummary oldestWithPrefix(Iterator<StackSummary> stacks, String prefix) {
+		StackSummary oldest = null;
+		while (stacks.hasNext()) {
+			StackSummary summary = stacks.next();
+			if (summary.getStackName().startsWith(prefix)
+					&& (oldest == null || summary.getCreationTime().before(oldest.getCreationTime()))) {
+				oldest = summary;
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * @param max the most stacks to return, or 0 for no limit.
+	 * @param createdBefore only return stacks created before this time, or
+	 * null for any.
+	 * @return the stacks whose name starts with the prefix, oldest first. With
+	 * a limit, only the oldest ones seen so far are kept while iterating.
+	 */
+	public static List<StackSummary> oldestWithPrefix(Iterator<StackSummary> stacks, String prefix, int max, Date createdBefore) {
+		Comparator<StackSummary> byCreation = (a, b) -> a.getCreationTime().compareTo(b.getCreationTime());
+		// Newest on top, to be dropped once there are more than max.
+		PriorityQueue<StackSummary> oldest = new PriorityQueue<StackSummary>(max > 0 ? max + 1 : 11, byCreation.reversed());
+		List<StackSummary> matching = new ArrayList<StackSummary>();
+		while (stacks.hasNext()) {
+			StackSummary summary = stacks.next();
+			if (summary.getStackName().startsWith(prefix)
+					&& (createdBefore == null || summary.getCreationTime().before(createdBefore))) {
+				if (max <= 0) {
+					matching.add(summary);
+				} else {
+					oldest.add(summary);
+					if (oldest.size() > max) {
+						oldest.poll();
+					}
+				}
+			}
+		}
+		matching.addAll(oldest);
+		matching.sort(byCreation);
+		return matching;
+	}
+
+}
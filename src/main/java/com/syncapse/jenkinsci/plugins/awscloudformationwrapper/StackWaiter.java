@@ -0,0 +1,327 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.StackStatus;
+
+/**
+ * Waits for a stack to leave its in-progress state without tying up the
+ * calling thread. Polling is done by the {@link StackStatusPoller}; between
+ * polls nothing is blocked, and the returned future completes with the last
+ * seen stack once it reaches a terminal state.
+ *
+ * Subclasses say how to fetch the stack and which statuses mean "keep
+ * waiting".
+ */
+public abstract class StackWaiter {
+
+	private final PrintStream logger;
+	private final String stackName;
+	private final String operation;
+	private final long timeout;
+	private final CompletableFuture<Stack> result = new CompletableFuture<Stack>();
+
+	private long startTime;
+	private long lastReport;
+	private int throttled;
+	private int errors;
+	private long retryAfter;
+	private volatile Object job = this;
+	private int polls;
+	private StackStatus status;
+	private volatile String stackId;
+	private volatile Stack lastStack;
+
+	/**
+	 * @param logger where to report progress.
+	 * @param stackName the name of the stack being waited on.
+	 * @param operation what is being waited for, e.g. "creation".
+	 * @param initialStatus the status to assume before the first poll.
+	 * @param timeout seconds to wait before failing with a
+	 * {@link TimeoutException}, or 0 to wait forever.
+	 */
+	protected StackWaiter(PrintStream logger, String stackName, String operation, StackStatus initialStatus, long timeout) {
+		this.logger = logger;
+		this.stackName = stackName;
+		this.operation = operation;
+		this.status = initialStatus;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @return the client used to poll the stack. Waiters sharing a client are
+	 * polled together.
+	 */
+	protected abstract AmazonCloudFormation getClient();
+
+	/**
+	 * @return the current state of the stack, or null if it does not exist.
+	 */
+	protected abstract Stack poll();
+
+	/**
+	 * @return the status of a polled stack; stack is null if it does not exist.
+	 */
+	protected abstract StackStatus getStatus(Stack stack);
+
+	protected abstract boolean isInProgress(StackStatus status);
+
+	/**
+	 * @return milliseconds to wait before the next poll.
+	 */
+	protected abstract long getWaitBetweenAttempts(int throttled);
+
+	/**
+	 * Called on the poller thread after every poll, before the result is
+	 * completed. Does nothing by default.
+	 *
+	 * @param done true if the stack is no longer in progress.
+	 */
+	protected void stackPolled(Stack stack, boolean done) {
+	}
+
+	/**
+	 * Schedules the first poll.
+	 *
+	 * @return a future completed with the stack once it is no longer in
+	 * progress, or exceptionally with a {@link TimeoutException} or the
+	 * {@link AmazonServiceException} that ended the wait.
+	 */
+	public CompletableFuture<Stack> start() {
+		if (startTime == 0) {
+			startTime = System.currentTimeMillis();
+		}
+		lastReport = System.currentTimeMillis();
+		logger.println("Waiting for stack " + operation + ", " + (getWaitBetweenAttempts(throttled) / 1000) + " seconds between checks");
+		StackStatusPoller.get().watch(getClient(), this);
+		return result;
+	}
+
+	/**
+	 * Stops polling. The stack itself is left alone.
+	 */
+	public void cancel() {
+		result.cancel(false);
+	}
+
+	public boolean isDone() {
+		return result.isDone();
+	}
+
+	public String getStackName() {
+		return stackName;
+	}
+
+	/**
+	 * @return the id (ARN) of the stack once known, or null.
+	 */
+	public String getStackId() {
+		return stackId;
+	}
+
+	/**
+	 * Sets the id (ARN) of the stack, when it is known before the first poll.
+	 */
+	public void setStackId(String stackId) {
+		this.stackId = stackId;
+	}
+
+	/**
+	 * @return the job the polls are rate limited under, see
+	 * {@link ApiRateLimiter#setJob}; the waiter itself unless set.
+	 */
+	public Object getJob() {
+		return job;
+	}
+
+	/**
+	 * Sets the job the polls are rate limited under, e.g. the build, so that
+	 * the stacks of one build take one turn between them.
+	 */
+	public void setJob(Object job) {
+		this.job = job;
+	}
+
+	/**
+	 * Sets when the operation started, when resuming a wait for one started
+	 * earlier. Must be called before {@link #start()}.
+	 */
+	public void setStartTime(long startTime) {
+		this.startTime = startTime;
+	}
+
+	/**
+	 * @return milliseconds since the wait started.
+	 */
+	public long getElapsedMillis() {
+		return System.currentTimeMillis() - startTime;
+	}
+
+	/**
+	 * @return the number of successful polls so far.
+	 */
+	public int getPolls() {
+		return polls;
+	}
+
+	/**
+	 * @return the stack as of the last successful poll, or null.
+	 */
+	public Stack getLastStack() {
+		return lastStack;
+	}
+
+	/**
+	 * Blocks until the wait is over.
+	 *
+	 * @throws InterruptedException if the calling thread is interrupted, in
+	 * which case polling is stopped too.
+	 */
+	public Stack await() throws InterruptedException {
+		return await(result, this);
+	}
+
+	/**
+	 * @return milliseconds until this waiter wants to be polled again.
+	 */
+	long getWaitBetweenAttempts() {
+		if (retryAfter > 0) {
+			long wait = retryAfter;
+			retryAfter = 0;
+			return wait;
+		}
+		return getWaitBetweenAttempts(throttled + errors);
+	}
+
+	/**
+	 * Moves the state machine on with a freshly polled stack. Called by the
+	 * poller, one call at a time.
+	 */
+	void update(Stack stack) {
+		if (result.isDone()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (now - lastReport > 60000) {
+			logger.println("Stack status " + status + " for " + ((now - startTime) / 1000) + " seconds");
+			lastReport = now;
+		}
+		lastStack = stack;
+		polls++;
+		errors = 0;
+		if (stack != null && stack.getStackId() != null) {
+			stackId = stack.getStackId();
+		}
+		try {
+			status = getStatus(stack);
+		} catch (RuntimeException e) {
+			result.completeExceptionally(e);
+			return;
+		}
+		boolean done = !isInProgress(status);
+		try {
+			stackPolled(stack, done);
+		} catch (RuntimeException e) {
+			result.completeExceptionally(e);
+			return;
+		}
+		if (done) {
+			logger.println("Stack status " + status + " in " + ((now - startTime) / 1000) + " seconds");
+			result.complete(stack);
+		} else {
+			checkTimeout(now);
+		}
+	}
+
+	/**
+	 * Called by the poller when polling failed. Polls are not retried on the
+	 * spot (see {@link ApiRetrier}), so throttling slows polling down for
+	 * good, and other transient errors until the next successful poll, up to
+	 * as many in a row as a describe call is retried. A poll held back by the
+	 * {@link ApiRateLimiter} is made again once its turn comes. Anything else
+	 * ends the wait.
+	 */
+	void failed(RuntimeException e) {
+		if (result.isDone()) {
+			return;
+		}
+		if (e instanceof RateLimitedException) {
+			// Not a failure: the turn of the job to poll comes then.
+			retryAfter = ((RateLimitedException) e).getDelayMillis();
+		} else if (e instanceof AmazonServiceException && RetryUtils.isThrottlingException((AmazonServiceException) e)) {
+			throttled++;
+			logger.println("Stack status request throttled; retrying with " + (getWaitBetweenAttempts() / 1000) + " seconds between checks");
+		} else if (e instanceof AmazonClientException && ApiRetrier.isRetryable((AmazonClientException) e)
+				&& errors < ApiRetrier.getMaxRetries(ApiRateLimiter.Operation.DESCRIBE)) {
+			errors++;
+			logger.println("Stack status request failed (" + e.getMessage() + "); retrying in " + (getWaitBetweenAttempts() / 1000) + " seconds");
+		} else {
+			result.completeExceptionally(e);
+			return;
+		}
+		checkTimeout(System.currentTimeMillis());
+	}
+
+	private void checkTimeout(long now) {
+		if (isTimeout(now)) {
+			result.completeExceptionally(new TimeoutException("Timed out waiting for stack " + operation + ". (timeout=" + timeout + ")"));
+		}
+	}
+
+	private boolean isTimeout(long now) {
+		return timeout == 0 ? false : (now - startTime) > (timeout * 1000);
+	}
+
+	/**
+	 * @return a future completed on the waiter scheduler after the given delay.
+	 */
+	static CompletableFuture<Void> delay(long delay, TimeUnit unit) {
+		final CompletableFuture<Void> delayed = new CompletableFuture<Void>();
+		if (delay <= 0) {
+			delayed.complete(null);
+		} else {
+			StackStatusPoller.scheduler().schedule(new Runnable() {
+				public void run() {
+					delayed.complete(null);
+				}
+			}, delay, unit);
+		}
+		return delayed;
+	}
+
+	/**
+	 * Blocks on a future produced by a waiter, unwrapping its failure.
+	 *
+	 * @param waiter the waiter to cancel if the calling thread is interrupted;
+	 * may be null.
+	 */
+	static <T> T await(CompletableFuture<T> future, StackWaiter waiter) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(false);
+			if (waiter != null) {
+				waiter.cancel();
+			}
+			throw e;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+}
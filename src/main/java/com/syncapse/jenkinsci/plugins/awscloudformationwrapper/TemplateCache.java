@@ -0,0 +1,138 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Controller-side cache of templates read from workspaces.
+ *
+ * Templates are remembered by workspace path along with their digest. On a
+ * read the agent is sent the digest the controller has; it always reads and
+ * hashes the file, since a rewrite can keep the size and modification time,
+ * and only sends the template back when the digest differs. The cache holds
+ * at most {@link #MAX_BYTES} of templates and drops the least recently read
+ * first.
+ */
+public final class TemplateCache {
+
+	/**
+	 * Total size of the cached templates. Default value is 32 MB.
+	 */
+	static final long MAX_BYTES = Long.getLong(TemplateCache.class.getName() + ".maxBytes", 32L * 1024 * 1024);
+
+	private static final TemplateCache INSTANCE = new TemplateCache(MAX_BYTES);
+
+	private final long maxBytes;
+	private final LinkedHashMap<String, Template> templates = new LinkedHashMap<String, Template>(16, 0.75f, true);
+	private long bytes;
+
+	TemplateCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public static TemplateCache get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return the content of the file, read as UTF-8.
+	 */
+	public String read(FilePath file) throws IOException, InterruptedException {
+		String key = (file.getChannel() != null ? file.getChannel() + ":" : "") + file.getRemote();
+		Template cached;
+		synchronized (this) {
+			cached = templates.get(key);
+		}
+
+		Template read = file.act(new ReadIfChanged(cached));
+		if (read.content == null) {
+			read = cached;
+		}
+		synchronized (this) {
+			put(key, read);
+		}
+		return read.content;
+	}
+
+	private void put(String key, Template template) {
+		Template previous = templates.put(key, template);
+		if (previous != null) {
+			bytes -= previous.size;
+		}
+		bytes += template.size;
+		for (Iterator<Map.Entry<String, Template>> it = templates.entrySet().iterator(); bytes > maxBytes && it.hasNext();) {
+			Map.Entry<String, Template> eldest = it.next();
+			bytes -= eldest.getValue().size;
+			it.remove();
+		}
+	}
+
+	synchronized int size() {
+		return templates.size();
+	}
+
+	/**
+	 * A template's size and digest, and its content unless the agent left it
+	 * out because it hadn't changed.
+	 */
+	private static final class Template implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final long size;
+		private final byte[] digest;
+		private final String content;
+
+		Template(long size, byte[] digest, String content) {
+			this.size = size;
+			this.digest = digest;
+			this.content = content;
+		}
+	}
+
+	/**
+	 * Runs on the agent: returns the template, leaving the content out if it
+	 * matches what the controller has.
+	 */
+	private static final class ReadIfChanged extends MasterToSlaveFileCallable<Template> {
+		private static final long serialVersionUID = 1L;
+
+		private final byte[] digest;
+
+		ReadIfChanged(Template cached) {
+			this.digest = cached != null ? cached.digest : null;
+		}
+
+		public Template invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			if (!f.isFile()) {
+				throw new FileNotFoundException(f.getPath());
+			}
+			byte[] content = Files.readAllBytes(f.toPath());
+			byte[] hash;
+			try {
+				hash = MessageDigest.getInstance("SHA-256").digest(content);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+			if (Arrays.equals(hash, digest)) {
+				return new Template(content.length, hash, null);
+			}
+			return new Template(content.length, hash, new String(content, StandardCharsets.UTF_8));
+		}
+	}
+
+}
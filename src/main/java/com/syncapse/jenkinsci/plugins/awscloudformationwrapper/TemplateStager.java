@@ -0,0 +1,54 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+/**
+ * Uploads templates to S3 so that they can be passed to CloudFormation by URL,
+ * which allows templates larger than the 51,200 bytes accepted inline.
+ *
+ * Templates are stored under a key derived from their content, so an
+ * unchanged template is uploaded once and then reused by every build.
+ */
+public final class TemplateStager {
+
+	static final String PREFIX = "cloudformation-templates/";
+
+	private final AmazonS3 s3;
+	private final String bucket;
+	private final PrintStream logger;
+
+	public TemplateStager(AmazonS3 s3, String bucket, PrintStream logger) {
+		this.s3 = s3;
+		this.bucket = bucket;
+		this.logger = logger;
+	}
+
+	/**
+	 * @return the URL of the staged template.
+	 */
+	public String stage(String template) {
+		String key = key(template);
+		if (s3.doesObjectExist(bucket, key)) {
+			logger.println("Template already staged at s3://" + bucket + "/" + key);
+		} else {
+			byte[] content = template.getBytes(StandardCharsets.UTF_8);
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(content.length);
+			metadata.setContentType("text/plain");
+			s3.putObject(new PutObjectRequest(bucket, key, new ByteArrayInputStream(content), metadata));
+			logger.println("Staged template at s3://" + bucket + "/" + key);
+		}
+		return s3.getUrl(bucket, key).toString();
+	}
+
+	static String key(String template) {
+		return PREFIX + StackFingerprint.sha256(template) + ".template";
+	}
+
+}
@@ -0,0 +1,136 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.DeleteStackRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+import com.amazonaws.services.cloudformation.model.ListStacksRequest;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ApiRateLimiterTest {
+
+	@Mock
+	private AmazonCloudFormation awsClient;
+
+	@Test
+	public void calls_are_classified_by_method_name() throws Exception {
+		assertEquals(ApiRateLimiter.Operation.DESCRIBE, ApiRateLimiter.Operation.of(
+				AmazonCloudFormation.class.getMethod("describeStacks", DescribeStacksRequest.class)));
+		assertEquals(ApiRateLimiter.Operation.LIST, ApiRateLimiter.Operation.of(
+				AmazonCloudFormation.class.getMethod("listStacks", ListStacksRequest.class)));
+		assertEquals(ApiRateLimiter.Operation.MUTATE, ApiRateLimiter.Operation.of(
+				AmazonCloudFormation.class.getMethod("deleteStack", DeleteStackRequest.class)));
+		assertNull(ApiRateLimiter.Operation.of(AmazonCloudFormation.class.getMethod("shutdown")));
+	}
+
+	@Test
+	public void calls_beyond_the_burst_wait_for_the_refill() throws Exception {
+		ApiRateLimiter.Bucket bucket = new ApiRateLimiter.Bucket(10);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(bucket.acquire("build").isDone());
+		}
+		CompletableFuture<Void> queued = bucket.acquire("build");
+
+		assertFalse(queued.isDone());
+		queued.get(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void jobs_with_calls_queued_take_turns() throws Exception {
+		ApiRateLimiter.Bucket bucket = new ApiRateLimiter.Bucket(10);
+		for (int i = 0; i < 10; i++) {
+			bucket.acquire("build");
+		}
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		List<CompletableFuture<Void>> grants = new ArrayList<CompletableFuture<Void>>();
+		for (String job : Arrays.asList("busy", "busy", "busy", "quiet")) {
+			final String name = job;
+			grants.add(bucket.acquire(job).thenRun(() -> order.add(name)));
+		}
+
+		CompletableFuture.allOf(grants.toArray(new CompletableFuture[0])).get(2, TimeUnit.SECONDS);
+		assertEquals(Arrays.asList("busy", "quiet", "busy", "busy"), order);
+	}
+
+	@Test
+	public void a_caller_that_cannot_wait_keeps_its_turn_for_its_next_try() throws Exception {
+		ApiRateLimiter.Bucket bucket = new ApiRateLimiter.Bucket(10);
+		for (int i = 0; i < 10; i++) {
+			bucket.acquire("build");
+		}
+
+		long wait = bucket.tryAcquire("poller");
+		assertTrue(wait > 0 && wait <= 200000000L);
+		CompletableFuture<Void> later = bucket.acquire("build");
+		TimeUnit.NANOSECONDS.sleep(wait);
+		long deadline = System.currentTimeMillis() + 1000;
+		while (bucket.tryAcquire("poller") > 0) {
+			assertTrue("timed out", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		later.get(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void calls_on_the_poller_threads_fail_rather_than_wait() throws Exception {
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class))).thenReturn(new DescribeStacksResult());
+		final AmazonCloudFormation limited = new ApiRateLimiter().limit(awsClient);
+
+		Future<Integer> calls = StackStatusPoller.scheduler().submit(new Callable<Integer>() {
+			public Integer call() {
+				for (int i = 0;; i++) {
+					try {
+						limited.describeStacks(new DescribeStacksRequest());
+					} catch (RateLimitedException e) {
+						assertTrue(e.getDelayMillis() > 0);
+						return i;
+					}
+				}
+			}
+		});
+
+		assertEquals(Integer.valueOf(8), calls.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void limited_client_passes_calls_and_their_errors_through() {
+		DescribeStacksResult result = new DescribeStacksResult();
+		AmazonServiceException throttled = new AmazonServiceException("Rate exceeded");
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class))).thenReturn(result);
+		when(awsClient.deleteStack(any(DeleteStackRequest.class))).thenThrow(throttled);
+		AmazonCloudFormation limited = new ApiRateLimiter().limit(awsClient);
+
+		assertSame(result, limited.describeStacks(new DescribeStacksRequest()));
+		try {
+			limited.deleteStack(new DeleteStackRequest());
+		} catch (AmazonServiceException e) {
+			assertSame(throttled, e);
+			return;
+		}
+		throw new AssertionError("expected the client's exception");
+	}
+
+}
@@ -0,0 +1,141 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.CreateStackRequest;
+import com.amazonaws.services.cloudformation.model.CreateStackResult;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ApiRetrierTest {
+
+	private ApiRetrier retrier = new ApiRetrier(1, 5); // SUT
+
+	@Mock
+	private AmazonCloudFormation awsClient;
+
+	@Test
+	public void throttled_and_transient_errors_are_retried_with_the_same_token() {
+		CreateStackResult result = new CreateStackResult();
+		when(awsClient.createStack(any(CreateStackRequest.class)))
+				.thenThrow(throttled())
+				.thenThrow(serverError())
+				.thenReturn(result);
+		CreateStackRequest request = new CreateStackRequest();
+
+		assertSame(result, retrier.retry(awsClient, Region.getDefault()).createStack(request));
+		verify(awsClient, times(3)).createStack(request);
+		assertNotNull(request.getClientRequestToken());
+	}
+
+	@Test
+	public void client_errors_are_not_retried() {
+		AmazonServiceException invalid = new AmazonServiceException("Template format error");
+		invalid.setErrorCode("ValidationError");
+		invalid.setStatusCode(400);
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class))).thenThrow(invalid);
+
+		try {
+			retrier.retry(awsClient, Region.getDefault()).describeStacks(new DescribeStacksRequest());
+			fail("expected the validation error");
+		} catch (AmazonServiceException e) {
+			assertSame(invalid, e);
+		}
+		verify(awsClient, times(1)).describeStacks(any(DescribeStacksRequest.class));
+	}
+
+	@Test
+	public void retries_stop_once_the_budget_is_spent() {
+		AmazonServiceException throttled = throttled();
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class))).thenThrow(throttled);
+
+		try {
+			retrier.retry(awsClient, Region.getDefault()).describeStacks(new DescribeStacksRequest());
+			fail("expected the throttling error");
+		} catch (AmazonServiceException e) {
+			assertSame(throttled, e);
+		}
+		verify(awsClient, times(1 + ApiRetrier.getMaxRetries(ApiRateLimiter.Operation.DESCRIBE)))
+				.describeStacks(any(DescribeStacksRequest.class));
+	}
+
+	@Test
+	public void calls_on_the_poller_threads_are_not_retried_in_place() throws Exception {
+		final AmazonServiceException throttled = throttled();
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class))).thenThrow(throttled);
+		final AmazonCloudFormation client = retrier.retry(awsClient, Region.getDefault());
+
+		Future<Throwable> failure = StackStatusPoller.scheduler().submit(new Callable<Throwable>() {
+			public Throwable call() {
+				try {
+					client.describeStacks(new DescribeStacksRequest());
+					return null;
+				} catch (AmazonServiceException e) {
+					return e;
+				}
+			}
+		});
+
+		assertSame(throttled, failure.get(5, TimeUnit.SECONDS));
+		verify(awsClient, times(1)).describeStacks(any(DescribeStacksRequest.class));
+	}
+
+	@Test
+	public void async_calls_are_retried_on_the_scheduler() throws Exception {
+		final DescribeStacksResult result = new DescribeStacksResult();
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class)))
+				.thenThrow(throttled())
+				.thenThrow(serverError())
+				.thenReturn(result);
+		final AmazonCloudFormation client = retrier.retry(awsClient, Region.getDefault());
+
+		assertSame(result, retrier.callAsync(ApiRateLimiter.Operation.DESCRIBE, Region.getDefault(), "describeStacks",
+				() -> client.describeStacks(new DescribeStacksRequest())).get(5, TimeUnit.SECONDS));
+		verify(awsClient, times(3)).describeStacks(any(DescribeStacksRequest.class));
+	}
+
+	@Test
+	public void delays_stay_between_the_base_and_the_cap() {
+		ApiRetrier slow = new ApiRetrier(100, 1000);
+		long delay = 100;
+		for (int i = 0; i < 50; i++) {
+			delay = slow.nextDelay(delay);
+			assertTrue(delay >= 100 && delay <= 1000);
+		}
+		assertTrue(slow.nextDelay(1000000) <= 1000);
+	}
+
+	private AmazonServiceException throttled() {
+		AmazonServiceException e = new AmazonServiceException("Rate exceeded");
+		e.setErrorCode("Throttling");
+		e.setStatusCode(400);
+		return e;
+	}
+
+	private AmazonServiceException serverError() {
+		AmazonServiceException e = new AmazonServiceException("Internal failure");
+		e.setErrorCode("InternalFailure");
+		e.setStatusCode(500);
+		return e;
+	}
+
+}
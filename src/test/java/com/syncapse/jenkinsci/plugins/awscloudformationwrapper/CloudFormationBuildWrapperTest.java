@@ -2,10 +2,15 @@ package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
 
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasProperty;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -19,13 +24,19 @@ import hudson.tasks.BuildWrapper.Environment;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import hudson.util.Secret;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.AmazonServiceException;
 
 @RunWith(MockitoJUnitRunner.class)
 public class CloudFormationBuildWrapperTest {
@@ -62,12 +73,124 @@ public class CloudFormationBuildWrapperTest {
 		then_first_stack_is_deleted();
 	}
 
+	@Test
+	public void in_parallel_mode_independent_stacks_are_all_started_and_a_failure_tears_down_the_rest()
+			throws Exception {
+		when_2_stack_are_entered();
+		wrapper.setParallel(true);
+		when(mockCF1.createAsync()).thenReturn(CompletableFuture.completedFuture(true));
+		when(mockCF2.createAsync()).thenReturn(CompletableFuture.completedFuture(false));
+
+		Environment env = wrapper.setUp(build, launcher, listener);
+
+		verify(mockCF1, times(1)).createAsync();
+		verify(mockCF2, times(1)).createAsync();
+		assertNull(env);
+		verify(mockCF1, times(1)).deleteAsync();
+	}
+
+	@Test
+	public void in_parallel_mode_a_stack_failing_to_start_cancels_and_tears_down_the_stacks_in_flight()
+			throws Exception {
+		when_2_stack_are_entered();
+		wrapper.setParallel(true);
+		final CompletableFuture<Boolean> inFlight = new CompletableFuture<Boolean>();
+		when(mockCF1.createAsync()).thenReturn(inFlight);
+		when(mockCF2.createAsync()).thenThrow(new AmazonServiceException("Rate exceeded"));
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) {
+				inFlight.cancel(false);
+				return null;
+			}
+		}).when(mockCF1).cancel();
+
+		Environment env = wrapper.setUp(build, launcher, listener);
+
+		assertNull(env);
+		verify(mockCF1).cancel();
+		verify(mockCF1).deleteAsync();
+		verify(mockCF2).deleteAsync();
+	}
+
+	@Test
+	public void on_tearDown_stacks_are_deleted_in_reverse_order_and_a_failure_does_not_skip_the_rest()
+			throws Exception {
+		when_2_stack_are_entered();
+		when(mockCF1.create()).thenReturn(true);
+		when(mockCF2.create()).thenReturn(true);
+		CompletableFuture<Boolean> failed = new CompletableFuture<Boolean>();
+		failed.completeExceptionally(new AmazonServiceException("boom"));
+		when(mockCF2.deleteAsync()).thenReturn(failed);
+
+		Environment env = wrapper.setUp(build, launcher, listener);
+
+		assertFalse(env.tearDown(build, listener));
+		InOrder order = inOrder(mockCF2, mockCF1);
+		order.verify(mockCF2).deleteAsync();
+		order.verify(mockCF1).deleteAsync();
+	}
+
+	@Test(timeout = 5000)
+	public void in_sequential_mode_stacks_not_using_each_others_outputs_are_torn_down_together()
+			throws Exception {
+		when_2_stack_are_entered();
+		when(mockCF1.create()).thenReturn(true);
+		when(mockCF2.create()).thenReturn(true);
+		final CompletableFuture<Boolean> second = new CompletableFuture<Boolean>();
+		when(mockCF2.deleteAsync()).thenReturn(second);
+		// The first stack is only deleted while the second is still going.
+		doAnswer(new Answer<CompletableFuture<Boolean>>() {
+			public CompletableFuture<Boolean> answer(InvocationOnMock invocation) {
+				second.complete(true);
+				return CompletableFuture.completedFuture(true);
+			}
+		}).when(mockCF1).deleteAsync();
+
+		Environment env = wrapper.setUp(build, launcher, listener);
+
+		assertTrue(env.tearDown(build, listener));
+	}
+
+	@Test
+	public void concurrent_builds_only_tear_down_their_own_stacks() throws Exception {
+		when_1_stack_is_entered();
+		Environment first = wrapper.setUp(build, launcher, listener);
+
+		doReturn(mockCF2).when(wrapper).newCloudFormation(any(StackBean.class),
+				any(AbstractBuild.class), any(EnvVars.class),
+				any(PrintStream.class));
+		when(mockCF2.getAutoDeleteStack()).thenReturn(true);
+		when(mockCF2.create()).thenReturn(true);
+		when(mockCF2.deleteAsync()).thenReturn(CompletableFuture.completedFuture(true));
+		Environment second = wrapper.setUp(build, launcher, listener);
+
+		assertTrue(first.tearDown(build, listener));
+		verify(mockCF1).deleteAsync();
+		verify(mockCF2, never()).deleteAsync();
+
+		assertTrue(second.tearDown(build, listener));
+		verify(mockCF1, times(1)).deleteAsync();
+		verify(mockCF2).deleteAsync();
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void the_old_tear_down_deletes_the_stacks_of_the_builds_not_torn_down() throws Exception {
+		when_1_stack_is_entered();
+		wrapper.setUp(build, launcher, listener);
+
+		assertTrue(wrapper.doTearDown());
+		verify(mockCF1, times(1)).deleteAsync();
+		assertTrue(wrapper.doTearDown());
+		verify(mockCF1, times(1)).deleteAsync();
+	}
+
 	private void then_first_stack_is_deleted() throws Exception {
 		Environment env = wrapper.setUp(build, launcher, listener);
 		verify(mockCF1, times(1)).create();
 		verify(mockCF2, times(1)).create();
 		assertNull(env);
-		verify(mockCF1, times(1)).delete();
+		verify(mockCF1, times(1)).deleteAsync();
 	}
 
 	private void and_2nd_stack_fails_to_create() throws Exception {
@@ -86,7 +209,9 @@ public class CloudFormationBuildWrapperTest {
 
         when(mockCF1.getAutoDeleteStack()).thenReturn(true);
         when(mockCF2.getAutoDeleteStack()).thenReturn(true);
-		
+		when(mockCF1.deleteAsync()).thenReturn(CompletableFuture.completedFuture(true));
+		when(mockCF2.deleteAsync()).thenReturn(CompletableFuture.completedFuture(true));
+
 		doReturn(mockCF1).when(wrapper).newCloudFormation(
 				((StackBean)argThat(hasProperty("stackName", equalTo("stack1")))),
 				any(AbstractBuild.class), any(EnvVars.class),
@@ -103,7 +228,7 @@ public class CloudFormationBuildWrapperTest {
 		Environment env = wrapper.setUp(build, launcher, listener);
 		verify(mockCF1, times(1)).create();
 		env.tearDown(build, listener);
-		verify(mockCF1, times(1)).delete();
+		verify(mockCF1, times(1)).deleteAsync();
 	}
 
 	private void when_1_stack_is_entered() throws Exception {
@@ -120,7 +245,7 @@ public class CloudFormationBuildWrapperTest {
 				any(PrintStream.class));
 
 		when(mockCF1.create()).thenReturn(true);
-		when(mockCF1.delete()).thenReturn(true);
+		when(mockCF1.deleteAsync()).thenReturn(CompletableFuture.completedFuture(true));
 	}
 
 }
@@ -0,0 +1,57 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+
+public class CloudFormationClientRegistryTest {
+
+	private CloudFormationClientRegistry registry; // SUT
+
+	@After
+	public void tearDown() {
+		registry.shutdown();
+	}
+
+	@Test
+	public void same_credentials_and_region_share_a_client() {
+		registry = new CloudFormationClientRegistry(60000);
+
+		AmazonCloudFormation first = registry.getClient("accessKey", "secretKey", Region.EU_Ireland);
+		AmazonCloudFormation second = registry.getClient("accessKey", "secretKey", Region.EU_Ireland);
+
+		assertSame(first, second);
+		assertEquals(1, registry.size());
+	}
+
+	@Test
+	public void different_region_or_credentials_get_their_own_client() {
+		registry = new CloudFormationClientRegistry(60000);
+
+		AmazonCloudFormation ireland = registry.getClient("accessKey", "secretKey", Region.EU_Ireland);
+		AmazonCloudFormation frankfurt = registry.getClient("accessKey", "secretKey", Region.EU_Frankfurt);
+		AmazonCloudFormation otherKey = registry.getClient("accessKey2", "secretKey", Region.EU_Ireland);
+
+		assertNotSame(ireland, frankfurt);
+		assertNotSame(ireland, otherKey);
+		assertEquals(3, registry.size());
+	}
+
+	@Test
+	public void idle_clients_are_evicted_and_recreated_on_demand() throws Exception {
+		registry = new CloudFormationClientRegistry(0);
+
+		AmazonCloudFormation first = registry.getClient("accessKey", "secretKey", Region.EU_Ireland);
+		Thread.sleep(5);
+		registry.evictIdle();
+
+		assertEquals(0, registry.size());
+		assertNotSame(first, registry.getClient("accessKey", "secretKey", Region.EU_Ireland));
+	}
+
+}
@@ -0,0 +1,815 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonServiceException.ErrorType;
+import com.amazonaws.services.cloudformation.AbstractAmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.AlreadyExistsException;
+import com.amazonaws.services.cloudformation.model.Change;
+import com.amazonaws.services.cloudformation.model.ChangeSetNotFoundException;
+import com.amazonaws.services.cloudformation.model.ChangeSetStatus;
+import com.amazonaws.services.cloudformation.model.CreateChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.CreateChangeSetResult;
+import com.amazonaws.services.cloudformation.model.CreateStackRequest;
+import com.amazonaws.services.cloudformation.model.CreateStackResult;
+import com.amazonaws.services.cloudformation.model.DeleteChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.DeleteChangeSetResult;
+import com.amazonaws.services.cloudformation.model.DeleteStackRequest;
+import com.amazonaws.services.cloudformation.model.DeleteStackResult;
+import com.amazonaws.services.cloudformation.model.DescribeChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.DescribeChangeSetResult;
+import com.amazonaws.services.cloudformation.model.DescribeStackEventsRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStackEventsResult;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+import com.amazonaws.services.cloudformation.model.ExecuteChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.ExecuteChangeSetResult;
+import com.amazonaws.services.cloudformation.model.ListStacksRequest;
+import com.amazonaws.services.cloudformation.model.ListStacksResult;
+import com.amazonaws.services.cloudformation.model.Output;
+import com.amazonaws.services.cloudformation.model.Parameter;
+import com.amazonaws.services.cloudformation.model.ResourceChange;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.StackEvent;
+import com.amazonaws.services.cloudformation.model.StackStatus;
+import com.amazonaws.services.cloudformation.model.StackSummary;
+import com.amazonaws.services.cloudformation.model.Tag;
+import com.amazonaws.services.cloudformation.model.UpdateStackRequest;
+import com.amazonaws.services.cloudformation.model.UpdateStackResult;
+
+/**
+ * In-process stand-in for CloudFormation, to run the plugin against a stack
+ * model instead of stubbing each call.
+ *
+ * Stacks move through the same statuses as in AWS, on a timeline set by
+ * {@link #setDuration}: creations, updates and deletions take their time, and
+ * operations made to fail with {@link #failNext} or {@link #setFailureRate}
+ * roll back. Each stack has one simulated resource, so its events look like a
+ * real stack's. Stacks, summaries and events come in pages of
+ * {@link #setPageSize} and client request tokens make retried mutations
+ * idempotent.
+ *
+ * Every call can be slowed down with {@link #setLatency} and fail with
+ * throttling or a server error at the configured rates. Calls, throttles and
+ * errors are counted, as is how long after an operation finished a caller
+ * first saw it finish.
+ */
+public class CloudFormationSimulator extends AbstractAmazonCloudFormation {
+
+	static final String ACCOUNT = "123456789012";
+
+	static final String RESOURCE = "Resource";
+
+	private static final String RESOURCE_TYPE = "AWS::CloudFormation::WaitConditionHandle";
+
+	private static final String STACK_TYPE = "AWS::CloudFormation::Stack";
+
+	private final String region;
+	private final Random random;
+
+	private final Map<String, Long> latencies = new ConcurrentHashMap<String, Long>();
+	private final Map<String, Long> durations = new ConcurrentHashMap<String, Long>();
+	private volatile double throttleRate;
+	private volatile double errorRate;
+	private volatile double failureRate;
+	private volatile int pageSize = 100;
+	private volatile Map<String, String> outputs = Collections.emptyMap();
+
+	/**
+	 * Every stack ever created, oldest first, by id.
+	 */
+	private final Map<String, SimulatedStack> stacks = new LinkedHashMap<String, SimulatedStack>();
+	private final Map<String, ChangeSet> changeSets = new HashMap<String, ChangeSet>();
+	private final Map<String, String> tokens = new HashMap<String, String>();
+	private final Set<String> failing = new HashSet<String>();
+
+	private final ConcurrentMap<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+	private final AtomicInteger throttles = new AtomicInteger();
+	private final AtomicInteger errors = new AtomicInteger();
+	private final List<Long> detectionLags = new ArrayList<Long>();
+
+	public CloudFormationSimulator() {
+		this("us-east-1", 0);
+	}
+
+	/**
+	 * @param seed seeds the injected throttling, errors and failures, so that a
+	 * run can be repeated.
+	 */
+	public CloudFormationSimulator(String region, long seed) {
+		this.region = region;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * @param call the API call, e.g. "describeStacks", or "*" for every call
+	 * without a latency of its own.
+	 */
+	public void setLatency(String call, long millis) {
+		latencies.put(call, millis);
+	}
+
+	/**
+	 * @param operation "create", "update", "delete" or "rollback".
+	 */
+	public void setDuration(String operation, long millis) {
+		durations.put(operation, millis);
+	}
+
+	/**
+	 * @param rate the share of calls, between 0 and 1, throttled.
+	 */
+	public void setThrottleRate(double rate) {
+		this.throttleRate = rate;
+	}
+
+	/**
+	 * @param rate the share of calls, between 0 and 1, failing with a server
+	 * error.
+	 */
+	public void setErrorRate(double rate) {
+		this.errorRate = rate;
+	}
+
+	/**
+	 * @param rate the share of stack operations, between 0 and 1, that fail
+	 * and roll back.
+	 */
+	public void setFailureRate(double rate) {
+		this.failureRate = rate;
+	}
+
+	/**
+	 * Makes the next operation on the stack fail.
+	 */
+	public synchronized void failNext(String stackName) {
+		failing.add(stackName);
+	}
+
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * @param outputs the outputs every stack gets once created, besides its
+	 * name as "StackName".
+	 */
+	public void setOutputs(Map<String, String> outputs) {
+		this.outputs = new LinkedHashMap<String, String>(outputs);
+	}
+
+	/**
+	 * @return the number of calls made, successful or not.
+	 */
+	public int getCalls(String call) {
+		AtomicInteger count = calls.get(call);
+		return count == null ? 0 : count.get();
+	}
+
+	public int getTotalCalls() {
+		int total = 0;
+		for (AtomicInteger count : calls.values()) {
+			total += count.get();
+		}
+		return total;
+	}
+
+	/**
+	 * @return calls made by API call, sorted by name.
+	 */
+	public Map<String, Integer> getCallCounts() {
+		Map<String, Integer> result = new TreeMap<String, Integer>();
+		for (Map.Entry<String, AtomicInteger> count : calls.entrySet()) {
+			result.put(count.getKey(), count.getValue().get());
+		}
+		return result;
+	}
+
+	public int getThrottles() {
+		return throttles.get();
+	}
+
+	public int getErrors() {
+		return errors.get();
+	}
+
+	/**
+	 * @return for each finished operation a caller has seen finish, the
+	 * milliseconds between it finishing and a describe or list first showing
+	 * it.
+	 */
+	public synchronized List<Long> getDetectionLags() {
+		return new ArrayList<Long>(detectionLags);
+	}
+
+	/**
+	 * Forgets the calls, throttles, errors and detection lags counted so far.
+	 */
+	public synchronized void resetCounts() {
+		calls.clear();
+		throttles.set(0);
+		errors.set(0);
+		detectionLags.clear();
+	}
+
+	/**
+	 * @return the current state of the stack without counting a call, or null
+	 * if there is no such stack.
+	 */
+	public synchronized Stack getStack(String stackNameOrId) {
+		SimulatedStack stack = find(stackNameOrId);
+		if (stack == null) {
+			return null;
+		}
+		stack.advance(System.currentTimeMillis());
+		return stack.describe();
+	}
+
+	@Override
+	public CreateStackResult createStack(CreateStackRequest request) {
+		call("createStack");
+		synchronized (this) {
+			String previous = token(request.getClientRequestToken());
+			if (previous != null) {
+				return new CreateStackResult().withStackId(previous);
+			}
+			SimulatedStack existing = active(request.getStackName());
+			if (existing != null) {
+				throw withCode(new AlreadyExistsException("Stack [" + request.getStackName() + "] already exists"),
+						"AlreadyExistsException");
+			}
+			SimulatedStack stack = new SimulatedStack(request.getStackName(), request.getTemplateBody() != null
+					? request.getTemplateBody() : request.getTemplateURL(), request.getParameters(), request.getTags());
+			stacks.put(stack.id, stack);
+			remember(request.getClientRequestToken(), stack.id);
+			stack.start("create", System.currentTimeMillis(), fails(stack.name));
+			return new CreateStackResult().withStackId(stack.id);
+		}
+	}
+
+	@Override
+	public UpdateStackResult updateStack(UpdateStackRequest request) {
+		call("updateStack");
+		synchronized (this) {
+			SimulatedStack stack = existing(request.getStackName());
+			if (token(request.getClientRequestToken()) != null) {
+				return new UpdateStackResult().withStackId(stack.id);
+			}
+			String template = Boolean.TRUE.equals(request.getUsePreviousTemplate()) ? stack.template
+					: request.getTemplateBody() != null ? request.getTemplateBody() : request.getTemplateURL();
+			update(stack, template, stack.resolve(request.getParameters()), request.getTags());
+			remember(request.getClientRequestToken(), stack.id);
+			return new UpdateStackResult().withStackId(stack.id);
+		}
+	}
+
+	@Override
+	public DeleteStackResult deleteStack(DeleteStackRequest request) {
+		call("deleteStack");
+		synchronized (this) {
+			SimulatedStack stack = find(request.getStackName());
+			if (stack == null || token(request.getClientRequestToken()) != null) {
+				return new DeleteStackResult();
+			}
+			long now = System.currentTimeMillis();
+			stack.advance(now);
+			if (stack.isDeleted() || stack.status == StackStatus.DELETE_IN_PROGRESS) {
+				return new DeleteStackResult();
+			}
+			// Like AWS, a creation in progress is cancelled; other operations
+			// have to finish first.
+			if (stack.status != StackStatus.CREATE_IN_PROGRESS && stack.status.toString().endsWith("_IN_PROGRESS")) {
+				throw validationError("Stack [" + stack.name + "] is in " + stack.status + " state and can not be deleted");
+			}
+			remember(request.getClientRequestToken(), stack.id);
+			stack.start("delete", now, fails(stack.name));
+			return new DeleteStackResult();
+		}
+	}
+
+	@Override
+	public DescribeStacksResult describeStacks(DescribeStacksRequest request) {
+		call("describeStacks");
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (request.getStackName() != null) {
+				SimulatedStack stack = existing(request.getStackName());
+				stack.advance(now);
+				stack.seen(now);
+				return new DescribeStacksResult().withStacks(stack.describe());
+			}
+			List<SimulatedStack> active = new ArrayList<SimulatedStack>();
+			for (SimulatedStack stack : stacks.values()) {
+				stack.advance(now);
+				if (!stack.isDeleted()) {
+					active.add(stack);
+				}
+			}
+			Collections.reverse(active);
+			int from = start(request.getNextToken());
+			List<Stack> page = new ArrayList<Stack>();
+			for (SimulatedStack stack : active.subList(from, Math.min(active.size(), from + pageSize))) {
+				stack.seen(now);
+				page.add(stack.describe());
+			}
+			return new DescribeStacksResult().withStacks(page).withNextToken(next(from, active.size()));
+		}
+	}
+
+	@Override
+	public DescribeStacksResult describeStacks() {
+		return describeStacks(new DescribeStacksRequest());
+	}
+
+	@Override
+	public ListStacksResult listStacks(ListStacksRequest request) {
+		call("listStacks");
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			List<String> filters = request.getStackStatusFilters();
+			List<SimulatedStack> matching = new ArrayList<SimulatedStack>();
+			for (SimulatedStack stack : stacks.values()) {
+				stack.advance(now);
+				if (filters == null || filters.isEmpty() || filters.contains(stack.status.toString())) {
+					matching.add(stack);
+				}
+			}
+			Collections.reverse(matching);
+			int from = start(request.getNextToken());
+			List<StackSummary> page = new ArrayList<StackSummary>();
+			for (SimulatedStack stack : matching.subList(from, Math.min(matching.size(), from + pageSize))) {
+				stack.seen(now);
+				page.add(stack.summarize());
+			}
+			return new ListStacksResult().withStackSummaries(page).withNextToken(next(from, matching.size()));
+		}
+	}
+
+	@Override
+	public ListStacksResult listStacks() {
+		return listStacks(new ListStacksRequest());
+	}
+
+	@Override
+	public DescribeStackEventsResult describeStackEvents(DescribeStackEventsRequest request) {
+		call("describeStackEvents");
+		synchronized (this) {
+			SimulatedStack stack = existing(request.getStackName());
+			stack.advance(System.currentTimeMillis());
+			List<StackEvent> newestFirst = new ArrayList<StackEvent>(stack.events);
+			Collections.reverse(newestFirst);
+			int from = start(request.getNextToken());
+			return new DescribeStackEventsResult()
+					.withStackEvents(new ArrayList<StackEvent>(newestFirst.subList(from, Math.min(newestFirst.size(), from + pageSize))))
+					.withNextToken(next(from, newestFirst.size()));
+		}
+	}
+
+	@Override
+	public CreateChangeSetResult createChangeSet(CreateChangeSetRequest request) {
+		call("createChangeSet");
+		synchronized (this) {
+			SimulatedStack stack = existing(request.getStackName());
+			String previous = token(request.getClientToken());
+			if (previous != null) {
+				return new CreateChangeSetResult().withId(previous).withStackId(stack.id);
+			}
+			String template = Boolean.TRUE.equals(request.getUsePreviousTemplate()) ? stack.template
+					: request.getTemplateBody() != null ? request.getTemplateBody() : request.getTemplateURL();
+			ChangeSet changeSet = new ChangeSet(arn("changeSet", request.getChangeSetName()), stack, template,
+					stack.resolve(request.getParameters()), request.getTags());
+			changeSets.put(changeSet.id, changeSet);
+			remember(request.getClientToken(), changeSet.id);
+			return new CreateChangeSetResult().withId(changeSet.id).withStackId(stack.id);
+		}
+	}
+
+	@Override
+	public DescribeChangeSetResult describeChangeSet(DescribeChangeSetRequest request) {
+		call("describeChangeSet");
+		synchronized (this) {
+			ChangeSet changeSet = changeSet(request.getChangeSetName());
+			DescribeChangeSetResult result = new DescribeChangeSetResult().withChangeSetId(changeSet.id)
+					.withStackId(changeSet.stack.id).withStackName(changeSet.stack.name);
+			if (!changeSet.stack.changes(changeSet.template, changeSet.parameters, changeSet.tags)) {
+				return result.withStatus(ChangeSetStatus.FAILED).withStatusReason(
+						"The submitted information didn't contain changes. Submit different information to create a change set.");
+			}
+			return result.withStatus(ChangeSetStatus.CREATE_COMPLETE).withChanges(new Change().withType("Resource")
+					.withResourceChange(new ResourceChange().withAction("Modify").withLogicalResourceId(RESOURCE)
+							.withResourceType(RESOURCE_TYPE).withReplacement("False")));
+		}
+	}
+
+	@Override
+	public ExecuteChangeSetResult executeChangeSet(ExecuteChangeSetRequest request) {
+		call("executeChangeSet");
+		synchronized (this) {
+			if (token(request.getClientRequestToken()) != null) {
+				return new ExecuteChangeSetResult();
+			}
+			ChangeSet changeSet = changeSet(request.getChangeSetName());
+			update(changeSet.stack, changeSet.template, changeSet.parameters, changeSet.tags);
+			changeSets.remove(changeSet.id);
+			remember(request.getClientRequestToken(), changeSet.id);
+			return new ExecuteChangeSetResult();
+		}
+	}
+
+	@Override
+	public DeleteChangeSetResult deleteChangeSet(DeleteChangeSetRequest request) {
+		call("deleteChangeSet");
+		synchronized (this) {
+			changeSets.remove(changeSet(request.getChangeSetName()).id);
+			return new DeleteChangeSetResult();
+		}
+	}
+
+	@Override
+	public void shutdown() {
+	}
+
+	/**
+	 * Counts the call, waits its latency and fails it at the injected rates.
+	 */
+	private void call(String call) {
+		AtomicInteger count = calls.get(call);
+		if (count == null) {
+			AtomicInteger created = new AtomicInteger();
+			count = calls.putIfAbsent(call, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		count.incrementAndGet();
+
+		Long latency = latencies.containsKey(call) ? latencies.get(call) : latencies.get("*");
+		if (latency != null && latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new AbortedException();
+			}
+		}
+
+		double draw;
+		synchronized (random) {
+			draw = random.nextDouble();
+		}
+		if (draw < throttleRate) {
+			throttles.incrementAndGet();
+			throw error(new AmazonServiceException("Rate exceeded"), "Throttling", 400, ErrorType.Client);
+		}
+		if (draw < throttleRate + errorRate) {
+			errors.incrementAndGet();
+			throw error(new AmazonServiceException("Service is unavailable"), "ServiceUnavailable", 503, ErrorType.Service);
+		}
+	}
+
+	private static <E extends AmazonServiceException> E error(E e, String code, int status, ErrorType type) {
+		e.setErrorCode(code);
+		e.setStatusCode(status);
+		e.setErrorType(type);
+		e.setServiceName("AmazonCloudFormation");
+		e.setRequestId(UUID.randomUUID().toString());
+		return e;
+	}
+
+	private static <E extends AmazonServiceException> E withCode(E e, String code) {
+		return error(e, code, 400, ErrorType.Client);
+	}
+
+	private static AmazonServiceException validationError(String message) {
+		return withCode(new AmazonServiceException(message), "ValidationError");
+	}
+
+	private boolean fails(String stackName) {
+		if (failing.remove(stackName)) {
+			return true;
+		}
+		synchronized (random) {
+			return random.nextDouble() < failureRate;
+		}
+	}
+
+	private void update(SimulatedStack stack, String template, Map<String, String> parameters, Collection<Tag> tags) {
+		long now = System.currentTimeMillis();
+		stack.advance(now);
+		if (stack.status.toString().endsWith("_IN_PROGRESS") || stack.isDeleted()
+				|| stack.status == StackStatus.ROLLBACK_COMPLETE || stack.status == StackStatus.CREATE_FAILED) {
+			throw validationError("Stack:" + stack.id + " is in " + stack.status + " state and can not be updated.");
+		}
+		if (!stack.changes(template, parameters, tags)) {
+			throw validationError("No updates are to be performed.");
+		}
+		stack.previous = new Configuration(stack.template, stack.parameters, stack.tags);
+		stack.template = template;
+		stack.parameters = parameters;
+		if (!keepsTags(tags)) {
+			stack.tags = new ArrayList<Tag>(tags);
+		}
+		stack.start("update", now, fails(stack.name));
+	}
+
+	/**
+	 * Like AWS, an update without tags leaves the stack's tags alone.
+	 */
+	private static boolean keepsTags(Collection<Tag> tags) {
+		return tags == null || tags.isEmpty();
+	}
+
+	private String token(String token) {
+		return token == null ? null : tokens.get(token);
+	}
+
+	private void remember(String token, String id) {
+		if (token != null) {
+			tokens.put(token, id);
+		}
+	}
+
+	/**
+	 * @return the stack with the id, or the live stack with the name.
+	 */
+	private SimulatedStack find(String stackNameOrId) {
+		SimulatedStack stack = stacks.get(stackNameOrId);
+		return stack != null ? stack : active(stackNameOrId);
+	}
+
+	private SimulatedStack active(String stackName) {
+		long now = System.currentTimeMillis();
+		for (SimulatedStack stack : stacks.values()) {
+			if (stack.name.equals(stackName)) {
+				stack.advance(now);
+				if (!stack.isDeleted()) {
+					return stack;
+				}
+			}
+		}
+		return null;
+	}
+
+	private SimulatedStack existing(String stackNameOrId) {
+		SimulatedStack stack = find(stackNameOrId);
+		if (stack == null) {
+			throw validationError("Stack with id " + stackNameOrId + " does not exist");
+		}
+		return stack;
+	}
+
+	private ChangeSet changeSet(String id) {
+		ChangeSet changeSet = changeSets.get(id);
+		if (changeSet == null) {
+			throw withCode(new ChangeSetNotFoundException("ChangeSet [" + id + "] does not exist"), "ChangeSetNotFound");
+		}
+		return changeSet;
+	}
+
+	private String arn(String type, String name) {
+		return "arn:aws:cloudformation:" + region + ":" + ACCOUNT + ":" + type + "/" + name + "/" + UUID.randomUUID();
+	}
+
+	private static int start(String nextToken) {
+		return nextToken == null ? 0 : Integer.parseInt(nextToken);
+	}
+
+	private String next(int from, int size) {
+		return from + pageSize < size ? String.valueOf(from + pageSize) : null;
+	}
+
+	private long duration(String operation) {
+		Long duration = durations.get(operation);
+		return duration == null ? 0 : duration;
+	}
+
+	private synchronized void detected(long lag) {
+		detectionLags.add(lag);
+	}
+
+	private static final class Configuration {
+		private final String template;
+		private final Map<String, String> parameters;
+		private final List<Tag> tags;
+
+		Configuration(String template, Map<String, String> parameters, List<Tag> tags) {
+			this.template = template;
+			this.parameters = parameters;
+			this.tags = tags;
+		}
+	}
+
+	private static final class ChangeSet {
+		private final String id;
+		private final SimulatedStack stack;
+		private final String template;
+		private final Map<String, String> parameters;
+		private final Collection<Tag> tags;
+
+		ChangeSet(String id, SimulatedStack stack, String template, Map<String, String> parameters, Collection<Tag> tags) {
+			this.id = id;
+			this.stack = stack;
+			this.template = template;
+			this.parameters = parameters;
+			this.tags = tags;
+		}
+	}
+
+	/**
+	 * A status change, of the stack or its resource, due at a given time.
+	 */
+	private static final class Transition {
+		private final long at;
+		private final boolean resource;
+		private final StackStatus status;
+		private final String reason;
+
+		Transition(long at, boolean resource, StackStatus status, String reason) {
+			this.at = at;
+			this.resource = resource;
+			this.status = status;
+			this.reason = reason;
+		}
+	}
+
+	private final class SimulatedStack {
+		private final String id;
+		private final String name;
+		private final Date created = new Date();
+		private String template;
+		private Map<String, String> parameters;
+		private List<Tag> tags;
+		private Configuration previous;
+
+		private StackStatus status;
+		private String statusReason;
+		private final List<StackEvent> events = new ArrayList<StackEvent>();
+		private final List<Transition> timeline = new ArrayList<Transition>();
+
+		/**
+		 * When the latest operation finished, or 0 while it runs or once a
+		 * caller has seen it finish.
+		 */
+		private long settledAt;
+
+		SimulatedStack(String name, String template, Collection<Parameter> parameters, Collection<Tag> tags) {
+			this.id = arn("stack", name);
+			this.name = name;
+			this.template = template;
+			this.parameters = resolve(parameters);
+			this.tags = tags == null ? new ArrayList<Tag>() : new ArrayList<Tag>(tags);
+		}
+
+		/**
+		 * Lays out the operation's statuses from now on.
+		 */
+		void start(String operation, long now, boolean fail) {
+			long end = now + duration(operation);
+			long rolledBack = end + duration("rollback");
+			settledAt = 0;
+			timeline.clear();
+			if ("create".equals(operation)) {
+				apply(new Transition(now, false, StackStatus.CREATE_IN_PROGRESS, "User Initiated"));
+				apply(new Transition(now, true, StackStatus.CREATE_IN_PROGRESS, null));
+				if (fail) {
+					timeline.add(new Transition(end, true, StackStatus.CREATE_FAILED, "Simulated failure"));
+					timeline.add(new Transition(end, false, StackStatus.ROLLBACK_IN_PROGRESS,
+							"The following resource(s) failed to create: [" + RESOURCE + "]. Rollback requested by user."));
+					timeline.add(new Transition(rolledBack, true, StackStatus.DELETE_COMPLETE, null));
+					timeline.add(new Transition(rolledBack, false, StackStatus.ROLLBACK_COMPLETE, null));
+				} else {
+					timeline.add(new Transition(end, true, StackStatus.CREATE_COMPLETE, null));
+					timeline.add(new Transition(end, false, StackStatus.CREATE_COMPLETE, null));
+				}
+			} else if ("update".equals(operation)) {
+				apply(new Transition(now, false, StackStatus.UPDATE_IN_PROGRESS, "User Initiated"));
+				apply(new Transition(now, true, StackStatus.UPDATE_IN_PROGRESS, null));
+				if (fail) {
+					timeline.add(new Transition(end, true, StackStatus.UPDATE_FAILED, "Simulated failure"));
+					timeline.add(new Transition(end, false, StackStatus.UPDATE_ROLLBACK_IN_PROGRESS,
+							"The following resource(s) failed to update: [" + RESOURCE + "]."));
+					timeline.add(new Transition(rolledBack, true, StackStatus.UPDATE_COMPLETE, null));
+					timeline.add(new Transition(rolledBack, false, StackStatus.UPDATE_ROLLBACK_COMPLETE, null));
+				} else {
+					timeline.add(new Transition(end, true, StackStatus.UPDATE_COMPLETE, null));
+					timeline.add(new Transition(end, false, StackStatus.UPDATE_COMPLETE, null));
+				}
+			} else {
+				apply(new Transition(now, false, StackStatus.DELETE_IN_PROGRESS, "User Initiated"));
+				apply(new Transition(now, true, StackStatus.DELETE_IN_PROGRESS, null));
+				if (fail) {
+					timeline.add(new Transition(end, true, StackStatus.DELETE_FAILED, "Simulated failure"));
+					timeline.add(new Transition(end, false, StackStatus.DELETE_FAILED,
+							"The following resource(s) failed to delete: [" + RESOURCE + "]."));
+				} else {
+					timeline.add(new Transition(end, true, StackStatus.DELETE_COMPLETE, null));
+					timeline.add(new Transition(end, false, StackStatus.DELETE_COMPLETE, null));
+				}
+			}
+		}
+
+		/**
+		 * Applies the transitions due by now.
+		 */
+		void advance(long now) {
+			while (!timeline.isEmpty() && timeline.get(0).at <= now) {
+				Transition transition = timeline.remove(0);
+				apply(transition);
+				if (!transition.resource && timeline.isEmpty()) {
+					settledAt = transition.at;
+				}
+			}
+		}
+
+		private void apply(Transition transition) {
+			if (!transition.resource) {
+				status = transition.status;
+				statusReason = transition.reason;
+				if (status == StackStatus.UPDATE_ROLLBACK_COMPLETE && previous != null) {
+					template = previous.template;
+					parameters = previous.parameters;
+					tags = previous.tags;
+				}
+			}
+			events.add(new StackEvent().withEventId(UUID.randomUUID().toString()).withStackId(id).withStackName(name)
+					.withTimestamp(new Date(transition.at))
+					.withLogicalResourceId(transition.resource ? RESOURCE : name)
+					.withPhysicalResourceId(transition.resource ? name + "-" + RESOURCE : id)
+					.withResourceType(transition.resource ? RESOURCE_TYPE : STACK_TYPE)
+					.withResourceStatus(transition.status.toString())
+					.withResourceStatusReason(transition.reason));
+		}
+
+		/**
+		 * Records how late a caller saw the latest operation finish.
+		 */
+		void seen(long now) {
+			if (settledAt > 0) {
+				detected(now - settledAt);
+				settledAt = 0;
+			}
+		}
+
+		boolean isDeleted() {
+			return status == StackStatus.DELETE_COMPLETE;
+		}
+
+		Map<String, String> resolve(Collection<Parameter> requested) {
+			Map<String, String> resolved = new TreeMap<String, String>();
+			if (requested != null) {
+				for (Parameter parameter : requested) {
+					resolved.put(parameter.getParameterKey(), Boolean.TRUE.equals(parameter.getUsePreviousValue())
+							&& parameters != null ? parameters.get(parameter.getParameterKey()) : parameter.getParameterValue());
+				}
+			}
+			return resolved;
+		}
+
+		boolean changes(String template, Map<String, String> parameters, Collection<Tag> tags) {
+			return !Objects.equals(this.template, template) || !this.parameters.equals(parameters)
+					|| (!keepsTags(tags) && !new HashSet<Tag>(this.tags).equals(new HashSet<Tag>(tags)));
+		}
+
+		Stack describe() {
+			Stack stack = new Stack().withStackId(id).withStackName(name).withCreationTime(created)
+					.withStackStatus(status).withStackStatusReason(statusReason).withTags(tags);
+			for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+				stack.withParameters(new Parameter().withParameterKey(parameter.getKey())
+						.withParameterValue(parameter.getValue()));
+			}
+			if (status == StackStatus.CREATE_COMPLETE || status == StackStatus.UPDATE_COMPLETE
+					|| status == StackStatus.UPDATE_ROLLBACK_COMPLETE) {
+				stack.withOutputs(new Output().withOutputKey("StackName").withOutputValue(name));
+				for (Map.Entry<String, String> output : outputs.entrySet()) {
+					stack.withOutputs(new Output().withOutputKey(output.getKey()).withOutputValue(output.getValue()));
+				}
+			}
+			return stack;
+		}
+
+		StackSummary summarize() {
+			return new StackSummary().withStackId(id).withStackName(name).withCreationTime(created)
+					.withStackStatus(status).withStackStatusReason(statusReason)
+					.withDeletionTime(isDeleted() ? new Date(events.get(events.size() - 1).getTimestamp().getTime()) : null);
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import hudson.EnvVars;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.CreateStackRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStackEventsRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStackEventsResult;
+import com.amazonaws.services.cloudformation.model.Parameter;
+import com.amazonaws.services.cloudformation.model.StackEvent;
+import com.amazonaws.services.cloudformation.model.StackSummary;
+import com.amazonaws.services.cloudformation.model.UpdateStackRequest;
+
+public class CloudFormationSimulatorTest {
+
+	private CloudFormationSimulator simulator = new CloudFormationSimulator(); // SUT
+
+	private Map<String, String> parameters = new HashMap<String, String>();
+
+	@Before
+	public void setup() {
+		simulator.setDuration("create", 50);
+		simulator.setDuration("update", 50);
+		simulator.setDuration("delete", 50);
+		simulator.setDuration("rollback", 50);
+		// Keeps the test mode's back to back polls down to a few dozen.
+		simulator.setLatency("describeStacks", 5);
+		simulator.setOutputs(Collections.singletonMap("Url", "http://app"));
+	}
+
+	@Test
+	public void stacks_are_created_updated_and_deleted_on_their_timelines() throws Exception {
+		CloudFormation cf = cloudFormation("app", "template 1");
+		assertTrue(cf.create());
+		assertEquals("CREATE_COMPLETE", simulator.getStack("app").getStackStatus());
+		assertEquals("http://app", cf.getStackOutputs().get("Url"));
+
+		parameters.put("Size", "2");
+		assertTrue(cloudFormation("app", "template 1").create());
+		assertEquals("UPDATE_COMPLETE", simulator.getStack("app").getStackStatus());
+
+		String stackId = simulator.getStack("app").getStackId();
+		assertTrue(cloudFormation("app", "template 1").delete());
+		assertNull(simulator.getStack("app"));
+		assertEquals("DELETE_COMPLETE", simulator.getStack(stackId).getStackStatus());
+
+		assertEquals(1, simulator.getCalls("createStack"));
+		assertEquals(1, simulator.getCalls("updateStack"));
+		assertEquals(1, simulator.getCalls("deleteStack"));
+		assertEquals(3, simulator.getDetectionLags().size());
+	}
+
+	@Test
+	public void a_failed_creation_rolls_back() throws Exception {
+		simulator.failNext("app");
+		assertFalse(cloudFormation("app", "template").create());
+		// The creation has failed, the rollback takes a little longer.
+		Thread.sleep(100);
+		assertEquals("ROLLBACK_COMPLETE", simulator.getStack("app").getStackStatus());
+
+		List<String> statuses = new ArrayList<String>();
+		for (StackEvent event : simulator.describeStackEvents(new DescribeStackEventsRequest().withStackName("app")).getStackEvents()) {
+			statuses.add(event.getLogicalResourceId() + " " + event.getResourceStatus());
+		}
+		assertEquals("app ROLLBACK_COMPLETE", statuses.get(0));
+		assertTrue(statuses.contains(CloudFormationSimulator.RESOURCE + " CREATE_FAILED"));
+		assertEquals("app CREATE_IN_PROGRESS", statuses.get(statuses.size() - 1));
+	}
+
+	@Test
+	public void throttled_and_failed_calls_are_retried() throws Exception {
+		simulator.setThrottleRate(0.3);
+		simulator.setErrorRate(0.1);
+		AmazonCloudFormation client = new ApiRetrier(1, 5).retry(simulator, Region.getDefault());
+		for (int i = 0; i < 20; i++) {
+			client.createStack(new CreateStackRequest().withStackName("app-" + i).withTemplateBody("template"));
+		}
+
+		// Failed calls leave nothing behind, so every stack is created once.
+		assertEquals(20, simulator.describeStacks().getStacks().size());
+		assertTrue(simulator.getThrottles() > 0);
+		assertTrue(simulator.getErrors() > 0);
+		assertEquals(20 + simulator.getThrottles() + simulator.getErrors(), simulator.getCalls("createStack"));
+	}
+
+	@Test
+	public void lists_and_events_come_in_pages() throws Exception {
+		simulator.setPageSize(2);
+		for (int i = 0; i < 5; i++) {
+			simulator.createStack(new CreateStackRequest().withStackName("app-" + i).withTemplateBody("template"));
+		}
+
+		int listed = 0;
+		for (Iterator<StackSummary> it = new StackSummaryIterator(simulator, Arrays.asList("CREATE_IN_PROGRESS")); it.hasNext(); it.next()) {
+			listed++;
+		}
+		assertEquals(5, listed);
+		assertEquals(3, simulator.getCalls("listStacks"));
+
+		// Once created, the stack and its resource have two events each.
+		Thread.sleep(100);
+		DescribeStackEventsResult page = simulator.describeStackEvents(new DescribeStackEventsRequest().withStackName("app-0"));
+		assertEquals(2, page.getStackEvents().size());
+		assertNotNull(page.getNextToken());
+	}
+
+	@Test
+	public void change_sets_are_executed_and_unchanged_updates_rejected() throws Exception {
+		assertTrue(cloudFormation("app", "template").create());
+
+		parameters.put("Size", "2");
+		CloudFormation changed = cloudFormation("app", "template");
+		changed.setUseChangeSet(true);
+		assertTrue(changed.create());
+		assertEquals(1, simulator.getCalls("executeChangeSet"));
+		assertEquals("UPDATE_COMPLETE", simulator.getStack("app").getStackStatus());
+
+		try {
+			simulator.updateStack(new UpdateStackRequest().withStackName("app").withUsePreviousTemplate(true)
+					.withParameters(new Parameter().withParameterKey("Size").withUsePreviousValue(true)));
+			fail();
+		} catch (AmazonServiceException e) {
+			assertTrue(e.getErrorMessage(), CloudFormation.isNoUpdates(e.getErrorMessage()));
+		}
+	}
+
+	private CloudFormation cloudFormation(String stackName, String template) {
+		return new CloudFormation(System.out, stackName, false, template, new HashMap<String, String>(parameters),
+				-12345, "accessKey", "secretKey", true, new EnvVars(), false) {
+			@Override
+			protected AmazonCloudFormation getAWSClient() {
+				return simulator;
+			}
+		};
+	}
+
+}
@@ -0,0 +1,192 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.model.TaskListener;
+
+import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.junit.Test;
+
+public class CloudFormationStepExecutionTest {
+
+	private RecordingContext context = new RecordingContext();
+
+	private CompletableFuture<String> operation = new CompletableFuture<String>();
+
+	private CountDownLatch started = new CountDownLatch(1);
+
+	private CloudFormationStepExecution<String> execution = new CloudFormationStepExecution<String>(context) { // SUT
+		@Override
+		protected CloudFormation newCloudFormation(TaskListener listener, EnvVars env) {
+			return mock(CloudFormation.class);
+		}
+
+		@Override
+		protected CompletableFuture<String> run(CloudFormation cloudFormation) {
+			started.countDown();
+			return operation;
+		}
+
+		@Override
+		protected CompletableFuture<String> resume(CloudFormation cloudFormation, StackOperation inFlight) {
+			return CompletableFuture.completedFuture("resumed " + inFlight.getStackId());
+		}
+	};
+
+	@Test
+	public void start_returns_at_once_and_the_step_completes_with_the_operation() throws Exception {
+		assertFalse(execution.start());
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		assertFalse(context.isDone());
+
+		operation.complete("outputs");
+
+		assertTrue(context.await());
+		assertEquals("outputs", context.result);
+		assertNull(context.failure);
+	}
+
+	@Test
+	public void a_failed_operation_fails_the_step_with_its_cause() throws Exception {
+		AbortException cause = new AbortException("Failed to create or update stack app");
+		execution.start();
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		operation.completeExceptionally(new CompletionException(cause));
+
+		assertTrue(context.await());
+		assertSame(cause, context.failure);
+	}
+
+	@Test
+	public void stopping_cancels_the_operation() throws Exception {
+		InterruptedException cause = new InterruptedException();
+		execution.start();
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		execution.stop(cause);
+
+		assertTrue(context.await());
+		assertSame(cause, context.failure);
+		// The operation may still be on its way back from the background thread.
+		for (int i = 0; i < 100 && !operation.isCancelled(); i++) {
+			Thread.sleep(50);
+		}
+		assertTrue(operation.isCancelled());
+	}
+
+	@Test
+	public void an_operation_finishing_after_the_step_was_stopped_does_not_complete_it_again() throws Exception {
+		InterruptedException cause = new InterruptedException();
+		// Too late to be cancelled.
+		operation = new CompletableFuture<String>() {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				return false;
+			}
+		};
+		execution.start();
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		execution.stop(cause);
+		operation.complete("outputs");
+
+		assertTrue(context.await());
+		assertSame(cause, context.failure);
+		assertEquals(1, context.completions);
+	}
+
+	@Test
+	public void after_a_restart_an_operation_not_yet_issued_is_run() throws Exception {
+		execution.onResume();
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		operation.complete("outputs");
+
+		assertTrue(context.await());
+		assertEquals("outputs", context.result);
+	}
+
+	@Test
+	public void after_a_restart_an_issued_operation_is_resumed() throws Exception {
+		execution.getInFlight().started("arn:stack", "update", System.currentTimeMillis(), null);
+
+		execution.onResume();
+
+		assertTrue(context.await());
+		assertEquals("resumed arn:stack", context.result);
+		assertEquals(1, started.getCount());
+	}
+
+	@Test
+	public void a_template_in_the_workspace_fails_the_step_without_one() throws Exception {
+		new CloudFormationStackStep("app", "stack.json").start(context).start();
+
+		assertTrue(context.await());
+		assertTrue(context.failure instanceof AbortException);
+		assertTrue(context.failure.getMessage().contains("node block"));
+	}
+
+	private static final class RecordingContext extends StepContext {
+		private static final long serialVersionUID = 1L;
+
+		private final transient CountDownLatch done = new CountDownLatch(1);
+		private volatile Object result;
+		private volatile Throwable failure;
+		private volatile int completions;
+
+		@Override
+		public <T> T get(Class<T> key) {
+			if (key == TaskListener.class) {
+				return key.cast(new TaskListener() {
+					private static final long serialVersionUID = 1L;
+
+					public PrintStream getLogger() {
+						return System.out;
+					}
+				});
+			}
+			return key == EnvVars.class ? key.cast(new EnvVars()) : null;
+		}
+
+		@Override
+		public synchronized void onSuccess(Object result) {
+			completions++;
+			if (done.getCount() > 0) {
+				this.result = result;
+				done.countDown();
+			}
+		}
+
+		@Override
+		public synchronized void onFailure(Throwable failure) {
+			completions++;
+			if (done.getCount() > 0) {
+				this.failure = failure;
+				done.countDown();
+			}
+		}
+
+		boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		boolean await() throws InterruptedException {
+			return done.await(10, TimeUnit.SECONDS);
+		}
+	}
+
+}
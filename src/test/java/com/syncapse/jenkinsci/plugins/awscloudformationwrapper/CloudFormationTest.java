@@ -1,14 +1,25 @@
 package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
 
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasProperty;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import hudson.EnvVars;
 import org.junit.Before;
@@ -17,20 +28,38 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.Change;
+import com.amazonaws.services.cloudformation.model.ChangeSetStatus;
+import com.amazonaws.services.cloudformation.model.CreateChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.CreateChangeSetResult;
 import com.amazonaws.services.cloudformation.model.CreateStackRequest;
 import com.amazonaws.services.cloudformation.model.CreateStackResult;
+import com.amazonaws.services.cloudformation.model.DeleteStackRequest;
+import com.amazonaws.services.cloudformation.model.DescribeChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.DescribeChangeSetResult;
 import com.amazonaws.services.cloudformation.model.DescribeStackEventsRequest;
 import com.amazonaws.services.cloudformation.model.DescribeStackEventsResult;
 import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
 import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+import com.amazonaws.services.cloudformation.model.ExecuteChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.ListStacksRequest;
+import com.amazonaws.services.cloudformation.model.ListStacksResult;
+import com.amazonaws.services.cloudformation.model.Output;
+import com.amazonaws.services.cloudformation.model.ResourceChange;
 import com.amazonaws.services.cloudformation.model.Stack;
 import com.amazonaws.services.cloudformation.model.StackStatus;
+import com.amazonaws.services.cloudformation.model.StackSummary;
+import com.amazonaws.services.cloudformation.model.Tag;
+import com.amazonaws.services.cloudformation.model.UpdateStackRequest;
 
 @RunWith(MockitoJUnitRunner.class)
 public class CloudFormationTest {
 
 	private static final String TEST_STACK = "testStack";
+	private static final String TEST_STACK_ID = "arn:aws:cloudformation:us-east-1:123456789012:stack/testStack/1";
+	private static final String TEST_CHANGE_SET_ID = "arn:aws:cloudformation:us-east-1:123456789012:changeSet/jenkins-1/1";
 
 	private CloudFormation cf; // SUT
 
@@ -83,21 +112,266 @@ public class CloudFormationTest {
 		assertFalse(cf.create());
 	}
 
+	@Test
+	public void createAsync_returns_before_the_stack_is_created()
+			throws Exception {
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class)))
+				.thenReturn(stackPendingResult(), stackPendingResult(),
+						stackCompletedResult());
+		Future<Boolean> created = cf.createAsync();
+		assertTrue(created.get(10, TimeUnit.SECONDS));
+		verify(awsClient, times(3)).describeStacks(
+				any(DescribeStacksRequest.class));
+	}
+
 	@Test
 	public void delete_waits_for_stack_to_be_deleted() throws Exception {
-		when(awsClient.describeStacks()).thenReturn(stackDeletingResult(),
-				stackDeletingResult(), stackDeleteSuccessfulResult());
-		cf.delete();
-		verify(awsClient, times(3)).describeStacks();
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class)))
+				.thenReturn(stackCompletedResult(), stackDeletingResult(),
+						stackDeletingResult(), stackDeleteSuccessfulResult());
+		assertTrue(cf.delete());
+		verify(awsClient, times(4)).describeStacks(
+				any(DescribeStacksRequest.class));
+		verify(awsClient, never()).describeStacks();
+	}
+
+	@Test
+	public void delete_tracks_the_stack_by_its_id() throws Exception {
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class)))
+				.thenReturn(stackCompletedResult(), stackDeletedResult());
+		assertTrue(cf.delete());
+		verify(awsClient).deleteStack(argThat(hasProperty("stackName", equalTo(TEST_STACK_ID))));
+		verify(awsClient).describeStacks(argThat(hasProperty("stackName", equalTo(TEST_STACK_ID))));
 	}
 
 	@Test
 	public void delete_returns_false_when_stack_fails_to_delete()
 			throws Exception {
-		when(awsClient.describeStacks()).thenReturn(stackDeleteFailedResult());
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class)))
+				.thenReturn(stackCompletedResult(), stackDeleteFailedResult());
 		assertFalse(cf.delete());
 	}
 
+	@Test
+	public void delete_treats_a_missing_stack_as_deleted() throws Exception {
+		AmazonServiceException missing = new AmazonServiceException("Stack with id " + TEST_STACK + " does not exist");
+		missing.setErrorCode("ValidationError");
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class))).thenThrow(missing);
+		assertTrue(cf.delete());
+		verify(awsClient, never()).deleteStack(any(DeleteStackRequest.class));
+	}
+
+	@Test
+	public void delete_records_the_operation_to_resume() throws Exception {
+		StackOperation inFlight = new StackOperation();
+		cf.setInFlight(inFlight);
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class)))
+				.thenReturn(stackCompletedResult(), stackDeletedResult());
+		assertTrue(cf.delete());
+		assertEquals("delete", inFlight.getOperation());
+		assertEquals(TEST_STACK_ID, inFlight.getStackId());
+	}
+
+	@Test
+	public void resuming_a_deletion_waits_without_deleting_again() throws Exception {
+		StackOperation inFlight = new StackOperation();
+		inFlight.started(TEST_STACK_ID, "delete", System.currentTimeMillis() - 60000, "event-1");
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class)))
+				.thenReturn(stackDeletingResult(), stackDeleteSuccessfulResult());
+		assertTrue(cf.resume(inFlight).get(10, TimeUnit.SECONDS));
+		verify(awsClient, never()).deleteStack(any(DeleteStackRequest.class));
+		verify(awsClient, times(2)).describeStacks(argThat(hasProperty("stackName", equalTo(TEST_STACK_ID))));
+	}
+
+	@Test
+	public void resuming_a_creation_waits_without_creating_again() throws Exception {
+		StackOperation inFlight = new StackOperation();
+		inFlight.started(TEST_STACK_ID, "create", System.currentTimeMillis() - 60000, null);
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class)))
+				.thenReturn(stackPendingResult(), stackCompletedResult());
+		assertTrue(cf.resume(inFlight).get(10, TimeUnit.SECONDS));
+		verify(awsClient, never()).createStack(any(CreateStackRequest.class));
+		assertEquals("create", inFlight.getOperation());
+	}
+
+	@Test
+	public void prefix_teardown_deletes_the_oldest_matching_stacks() throws Exception {
+		CloudFormation prefixed = prefixedCloudFormation();
+		prefixed.setPrefixTeardown(2, 0);
+		when(awsClient.listStacks(any(ListStacksRequest.class))).thenReturn(new ListStacksResult().withStackSummaries(
+				summary("app-3", 3), summary("other", 0), summary("app-1", 1), summary("app-2", 2)));
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class))).thenReturn(stackDeleteSuccessfulResult());
+
+		assertTrue(prefixed.delete());
+		verify(awsClient).deleteStack(argThat(hasProperty("stackName", equalTo("id-app-1"))));
+		verify(awsClient).deleteStack(argThat(hasProperty("stackName", equalTo("id-app-2"))));
+		verify(awsClient, times(2)).deleteStack(any(DeleteStackRequest.class));
+	}
+
+	@Test
+	public void prefix_teardown_deletes_the_rest_when_one_deletion_fails() throws Exception {
+		CloudFormation prefixed = prefixedCloudFormation();
+		prefixed.setPrefixTeardown(0, 1);
+		long old = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+		when(awsClient.listStacks(any(ListStacksRequest.class))).thenReturn(new ListStacksResult().withStackSummaries(
+				summary("app-1", old), summary("app-2", old + 1), summary("app-new", System.currentTimeMillis())));
+		when(awsClient.deleteStack(argThat(hasProperty("stackName", equalTo("id-app-1")))))
+				.thenThrow(new AmazonServiceException("boom"));
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class))).thenReturn(stackDeleteSuccessfulResult());
+
+		assertFalse(prefixed.delete());
+		verify(awsClient).deleteStack(argThat(hasProperty("stackName", equalTo("id-app-2"))));
+		verify(awsClient, never()).deleteStack(argThat(hasProperty("stackName", equalTo("id-app-new"))));
+	}
+
+	@Test(timeout = 5000)
+	public void prefix_teardown_fails_rather_than_hangs_when_a_deletion_throws_unexpectedly() throws Exception {
+		CloudFormation prefixed = prefixedCloudFormation();
+		prefixed.setPrefixTeardown(2, 0);
+		when(awsClient.listStacks(any(ListStacksRequest.class))).thenReturn(new ListStacksResult().withStackSummaries(
+				summary("app-1", 1), summary("app-2", 2)));
+		when(awsClient.deleteStack(argThat(hasProperty("stackName", equalTo("id-app-1")))))
+				.thenThrow(new IllegalStateException("boom"));
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class))).thenReturn(stackDeleteSuccessfulResult());
+
+		assertFalse(prefixed.delete());
+		verify(awsClient).deleteStack(argThat(hasProperty("stackName", equalTo("id-app-2"))));
+	}
+
+	@Test
+	public void update_with_nothing_to_change_succeeds_with_current_outputs() throws Exception {
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class)))
+				.thenReturn(stackWithOutputResult(StackStatus.CREATE_COMPLETE));
+		AmazonServiceException noUpdates = new AmazonServiceException("No updates are to be performed.");
+		noUpdates.setErrorCode("ValidationError");
+		when(awsClient.updateStack(any(UpdateStackRequest.class))).thenThrow(noUpdates);
+
+		assertTrue(cf.create());
+		assertEquals("https://example.com", cf.getOutputs().get(TEST_STACK + "_Url"));
+		verify(awsClient, times(1)).describeStacks(any(DescribeStacksRequest.class));
+	}
+
+	@Test
+	public void empty_change_set_is_deleted_and_not_executed() throws Exception {
+		cf.setUseChangeSet(true);
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class)))
+				.thenReturn(stackWithOutputResult(StackStatus.CREATE_COMPLETE));
+		when(awsClient.createChangeSet(any(CreateChangeSetRequest.class)))
+				.thenReturn(new CreateChangeSetResult().withId(TEST_CHANGE_SET_ID));
+		when(awsClient.describeChangeSet(any(DescribeChangeSetRequest.class)))
+				.thenReturn(new DescribeChangeSetResult().withStatus(ChangeSetStatus.FAILED)
+						.withStatusReason("The submitted information didn't contain changes. Submit different information to create a change set."));
+
+		assertTrue(cf.create());
+		assertEquals("https://example.com", cf.getOutputs().get(TEST_STACK + "_Url"));
+		verify(awsClient).deleteChangeSet(argThat(hasProperty("changeSetName", equalTo(TEST_CHANGE_SET_ID))));
+		verify(awsClient, never()).executeChangeSet(any(ExecuteChangeSetRequest.class));
+		verify(awsClient, never()).updateStack(any(UpdateStackRequest.class));
+	}
+
+	@Test
+	public void change_set_with_changes_is_executed_and_waited_for() throws Exception {
+		cf.setUseChangeSet(true);
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class)))
+				.thenReturn(stackWithOutputResult(StackStatus.CREATE_COMPLETE),
+						stackWithOutputResult(StackStatus.UPDATE_IN_PROGRESS),
+						stackWithOutputResult(StackStatus.UPDATE_COMPLETE));
+		when(awsClient.createChangeSet(any(CreateChangeSetRequest.class)))
+				.thenReturn(new CreateChangeSetResult().withId(TEST_CHANGE_SET_ID));
+		when(awsClient.describeChangeSet(any(DescribeChangeSetRequest.class)))
+				.thenReturn(new DescribeChangeSetResult().withStatus(ChangeSetStatus.CREATE_IN_PROGRESS),
+						new DescribeChangeSetResult().withStatus(ChangeSetStatus.CREATE_COMPLETE)
+								.withChanges(new Change().withResourceChange(new ResourceChange()
+										.withAction("Modify").withLogicalResourceId("Bucket")
+										.withResourceType("AWS::S3::Bucket").withReplacement("False"))));
+
+		assertTrue(cf.create());
+		verify(awsClient).executeChangeSet(argThat(hasProperty("changeSetName", equalTo(TEST_CHANGE_SET_ID))));
+		verify(awsClient, times(3)).describeStacks(any(DescribeStacksRequest.class));
+	}
+
+	@Test
+	public void update_is_skipped_when_the_stack_has_the_same_fingerprint() throws Exception {
+		DescribeStacksResult deployed = stackWithOutputResult(StackStatus.UPDATE_COMPLETE);
+		deployed.getStacks().get(0).withTags(new Tag().withKey(StackFingerprint.TAG)
+				.withValue(StackFingerprint.of(recipeBody, null)));
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class))).thenReturn(deployed);
+
+		assertTrue(cf.create());
+		assertEquals("https://example.com", cf.getOutputs().get(TEST_STACK + "_Url"));
+		verify(awsClient, never()).updateStack(any(UpdateStackRequest.class));
+		verify(awsClient, never()).describeStackEvents(any(DescribeStackEventsRequest.class));
+	}
+
+	@Test
+	public void a_stack_updated_outside_of_jenkins_since_its_last_deploy_is_updated_again() throws Exception {
+		DescribeStacksResult deployed = stackWithOutputResult(StackStatus.UPDATE_COMPLETE);
+		deployed.getStacks().get(0).withTags(new Tag().withKey(StackFingerprint.TAG)
+				.withValue(StackFingerprint.of(recipeBody, null)));
+		DescribeStacksResult changed = stackWithOutputResult(StackStatus.UPDATE_COMPLETE);
+		changed.getStacks().get(0).withTags(new Tag().withKey(StackFingerprint.TAG).withValue("manual"));
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class))).thenReturn(deployed, changed, deployed);
+
+		assertTrue(cf.create());
+		assertTrue(cf.create());
+		verify(awsClient).updateStack(any(UpdateStackRequest.class));
+	}
+
+	@Test
+	public void update_keeps_other_tags_and_sets_the_fingerprint() throws Exception {
+		DescribeStacksResult existing = stackWithOutputResult(StackStatus.CREATE_COMPLETE);
+		existing.getStacks().get(0).withTags(new Tag().withKey("team").withValue("platform"),
+				new Tag().withKey(StackFingerprint.TAG).withValue("old"));
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class)))
+				.thenReturn(existing, stackWithOutputResult(StackStatus.UPDATE_COMPLETE));
+
+		assertTrue(cf.create());
+		verify(awsClient).updateStack(argThat(hasProperty("tags", equalTo(Arrays.asList(
+				new Tag().withKey("team").withValue("platform"),
+				new Tag().withKey(StackFingerprint.TAG).withValue(StackFingerprint.of(recipeBody, null)))))));
+	}
+
+	@Test
+	public void update_passes_a_template_url_by_url() throws Exception {
+		cf = new CloudFormation(System.out, TEST_STACK, true, "https://example.com/template.json", parameters,
+				-12345, awsAccessKey, awsSecretKey, true, new EnvVars(), false) {
+			@Override
+			protected AmazonCloudFormation getAWSClient() {
+				return awsClient;
+			}
+		};
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class)))
+				.thenReturn(stackWithOutputResult(StackStatus.CREATE_COMPLETE),
+						stackWithOutputResult(StackStatus.UPDATE_COMPLETE));
+
+		assertTrue(cf.create());
+		verify(awsClient).updateStack(argThat(allOf(
+				hasProperty("templateURL", equalTo("https://example.com/template.json")),
+				hasProperty("templateBody", nullValue()))));
+	}
+
+	private CloudFormation prefixedCloudFormation() {
+		return new CloudFormation(System.out, "app-", false, recipeBody, parameters,
+				-12345, awsAccessKey, awsSecretKey, true, new EnvVars(), true) {
+			@Override
+			protected AmazonCloudFormation getAWSClient() {
+				return awsClient;
+			}
+		};
+	}
+
+	private StackSummary summary(String name, long created) {
+		return new StackSummary().withStackId("id-" + name).withStackName(name)
+				.withStackStatus(StackStatus.CREATE_COMPLETE.name()).withCreationTime(new Date(created));
+	}
+
+	private DescribeStacksResult stackWithOutputResult(StackStatus status) {
+		return new DescribeStacksResult().withStacks(new Stack()
+				.withStackStatus(status.name()).withStackName(TEST_STACK)
+				.withStackId(TEST_STACK_ID)
+				.withOutputs(new Output().withOutputKey("Url").withOutputValue("https://example.com")));
+	}
+
 	private DescribeStacksResult stackDeleteFailedResult() {
 		return describeStacksResultWithStatus(StackStatus.DELETE_FAILED);
 	}
@@ -106,6 +380,10 @@ public class CloudFormationTest {
 		return new DescribeStacksResult(); // A result with no stacks in it.
 	}
 
+	private DescribeStacksResult stackDeletedResult() {
+		return describeStacksResultWithStatus(StackStatus.DELETE_COMPLETE);
+	}
+
 	private DescribeStacksResult stackDeletingResult() {
 		return describeStacksResultWithStatus(StackStatus.DELETE_IN_PROGRESS);
 	}
@@ -129,7 +407,8 @@ public class CloudFormationTest {
 	private DescribeStacksResult describeStacksResultWithStatus(
 			StackStatus status) {
 		return new DescribeStacksResult().withStacks(new Stack()
-				.withStackStatus(status.name()).withStackName(TEST_STACK));
+				.withStackStatus(status.name()).withStackName(TEST_STACK)
+				.withStackId(TEST_STACK_ID));
 	}
 
 }
@@ -0,0 +1,33 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PollIntervalTest {
+
+	private static final long MINUTE = 60000;
+
+	@Test
+	public void long_operations_are_checked_rarely_until_close_to_the_expected_end() {
+		long expected = 45 * MINUTE;
+
+		assertEquals(PollInterval.MAX_MS, PollInterval.next(0, expected, 0));
+		assertEquals(PollInterval.MIN_MS, PollInterval.next(expected - 10000, expected, 0));
+	}
+
+	@Test
+	public void without_history_checks_start_frequent_and_spread_out() {
+		assertEquals(PollInterval.MIN_MS, PollInterval.next(0, -1, 0));
+		assertEquals(PollInterval.OVERDUE_MAX_MS, PollInterval.next(20 * MINUTE, -1, 0));
+	}
+
+	@Test
+	public void throttling_backs_off_even_near_the_expected_end() {
+		long expected = 2 * MINUTE;
+
+		assertTrue(PollInterval.next(expected, expected, 3) >= 40000);
+	}
+
+}
@@ -0,0 +1,99 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import hudson.AbortException;
+import hudson.EnvVars;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import hudson.util.Secret;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StackDependencyGraphTest {
+
+	private List<StackBean> stacks;
+	private EnvVars env;
+
+	@Before
+	public void setup() {
+		stacks = new ArrayList<StackBean>();
+		env = new EnvVars();
+	}
+
+	@Test
+	public void stacks_without_output_references_are_independent() throws Exception {
+		given_stack("network", "Cidr=10.0.0.0/16");
+		given_stack("queue", "");
+
+		StackDependencyGraph graph = StackDependencyGraph.fromOutputReferences(stacks, env);
+
+		assertTrue(graph.getDependencies(0).isEmpty());
+		assertTrue(graph.getDependencies(1).isEmpty());
+	}
+
+	@Test
+	public void output_references_become_dependencies() throws Exception {
+		given_stack("network", "Cidr=10.0.0.0/16");
+		given_stack("database", "VpcId=${network_VpcId}");
+		given_stack("app", "VpcId=$network_VpcId, DbUrl=${database_Url}");
+
+		StackDependencyGraph graph = StackDependencyGraph.fromOutputReferences(stacks, env);
+
+		assertEquals(new HashSet<Integer>(Arrays.asList(0)), graph.getDependencies(1));
+		assertEquals(new HashSet<Integer>(Arrays.asList(0, 1)), graph.getDependencies(2));
+		assertEquals(new HashSet<Integer>(Arrays.asList(1, 2)), graph.getDependents(0));
+	}
+
+	@Test
+	public void stack_names_are_expanded_and_the_longest_match_wins() throws Exception {
+		env.put("BUILD_NUMBER", "7");
+		given_stack("app$BUILD_NUMBER", "");
+		given_stack("app${BUILD_NUMBER}_db", "");
+		given_stack("web", "DbUrl=${app7_db_Url}");
+
+		StackDependencyGraph graph = StackDependencyGraph.fromOutputReferences(stacks, env);
+
+		assertEquals(new HashSet<Integer>(Arrays.asList(1)), graph.getDependencies(2));
+	}
+
+	@Test(expected = AbortException.class)
+	public void cyclic_references_are_rejected() throws Exception {
+		given_stack("a", "Value=${b_Out}");
+		given_stack("b", "Value=${a_Out}");
+
+		StackDependencyGraph.fromOutputReferences(stacks, env);
+	}
+
+	@Test
+	public void only_references_to_earlier_stacks_count_for_stacks_created_in_order() throws Exception {
+		given_stack("a", "Value=${b_Out}");
+		given_stack("b", "Value=${a_Out}");
+		given_stack("c", "");
+
+		StackDependencyGraph graph = StackDependencyGraph.fromEarlierOutputReferences(stacks, env);
+
+		assertTrue(graph.getDependencies(0).isEmpty());
+		assertEquals(new HashSet<Integer>(Arrays.asList(0)), graph.getDependencies(1));
+		assertTrue(graph.getDependencies(2).isEmpty());
+	}
+
+	@Test
+	public void sequential_graph_chains_stacks_in_order() {
+		StackDependencyGraph graph = StackDependencyGraph.sequential(3);
+
+		assertTrue(graph.getDependencies(0).isEmpty());
+		assertEquals(new HashSet<Integer>(Arrays.asList(1)), graph.getDependencies(2));
+		assertEquals(new HashSet<Integer>(Arrays.asList(2)), graph.getDependents(1));
+	}
+
+	private void given_stack(String name, String parameters) {
+		stacks.add(new StackBean(name, "description", "{resources: }", parameters, 0,
+				"accessKey", Secret.fromString("secretKey"), true, null));
+	}
+
+}
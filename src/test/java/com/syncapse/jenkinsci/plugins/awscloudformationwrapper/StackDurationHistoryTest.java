@@ -0,0 +1,96 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StackDurationHistoryTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void statistics_survive_a_restart() throws Exception {
+		File file = new File(folder.getRoot(), StackDurationHistory.FILE_NAME);
+		StackDurationHistory history = new StackDurationHistory(file);
+		StackDurationHistory.Key key = StackDurationHistory.key("create", "app", "{template}");
+		for (int i = 1; i <= 20; i++) {
+			Map<String, Long> resources = new HashMap<String, Long>();
+			resources.put("Database", i * 1000L);
+			history.record(key, i * 10000L, resources);
+		}
+		history.flush();
+
+		StackDurationHistory.Stats stats = new StackDurationHistory(file).getStats(key);
+
+		assertEquals(20, stats.getCount());
+		assertEquals(105000, stats.getMean());
+		assertEquals(100000, stats.getP50());
+		assertEquals(190000, stats.getP95());
+		assertEquals(Long.valueOf(10500), stats.getResourceMeans().get("Database"));
+	}
+
+	@Test
+	public void a_run_counts_before_it_is_saved() throws Exception {
+		File file = new File(folder.getRoot(), StackDurationHistory.FILE_NAME);
+		StackDurationHistory history = new StackDurationHistory(file);
+		StackDurationHistory.Key key = StackDurationHistory.key("create", "app", null);
+
+		history.record(key, 1000, Collections.<String, Long>emptyMap());
+
+		assertEquals(1000, history.getExpectedMillis(key));
+		history.flush();
+		assertEquals(1000, new StackDurationHistory(file).getExpectedMillis(key));
+	}
+
+	@Test
+	public void a_new_template_falls_back_to_the_runs_of_the_stack() {
+		StackDurationHistory history = new StackDurationHistory(null);
+		history.record(StackDurationHistory.key("update", "app", "v1"), 60000, Collections.<String, Long>emptyMap());
+
+		assertEquals(60000, history.getExpectedMillis(StackDurationHistory.key("update", "app", "v2")));
+		assertNull(history.getStats(StackDurationHistory.key("delete", "app", null)));
+	}
+
+	@Test
+	public void the_file_is_compacted_to_the_kept_runs() throws Exception {
+		File file = new File(folder.getRoot(), StackDurationHistory.FILE_NAME);
+		StackDurationHistory history = new StackDurationHistory(file);
+		StackDurationHistory.Key key = StackDurationHistory.key("delete", "app", null);
+		int runs = 2 * StackDurationHistory.SAMPLES + StackDurationHistory.KEYS + 10;
+		for (int i = 0; i < runs; i++) {
+			history.record(key, 1000, Collections.<String, Long>emptyMap());
+		}
+		history.flush();
+
+		assertTrue(Files.readAllLines(file.toPath()).size() < runs);
+		assertEquals(StackDurationHistory.SAMPLES, new StackDurationHistory(file).getStats(key).getCount());
+	}
+
+	@Test
+	public void the_least_recently_recorded_operation_is_dropped_even_if_read_since() {
+		StackDurationHistory history = new StackDurationHistory(null);
+		StackDurationHistory.Key first = StackDurationHistory.key("create", "stack-0", null);
+		for (int i = 0; i < StackDurationHistory.KEYS; i++) {
+			history.record(StackDurationHistory.key("create", "stack-" + i, null), 1000, Collections.<String, Long>emptyMap());
+		}
+		history.record(first, 1000, Collections.<String, Long>emptyMap());
+		history.getStats(StackDurationHistory.key("create", "stack-1", null));
+
+		history.record(StackDurationHistory.key("create", "new", null), 1000, Collections.<String, Long>emptyMap());
+
+		assertEquals(2, history.getStats(first).getCount());
+		assertNull(history.getStats(StackDurationHistory.key("create", "stack-1", null)));
+	}
+
+}
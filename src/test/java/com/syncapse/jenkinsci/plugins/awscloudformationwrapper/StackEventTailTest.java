@@ -0,0 +1,110 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.DescribeStackEventsRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStackEventsResult;
+import com.amazonaws.services.cloudformation.model.StackEvent;
+
+@RunWith(MockitoJUnitRunner.class)
+public class StackEventTailTest {
+
+	private StackEventTail tail; // SUT
+
+	@Mock
+	private AmazonCloudFormation awsClient;
+
+	private ByteArrayOutputStream console = new ByteArrayOutputStream();
+
+	@Before
+	public void setup() {
+		tail = new StackEventTail(new PrintStream(console, true), "arn:stack");
+	}
+
+	@Test
+	public void new_events_are_printed_oldest_first_across_pages() {
+		when(awsClient.describeStackEvents(argThat(page(null))))
+				.thenReturn(events("token", "e4", "e3"));
+		when(awsClient.describeStackEvents(argThat(page("token"))))
+				.thenReturn(events(null, "e2", "e1"));
+
+		tail.printNewEvents(awsClient, true);
+
+		assertEquals(lines("e1", "e2", "e3", "e4"), console.toString());
+	}
+
+	@Test
+	public void only_events_after_the_mark_are_read_and_printed() {
+		when(awsClient.describeStackEvents(argThat(page(null))))
+				.thenReturn(events("token", "e2", "e1"), events("token", "e4", "e3", "e2"), events("token", "e4", "e3"));
+
+		tail.mark(awsClient);
+		tail.printNewEvents(awsClient, true);
+		tail.printNewEvents(awsClient, true);
+
+		assertEquals(lines("e3", "e4"), console.toString());
+		verify(awsClient, times(0)).describeStackEvents(argThat(page("token")));
+	}
+
+	@Test
+	public void reads_are_throttled_unless_forced() {
+		when(awsClient.describeStackEvents(any(DescribeStackEventsRequest.class)))
+				.thenReturn(events(null, "e1"));
+
+		tail.printNewEvents(awsClient, false);
+		tail.printNewEvents(awsClient, false);
+
+		verify(awsClient, times(1)).describeStackEvents(any(DescribeStackEventsRequest.class));
+	}
+
+	private DescribeStackEventsResult events(String nextToken, String... ids) {
+		DescribeStackEventsResult result = new DescribeStackEventsResult().withNextToken(nextToken);
+		for (String id : ids) {
+			result.withStackEvents(new StackEvent().withEventId(id).withResourceType("AWS::S3::Bucket")
+					.withResourceStatus("CREATE_COMPLETE"));
+		}
+		return result;
+	}
+
+	private String lines(String... ids) {
+		StringBuilder result = new StringBuilder();
+		for (String id : ids) {
+			result.append(id).append(" - AWS::S3::Bucket - CREATE_COMPLETE - null").append(System.lineSeparator());
+		}
+		return result.toString();
+	}
+
+	private BaseMatcher<DescribeStackEventsRequest> page(final String nextToken) {
+		return new BaseMatcher<DescribeStackEventsRequest>() {
+			public boolean matches(Object item) {
+				if (!(item instanceof DescribeStackEventsRequest)) {
+					return false;
+				}
+				String token = ((DescribeStackEventsRequest) item).getNextToken();
+				return nextToken == null ? token == null : nextToken.equals(token);
+			}
+
+			public void describeTo(Description description) {
+				description.appendText("page " + nextToken);
+			}
+		};
+	}
+
+}
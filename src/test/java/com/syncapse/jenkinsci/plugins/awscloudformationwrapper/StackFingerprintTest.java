@@ -0,0 +1,27 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.amazonaws.services.cloudformation.model.Parameter;
+
+public class StackFingerprintTest {
+
+	private static final Parameter SIZE = new Parameter().withParameterKey("Size").withParameterValue("small");
+	private static final Parameter ZONE = new Parameter().withParameterKey("Zone").withParameterValue("a");
+
+	@Test
+	public void parameter_order_does_not_matter_but_values_do() {
+		String fingerprint = StackFingerprint.of("{}", Arrays.asList(SIZE, ZONE));
+
+		assertEquals(fingerprint, StackFingerprint.of("{}", Arrays.asList(ZONE, SIZE)));
+		assertNotEquals(fingerprint, StackFingerprint.of("{}", Arrays.asList(SIZE,
+				new Parameter().withParameterKey("Zone").withParameterValue("b"))));
+		assertNotEquals(fingerprint, StackFingerprint.of("{ }", Arrays.asList(SIZE, ZONE)));
+	}
+
+}
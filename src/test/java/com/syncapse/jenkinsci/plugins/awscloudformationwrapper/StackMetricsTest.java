@@ -0,0 +1,86 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+import com.codahale.metrics.MetricRegistry;
+
+@RunWith(MockitoJUnitRunner.class)
+public class StackMetricsTest {
+
+	private StackMetrics metrics = new StackMetrics(new MetricRegistry()); // SUT
+
+	@Mock
+	private AmazonCloudFormation awsClient;
+
+	@Test
+	public void calls_are_timed_and_throttles_counted_per_region() {
+		AmazonServiceException throttled = new AmazonServiceException("Rate exceeded");
+		throttled.setErrorCode("Throttling");
+		when(awsClient.describeStacks(any(DescribeStacksRequest.class)))
+				.thenReturn(new DescribeStacksResult())
+				.thenThrow(throttled);
+		AmazonCloudFormation instrumented = metrics.instrument(awsClient, Region.EU_Ireland);
+
+		instrumented.describeStacks(new DescribeStacksRequest());
+		try {
+			instrumented.describeStacks(new DescribeStacksRequest());
+			fail("expected the throttling error");
+		} catch (AmazonServiceException e) {
+			// expected
+		}
+
+		MetricRegistry registry = metrics.getRegistry();
+		assertEquals(2, registry.timer("cloudformation.api.eu-west-1.describeStacks").getCount());
+		assertEquals(1, registry.counter("cloudformation.api.eu-west-1.describeStacks.throttles").getCount());
+		assertEquals(0, registry.counter("cloudformation.api.eu-west-1.describeStacks.errors").getCount());
+	}
+
+	@Test
+	public void a_client_instrumented_before_the_metrics_plugin_started_publishes_once_it_has() {
+		final MetricRegistry started = new MetricRegistry();
+		final AtomicBoolean available = new AtomicBoolean();
+		StackMetrics metrics = new StackMetrics(new Supplier<MetricRegistry>() {
+			public MetricRegistry get() {
+				if (!available.get()) {
+					throw new AssertionError("Metrics plugin instance is missing");
+				}
+				return started;
+			}
+		});
+		AmazonCloudFormation instrumented = metrics.instrument(awsClient, Region.EU_Ireland);
+		instrumented.describeStacks(new DescribeStacksRequest());
+
+		available.set(true);
+		instrumented.describeStacks(new DescribeStacksRequest());
+
+		assertEquals(1, started.timer("cloudformation.api.eu-west-1.describeStacks").getCount());
+	}
+
+	@Test
+	public void stack_operations_are_recorded_by_kind() {
+		metrics.stackSettled(Region.EU_Ireland, "create", 120000);
+		metrics.stackSettled(Region.EU_Ireland, "delete", 60000);
+		metrics.stackPolled(Region.EU_Ireland, 7);
+
+		MetricRegistry registry = metrics.getRegistry();
+		assertEquals(1, registry.timer("cloudformation.stack.eu-west-1.create").getCount());
+		assertEquals(1, registry.timer("cloudformation.stack.eu-west-1.delete").getCount());
+		assertEquals(7, registry.histogram("cloudformation.stack.eu-west-1.polls").getSnapshot().getMax());
+	}
+
+}
@@ -0,0 +1,224 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import hudson.EnvVars;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.TestName;
+
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.CreateStackRequest;
+import com.amazonaws.services.cloudformation.model.Stack;
+
+public class StackPoolTest {
+
+	@Rule
+	public TestName test = new TestName();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private CloudFormationSimulator simulator = new CloudFormationSimulator();
+
+	private StackPool pool = StackPool.get(); // SUT
+
+	@Before
+	public void setup() {
+		simulator.setDuration("create", 50);
+		simulator.setDuration("delete", 50);
+		simulator.setDuration("rollback", 50);
+		simulator.setLatency("describeStacks", 5);
+		simulator.setOutputs(Collections.singletonMap("Url", "http://app"));
+	}
+
+	@Test
+	public void a_build_leases_a_warm_stack_and_gets_its_outputs() throws Exception {
+		CloudFormation first = cloudFormation(1, 2);
+		assertTrue(first.create());
+		assertEquals("http://app", first.getOutputs().get("app_Url"));
+		assertTrue(first.getAutoDeleteStack());
+		awaitReady(first, 1);
+		assertEquals(2, simulator.getCalls("createStack"));
+
+		// The next build doesn't wait for a stack to be created.
+		CloudFormation second = cloudFormation(1, 2);
+		assertTrue(second.createAsync().isDone());
+		assertEquals("http://app", second.getOutputs().get("app_Url"));
+		assertNull(simulator.getStack("app"));
+	}
+
+	@Test
+	public void a_stack_handed_back_is_deleted_and_replaced() throws Exception {
+		CloudFormation cf = cloudFormation(1, 1);
+		assertTrue(cf.create());
+		final String leased = cf.getStackOutputs().get("StackName");
+		assertNotNull(simulator.getStack(leased));
+
+		assertTrue(cf.delete());
+		await(new Callable<Boolean>() {
+			public Boolean call() {
+				return simulator.getStack(leased) == null;
+			}
+		});
+		awaitReady(cf, 1);
+		assertEquals(2, simulator.getCalls("createStack"));
+		assertEquals(1, simulator.getCalls("deleteStack"));
+	}
+
+	@Test
+	public void builds_wait_for_a_stack_when_the_pool_is_full() throws Exception {
+		CloudFormation first = cloudFormation(0, 1);
+		assertTrue(first.create());
+
+		CloudFormation second = cloudFormation(0, 1);
+		CompletableFuture<Boolean> waiting = second.createAsync();
+		Thread.sleep(200);
+		assertFalse(waiting.isDone());
+		assertEquals(1, simulator.getCalls("createStack"));
+
+		assertTrue(first.delete());
+		assertTrue(StackWaiter.await(waiting, null));
+		assertEquals(2, simulator.getCalls("createStack"));
+	}
+
+	@Test
+	public void a_failed_stack_fails_the_build_waiting_for_it() throws Exception {
+		simulator.setFailureRate(1);
+		CloudFormation cf = cloudFormation(1, 1);
+		assertFalse(cf.create());
+		assertFalse(cf.getAutoDeleteStack());
+		simulator.setFailureRate(0);
+
+		// The pool doesn't keep on creating stacks that fail.
+		Thread.sleep(200);
+		assertEquals(1, simulator.getCalls("createStack"));
+		assertEquals(0, pool.getReady(cf));
+	}
+
+	@Test
+	public void idle_stacks_are_deleted() throws Exception {
+		CloudFormation cf = cloudFormation(1, 1);
+		pool.lease(cf, 1, 1, 1).get().release();
+		awaitReady(cf, 1);
+		Thread.sleep(10);
+
+		pool.expireIdle();
+		assertEquals(0, pool.getReady(cf));
+		await(new Callable<Boolean>() {
+			public Boolean call() {
+				for (Stack stack : simulator.describeStacks().getStacks()) {
+					if (!stack.getStackStatus().startsWith("DELETE")) {
+						return false;
+					}
+				}
+				return true;
+			}
+		});
+		assertEquals(2, simulator.getCalls("deleteStack"));
+	}
+
+	@Test
+	public void after_a_restart_warm_stacks_are_leased_and_stacks_leased_before_are_deleted() throws Exception {
+		File file = new File(folder.getRoot(), StackPool.FILE_NAME);
+		CloudFormation cf = cloudFormation(1, 2);
+		StackPool before = new StackPool(file);
+		final String leased = before.lease(cf, 1, 2, 0).get().getStackName();
+		await(new Callable<Boolean>() {
+			public Boolean call() {
+				return before.getReady(cf) == 1;
+			}
+		});
+		String warm = simulator.describeStacks().getStacks().get(0).getStackName();
+		if (warm.equals(leased)) {
+			warm = simulator.describeStacks().getStacks().get(1).getStackName();
+		}
+
+		StackPool after = new StackPool(file);
+		assertEquals(warm, after.lease(cf, 1, 2, 0).get().getStackName());
+		await(new Callable<Boolean>() {
+			public Boolean call() {
+				return simulator.getStack(leased) == null;
+			}
+		});
+		assertEquals(3, simulator.getCalls("createStack"));
+	}
+
+	@Test
+	public void after_a_restart_pooled_stacks_of_another_template_are_deleted() throws Exception {
+		CloudFormation cf = cloudFormation(0, 1);
+		String leased = new StackPool(null).lease(cf, 0, 1, 0).get().getStackName();
+		final String stray = leased.substring(0, leased.lastIndexOf('-')) + "-stray";
+		simulator.createStack(new CreateStackRequest().withStackName(stray).withTemplateBody("{}"));
+		Thread.sleep(100);
+
+		String lease = new StackPool(null).lease(cf, 0, 1, 0).get().getStackName();
+		assertEquals(leased, lease);
+		await(new Callable<Boolean>() {
+			public Boolean call() {
+				return simulator.getStack(stray) == null;
+			}
+		});
+		assertEquals(2, simulator.getCalls("createStack"));
+	}
+
+	@Test
+	public void after_a_restart_warm_stacks_of_a_template_url_are_leased() throws Exception {
+		CloudFormation cf = cloudFormation(0, 1, true);
+		String warm = new StackPool(null).lease(cf, 0, 1, 0).get().getStackName();
+
+		assertEquals(warm, new StackPool(null).lease(cf, 0, 1, 0).get().getStackName());
+		assertEquals(1, simulator.getCalls("createStack"));
+		assertEquals(0, simulator.getCalls("deleteStack"));
+	}
+
+	private void awaitReady(final CloudFormation cf, final int ready) throws Exception {
+		await(new Callable<Boolean>() {
+			public Boolean call() {
+				return pool.getReady(cf) == ready;
+			}
+		});
+	}
+
+	private static void await(Callable<Boolean> condition) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.call()) {
+			assertTrue("timed out", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Each test gets a pool of its own, by using a template of its own.
+	 */
+	private CloudFormation cloudFormation(int minSize, int maxSize) {
+		return cloudFormation(minSize, maxSize, false);
+	}
+
+	private CloudFormation cloudFormation(int minSize, int maxSize, boolean isRecipeURL) {
+		String recipe = isRecipeURL ? "https://templates/" + test.getMethodName() + ".json" : test.getMethodName();
+		CloudFormation cf = new CloudFormation(System.out, "app", isRecipeURL, recipe,
+				new HashMap<String, String>(), -12345, "accessKey", "secretKey", false, new EnvVars(), false) {
+			@Override
+			protected AmazonCloudFormation getAWSClient() {
+				return simulator;
+			}
+		};
+		cf.setPool(minSize, maxSize, 0);
+		return cf;
+	}
+
+}
@@ -0,0 +1,153 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.ListStacksRequest;
+import com.amazonaws.services.cloudformation.model.ListStacksResult;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.StackStatus;
+import com.amazonaws.services.cloudformation.model.StackSummary;
+
+@RunWith(MockitoJUnitRunner.class)
+public class StackStatusPollerTest {
+
+	private static final int STACKS = 3;
+
+	@Mock
+	private AmazonCloudFormation awsClient;
+
+	private final AtomicInteger sweeps = new AtomicInteger();
+	private final AtomicInteger describesAfterFirstSweep = new AtomicInteger();
+	private final CountDownLatch allWatched = new CountDownLatch(1);
+
+	@Before
+	public void setup() {
+		when(awsClient.listStacks(any(ListStacksRequest.class))).thenAnswer(new Answer<ListStacksResult>() {
+			public ListStacksResult answer(InvocationOnMock invocation) {
+				ListStacksResult result = new ListStacksResult();
+				if (sweeps.incrementAndGet() <= 2) {
+					for (int i = 0; i < STACKS; i++) {
+						result.withStackSummaries(new StackSummary().withStackName("stack" + i)
+								.withStackId("arn:stack" + i).withStackStatus(StackStatus.CREATE_IN_PROGRESS));
+					}
+				}
+				return result;
+			}
+		});
+	}
+
+	@Test
+	public void many_stacks_on_one_client_are_refreshed_with_one_sweep() throws Exception {
+		List<CompletableFuture<Stack>> waiting = new ArrayList<CompletableFuture<Stack>>();
+		for (int i = 0; i < STACKS; i++) {
+			waiting.add(waiterFor("stack" + i).start());
+		}
+		allWatched.countDown();
+
+		for (CompletableFuture<Stack> future : waiting) {
+			assertEquals("CREATE_COMPLETE", future.get(10, TimeUnit.SECONDS).getStackStatus());
+		}
+		assertTrue("stacks were swept", sweeps.get() >= 3);
+		// Once sweeping starts, only stacks that have settled are described.
+		assertEquals(STACKS, describesAfterFirstSweep.get());
+	}
+
+	@Test
+	public void a_transient_error_only_delays_the_next_poll() throws Exception {
+		final AtomicInteger polls = new AtomicInteger();
+		StackWaiter waiter = new StackWaiter(System.out, "flaky", "creation", StackStatus.CREATE_IN_PROGRESS, 0) {
+			@Override
+			protected AmazonCloudFormation getClient() {
+				return awsClient;
+			}
+
+			@Override
+			protected Stack poll() {
+				if (polls.incrementAndGet() == 1) {
+					AmazonServiceException e = new AmazonServiceException("Internal failure");
+					e.setErrorCode("InternalFailure");
+					e.setStatusCode(500);
+					throw e;
+				}
+				return new Stack().withStackName("flaky").withStackStatus(StackStatus.CREATE_COMPLETE);
+			}
+
+			@Override
+			protected StackStatus getStatus(Stack stack) {
+				return StackStatus.fromValue(stack.getStackStatus());
+			}
+
+			@Override
+			protected boolean isInProgress(StackStatus status) {
+				return status == StackStatus.CREATE_IN_PROGRESS;
+			}
+
+			@Override
+			protected long getWaitBetweenAttempts(int throttled) {
+				return 20;
+			}
+		};
+
+		assertEquals("CREATE_COMPLETE", waiter.start().get(10, TimeUnit.SECONDS).getStackStatus());
+		assertEquals(2, polls.get());
+	}
+
+	private StackWaiter waiterFor(final String stackName) {
+		return new StackWaiter(System.out, stackName, "creation", StackStatus.CREATE_IN_PROGRESS, 0) {
+			@Override
+			protected AmazonCloudFormation getClient() {
+				return awsClient;
+			}
+
+			@Override
+			protected Stack poll() {
+				try {
+					allWatched.await();
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+				if (sweeps.get() > 0) {
+					describesAfterFirstSweep.incrementAndGet();
+				}
+				StackStatus status = sweeps.get() > 2 ? StackStatus.CREATE_COMPLETE : StackStatus.CREATE_IN_PROGRESS;
+				return new Stack().withStackName(stackName).withStackStatus(status);
+			}
+
+			@Override
+			protected StackStatus getStatus(Stack stack) {
+				return StackStatus.fromValue(stack.getStackStatus());
+			}
+
+			@Override
+			protected boolean isInProgress(StackStatus status) {
+				return status == StackStatus.CREATE_IN_PROGRESS;
+			}
+
+			@Override
+			protected long getWaitBetweenAttempts(int throttled) {
+				return 20;
+			}
+		};
+	}
+
+}
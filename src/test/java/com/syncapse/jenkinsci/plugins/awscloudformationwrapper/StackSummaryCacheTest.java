@@ -0,0 +1,143 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.ListStacksRequest;
+import com.amazonaws.services.cloudformation.model.ListStacksResult;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.StackSummary;
+
+@RunWith(MockitoJUnitRunner.class)
+public class StackSummaryCacheTest {
+
+	@Mock
+	private AmazonCloudFormation awsClient;
+
+	@Test
+	public void stacks_are_listed_once_within_the_ttl() {
+		when(awsClient.listStacks(any(ListStacksRequest.class)))
+				.thenReturn(page(summary("app-1", 1)));
+		StackSummaryCache cache = new StackSummaryCache(60000);
+
+		cache.getRunningStacks(awsClient);
+		cache.getRunningStacks(awsClient);
+
+		verify(awsClient, times(1)).listStacks(any(ListStacksRequest.class));
+	}
+
+	@Test
+	public void lookups_are_not_affected_by_later_changes() {
+		when(awsClient.listStacks(any(ListStacksRequest.class)))
+				.thenReturn(page(summary("app-1", 1), summary("app-2", 2)));
+		StackSummaryCache cache = new StackSummaryCache(60000);
+		List<StackSummary> stacks = cache.getRunningStacks(awsClient);
+
+		cache.stackDeleted(awsClient, "app-1");
+
+		assertEquals(names("app-1", "app-2"), names(stacks));
+		assertEquals(names("app-2"), names(cache.getRunningStacks(awsClient)));
+	}
+
+	@Test
+	public void stacks_are_listed_again_after_the_ttl() {
+		when(awsClient.listStacks(any(ListStacksRequest.class)))
+				.thenReturn(page(summary("app-1", 1)), page(summary("app-2", 2)));
+		StackSummaryCache cache = new StackSummaryCache(-1);
+
+		cache.getRunningStacks(awsClient);
+
+		assertEquals(names("app-2"), names(cache.getRunningStacks(awsClient)));
+	}
+
+	@Test
+	public void own_deploys_and_deletes_are_applied_without_listing() {
+		when(awsClient.listStacks(any(ListStacksRequest.class)))
+				.thenReturn(page(summary("app-1", 1), summary("app-2", 2)));
+		StackSummaryCache cache = new StackSummaryCache(60000);
+		cache.getRunningStacks(awsClient);
+
+		cache.stackDeleted(awsClient, "id-app-1");
+		cache.stackDeployed(awsClient, new Stack().withStackId("id-app-3").withStackName("app-3")
+				.withStackStatus("CREATE_COMPLETE").withCreationTime(new Date(3)));
+		cache.stackDeployed(awsClient, new Stack().withStackId("id-app-4").withStackName("app-4")
+				.withStackStatus("CREATE_IN_PROGRESS").withCreationTime(new Date(4)));
+
+		assertEquals(names("app-2", "app-3"), names(cache.getRunningStacks(awsClient)));
+		assertEquals("app-2", StackSummaryIterator.oldestWithPrefix(
+				cache.getRunningStacks(awsClient).iterator(), "app-").getStackName());
+		verify(awsClient, times(1)).listStacks(any(ListStacksRequest.class));
+	}
+
+	@Test(timeout = 5000)
+	public void deletes_during_a_listing_do_not_wait_for_it_and_are_applied_to_it() throws Exception {
+		final CountDownLatch listing = new CountDownLatch(1);
+		final CountDownLatch deleted = new CountDownLatch(1);
+		when(awsClient.listStacks(any(ListStacksRequest.class))).thenAnswer(new Answer<ListStacksResult>() {
+			public ListStacksResult answer(InvocationOnMock invocation) throws Exception {
+				listing.countDown();
+				deleted.await();
+				return page(summary("app-1", 1), summary("app-2", 2));
+			}
+		});
+		final StackSummaryCache cache = new StackSummaryCache(60000);
+		FutureTask<List<StackSummary>> lookup = new FutureTask<List<StackSummary>>(new Callable<List<StackSummary>>() {
+			public List<StackSummary> call() {
+				return cache.getRunningStacks(awsClient);
+			}
+		});
+		new Thread(lookup).start();
+
+		listing.await();
+		cache.stackDeleted(awsClient, "id-app-1");
+		deleted.countDown();
+
+		assertEquals(names("app-2"), names(lookup.get()));
+		assertEquals(names("app-2"), names(cache.getRunningStacks(awsClient)));
+		verify(awsClient, times(1)).listStacks(any(ListStacksRequest.class));
+	}
+
+	private ListStacksResult page(StackSummary... summaries) {
+		return new ListStacksResult().withStackSummaries(summaries);
+	}
+
+	private StackSummary summary(String name, long created) {
+		return new StackSummary().withStackId("id-" + name).withStackName(name)
+				.withStackStatus("CREATE_COMPLETE").withCreationTime(new Date(created));
+	}
+
+	private List<String> names(List<StackSummary> summaries) {
+		List<String> names = new ArrayList<String>();
+		for (StackSummary summary : summaries) {
+			names.add(summary.getStackName());
+		}
+		return names;
+	}
+
+	private List<String> names(String... names) {
+		List<String> result = new ArrayList<String>();
+		for (String name : names) {
+			result.add(name);
+		}
+		return result;
+	}
+
+}
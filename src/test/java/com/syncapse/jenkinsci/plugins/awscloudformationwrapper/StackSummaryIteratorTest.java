@@ -0,0 +1,107 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.ListStacksRequest;
+import com.amazonaws.services.cloudformation.model.ListStacksResult;
+import com.amazonaws.services.cloudformation.model.StackSummary;
+
+@RunWith(MockitoJUnitRunner.class)
+public class StackSummaryIteratorTest {
+
+	@Mock
+	private AmazonCloudFormation awsClient;
+
+	@Test
+	public void pages_are_only_fetched_as_needed() {
+		when(awsClient.listStacks(any(ListStacksRequest.class)))
+				.thenReturn(page("token", summary("app-1", 1)), page(null, summary("app-2", 2)));
+
+		StackSummaryIterator stacks = new StackSummaryIterator(awsClient, CloudFormation.RUNNING_STATUSES);
+
+		assertEquals("app-1", stacks.next().getStackName());
+		verify(awsClient, times(1)).listStacks(any(ListStacksRequest.class));
+		assertEquals("app-2", stacks.next().getStackName());
+		assertFalse(stacks.hasNext());
+		verify(awsClient, times(2)).listStacks(any(ListStacksRequest.class));
+	}
+
+	@Test
+	public void oldest_match_is_found_across_pages_even_when_it_comes_first() {
+		when(awsClient.listStacks(any(ListStacksRequest.class)))
+				.thenReturn(page("token", summary("app-1", 1), summary("other", 0)),
+						page(null, summary("app-3", 3), summary("app-2", 2)));
+
+		StackSummary oldest = StackSummaryIterator.oldestWithPrefix(
+				new StackSummaryIterator(awsClient, CloudFormation.RUNNING_STATUSES), "app-");
+
+		assertEquals("app-1", oldest.getStackName());
+	}
+
+	@Test
+	public void a_single_match_is_returned_by_its_own_name() {
+		when(awsClient.listStacks(any(ListStacksRequest.class)))
+				.thenReturn(page(null, summary("app-7", 7), summary("other", 0)));
+
+		assertEquals("app-7", StackSummaryIterator.oldestWithPrefix(
+				new StackSummaryIterator(awsClient, CloudFormation.RUNNING_STATUSES), "app-").getStackName());
+		assertNull(StackSummaryIterator.oldestWithPrefix(
+				new StackSummaryIterator(awsClient, CloudFormation.RUNNING_STATUSES), "none-"));
+	}
+
+	@Test
+	public void several_oldest_matches_are_returned_oldest_first_within_the_limits() {
+		when(awsClient.listStacks(any(ListStacksRequest.class)))
+				.thenReturn(page(null, summary("app-3", 3), summary("other", 0), summary("app-1", 1), summary("app-2", 2)));
+
+		List<StackSummary> oldest = StackSummaryIterator.oldestWithPrefix(
+				new StackSummaryIterator(awsClient, CloudFormation.RUNNING_STATUSES), "app-", 2, new Date(3));
+
+		assertEquals(2, oldest.size());
+		assertEquals("app-1", oldest.get(0).getStackName());
+		assertEquals("app-2", oldest.get(1).getStackName());
+	}
+
+	@Test
+	public void only_the_oldest_matches_are_kept_up_to_the_limit() {
+		List<StackSummary> stacks = new ArrayList<StackSummary>();
+		for (int i = 100; i > 0; i--) {
+			stacks.add(summary("app-" + i, i));
+		}
+
+		List<StackSummary> oldest = StackSummaryIterator.oldestWithPrefix(stacks.iterator(), "app-", 3, null);
+		List<StackSummary> all = StackSummaryIterator.oldestWithPrefix(stacks.iterator(), "app-", 0, null);
+
+		assertEquals(3, oldest.size());
+		assertEquals("app-1", oldest.get(0).getStackName());
+		assertEquals("app-2", oldest.get(1).getStackName());
+		assertEquals("app-3", oldest.get(2).getStackName());
+		assertEquals(100, all.size());
+		assertEquals("app-100", all.get(99).getStackName());
+	}
+
+	private ListStacksResult page(String nextToken, StackSummary... summaries) {
+		return new ListStacksResult().withNextToken(nextToken).withStackSummaries(summaries);
+	}
+
+	private StackSummary summary(String name, long created) {
+		return new StackSummary().withStackName(name).withCreationTime(new Date(created));
+	}
+
+}
@@ -0,0 +1,65 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import static org.junit.Assert.assertEquals;
+import hudson.FilePath;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TemplateCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void a_changed_template_is_read_again() throws Exception {
+		TemplateCache cache = new TemplateCache(1024);
+		File template = write("template.json", "{\"Resources\": {}}");
+
+		assertEquals("{\"Resources\": {}}", cache.read(new FilePath(template)));
+		assertEquals("{\"Resources\": {}}", cache.read(new FilePath(template)));
+
+		Files.write(template.toPath(), "{\"Resources\": {\"A\": {}}}".getBytes(StandardCharsets.UTF_8));
+		template.setLastModified(template.lastModified() + 2000);
+		assertEquals("{\"Resources\": {\"A\": {}}}", cache.read(new FilePath(template)));
+	}
+
+	@Test
+	public void a_template_rewritten_with_the_same_size_and_modification_time_is_read_again() throws Exception {
+		TemplateCache cache = new TemplateCache(1024);
+		File template = write("template.json", "{\"Resources\": {\"A\": {}}}");
+		long modified = template.lastModified();
+		assertEquals("{\"Resources\": {\"A\": {}}}", cache.read(new FilePath(template)));
+
+		Files.write(template.toPath(), "{\"Resources\": {\"B\": {}}}".getBytes(StandardCharsets.UTF_8));
+		template.setLastModified(modified);
+		assertEquals("{\"Resources\": {\"B\": {}}}", cache.read(new FilePath(template)));
+	}
+
+	@Test
+	public void least_recently_read_templates_are_evicted_beyond_the_size_limit() throws Exception {
+		TemplateCache cache = new TemplateCache(25);
+		File first = write("first.json", "0123456789");
+		File second = write("second.json", "0123456789");
+		File third = write("third.json", "0123456789");
+
+		cache.read(new FilePath(first));
+		cache.read(new FilePath(second));
+		cache.read(new FilePath(first));
+		cache.read(new FilePath(third));
+
+		assertEquals(2, cache.size());
+	}
+
+	private File write(String name, String content) throws Exception {
+		File file = folder.newFile(name);
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+}
@@ -0,0 +1,81 @@
+package com.syncapse.jenkinsci.plugins.awscloudformationwrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.util.IOUtils;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TemplateStagerTest {
+
+	private static final String BUCKET = "templates";
+
+	private TemplateStager stager; // SUT
+
+	/**
+	 * Stands in for S3: a bucket of objects kept in memory.
+	 */
+	@Mock
+	private AmazonS3 s3;
+
+	private final Map<String, String> objects = new HashMap<String, String>();
+
+	@Before
+	public void setup() throws Exception {
+		when(s3.doesObjectExist(anyString(), anyString())).thenAnswer(new Answer<Boolean>() {
+			public Boolean answer(InvocationOnMock invocation) {
+				return objects.containsKey(invocation.getArguments()[0] + "/" + invocation.getArguments()[1]);
+			}
+		});
+		when(s3.putObject(any(PutObjectRequest.class))).thenAnswer(new Answer<PutObjectResult>() {
+			public PutObjectResult answer(InvocationOnMock invocation) throws Exception {
+				PutObjectRequest request = (PutObjectRequest) invocation.getArguments()[0];
+				objects.put(request.getBucketName() + "/" + request.getKey(), IOUtils.toString(request.getInputStream()));
+				return new PutObjectResult();
+			}
+		});
+		when(s3.getUrl(anyString(), anyString())).thenAnswer(new Answer<URL>() {
+			public URL answer(InvocationOnMock invocation) throws Exception {
+				return new URL("https://" + invocation.getArguments()[0] + ".s3.amazonaws.com/" + invocation.getArguments()[1]);
+			}
+		});
+		stager = new TemplateStager(s3, BUCKET, System.out);
+	}
+
+	@Test
+	public void a_template_is_uploaded_once_under_its_content_hash() {
+		String url = stager.stage("{\"Resources\": {}}");
+
+		assertEquals(url, stager.stage("{\"Resources\": {}}"));
+		assertEquals("https://templates.s3.amazonaws.com/" + TemplateStager.key("{\"Resources\": {}}"), url);
+		assertEquals("{\"Resources\": {}}", objects.get(BUCKET + "/" + TemplateStager.key("{\"Resources\": {}}")));
+		verify(s3, times(1)).putObject(any(PutObjectRequest.class));
+	}
+
+	@Test
+	public void a_changed_template_gets_a_new_key() {
+		assertNotEquals(stager.stage("{\"Resources\": {}}"), stager.stage("{\"Resources\": {\"A\": {}}}"));
+		assertEquals(2, objects.size());
+	}
+
+}